@@ -0,0 +1,487 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the activity recorded against each content item and group, so the most active
+ * feeds can be answered without summarizing thousands of activity search hits on every
+ * request. The activity items the tracking store adds under
+ * <code>/activity/content</code> and <code>/activity/group</code> are counted from the
+ * activity index, which every server in a cluster writes to, in time buckets that expire
+ * once they are older than the longest window the feeds accept. The counts are rebuilt
+ * from the index when the component starts; until that has finished {@link #isReady()} is
+ * false and the feeds search as before. After that the index is asked every refresh
+ * period for the items timestamped since the last refresh, leaving out the most recent
+ * items for a settle period so items still waiting to be indexed are counted next time
+ * rather than missed.
+ * <p>
+ * Each kind keeps at most a fixed number of resources. When a new one arrives and there
+ * is no room, it takes over the counts of the least active, as in the Space-Saving
+ * algorithm, so a resource that keeps arriving is never starved by ones that were busy
+ * weeks ago, and the counts of the resources that are kept are never under-reported.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = ActivityCounter.class)
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
+public class ActivityCounter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityCounter.class);
+
+  public static final String CONTENT = "content";
+  public static final String GROUP = "group";
+
+  private static final String ACTIVITY_ROOT = "/activity/";
+
+  /**
+   * The result set of a feed answered from the counts, which needs no search.
+   */
+  static final SolrSearchResultSet NO_RESULTS = new SolrSearchResultSet() {
+    public Iterator<Result> getResultSetIterator() {
+      return Collections.<Result> emptyList().iterator();
+    }
+
+    public long getSize() {
+      return 0;
+    }
+
+    public List<FacetField> getFacetFields() {
+      return null;
+    }
+  };
+
+  private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+  /**
+   * The width of a time bucket in ms.
+   */
+  @Property(longValue = 3600000L)
+  static final String BUCKET_MILLIS = "bucketMillis";
+
+  /**
+   * The most resources of each kind to count.
+   */
+  @Property(intValue = 1000)
+  static final String CAPACITY = "capacity";
+
+  /**
+   * How often to count the activity added to the index since the last refresh, in ms.
+   */
+  @Property(longValue = 60000L)
+  static final String REFRESH_MILLIS = "refreshMillis";
+
+  /**
+   * How long an activity item may take to become searchable, in ms. Items more recent
+   * than this are left for the next refresh.
+   */
+  @Property(longValue = 30000L)
+  static final String SETTLE_MILLIS = "settleMillis";
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private long bucketMillis;
+  private int capacity;
+  private long settleMillis;
+
+  private volatile Map<String, Tally> tallies = Collections.emptyMap();
+
+  /**
+   * The end of the time counted so far, in ms since the epoch.
+   */
+  private long counted;
+
+  private volatile boolean ready;
+
+  private ScheduledExecutorService counter;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    bucketMillis = Math.max(1L, PropertiesUtil.toLong(props.get(BUCKET_MILLIS), 3600000L));
+    capacity = Math.max(1, PropertiesUtil.toInteger(props.get(CAPACITY), 1000));
+    long refreshMillis = Math.max(1L, PropertiesUtil.toLong(props.get(REFRESH_MILLIS),
+        60000L));
+    settleMillis = Math.max(0L, PropertiesUtil.toLong(props.get(SETTLE_MILLIS), 30000L));
+    stopCounter();
+    ready = false;
+    counter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Activity Counter");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    counter.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        refresh(System.currentTimeMillis());
+      }
+    }, 0, refreshMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    stopCounter();
+    ready = false;
+  }
+
+  private void stopCounter() {
+    if (counter != null) {
+      counter.shutdownNow();
+      counter = null;
+    }
+  }
+
+  /**
+   * @return true once the counts have been rebuilt and can be used.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Rank the resources of a kind by their activity.
+   *
+   * @param kind
+   *          {@link #CONTENT} or {@link #GROUP}.
+   * @param since
+   *          the start of the window to count, in ms since the epoch.
+   * @return the resources with activity in the window, most active first.
+   */
+  public List<Activity> rank(String kind, long since) {
+    Tally tally = tallies.get(kind);
+    if (tally == null) {
+      return Collections.emptyList();
+    }
+    return tally.rank(since, System.currentTimeMillis());
+  }
+
+  /**
+   * Bring the counts up to a settle period before now, rebuilding them if they have not
+   * been built yet. Only called from the counter thread, or a test.
+   */
+  void refresh(long now) {
+    long until = now - settleMillis;
+    try {
+      if (!ready) {
+        rebuild(until);
+        return;
+      }
+      // count a bucket at a time so each item lands in the bucket it was timestamped in
+      for (long start = counted; start < until && !Thread.currentThread().isInterrupted();) {
+        long end = Math.min(until, (start / bucketMillis + 1) * bucketMillis);
+        for (Map.Entry<String, Tally> e : tallies.entrySet()) {
+          count(e.getKey(), e.getValue(), start, end);
+        }
+        counted = end;
+        start = end;
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn("Unable to count the activity since {}, will try again: {}", counted,
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Count the activity in the index before until, a day at a time, into fresh tallies
+   * which replace the current ones once they are complete.
+   */
+  private void rebuild(long until) throws SolrServerException {
+    long started = System.currentTimeMillis();
+    Map<String, Tally> rebuilt = new HashMap<String, Tally>();
+    rebuilt.put(CONTENT, new Tally(capacity, bucketMillis,
+        MostActiveContentPropertyProvider.MAXIMUM_DAYS_MS));
+    rebuilt.put(GROUP, new Tally(capacity, bucketMillis,
+        MostActiveContentPropertyProvider.MAXIMUM_DAYS_MS));
+    for (Map.Entry<String, Tally> e : rebuilt.entrySet()) {
+      for (long end = until; end > until - MostActiveContentPropertyProvider.MAXIMUM_DAYS_MS;
+          end -= DAY_MS) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        count(e.getKey(), e.getValue(), end - DAY_MS, end);
+      }
+    }
+    tallies = rebuilt;
+    counted = until;
+    ready = true;
+    LOGGER.info("Rebuilt the activity counts in {} ms", System.currentTimeMillis()
+        - started);
+  }
+
+  /**
+   * Count the activity items of a kind timestamped from start up to end, by faceting them
+   * on their parent paths, and add them to the tally at start.
+   */
+  private void count(String kind, Tally tally, long start, long end)
+      throws SolrServerException {
+    String prefix = ACTIVITY_ROOT + kind + "/";
+    SolrQuery query = new SolrQuery("path:"
+        + ClientUtils.escapeQueryChars(ACTIVITY_ROOT + kind) + " AND resourceType:"
+        + ClientUtils.escapeQueryChars(ActivityConstants.RESOURCE_UPDATE));
+    query.addFilterQuery("timestamp:[" + start + " TO " + (end - 1) + "]");
+    query.setRows(0);
+    query.setFacet(true);
+    query.addFacetField("path");
+    query.setFacetPrefix(prefix);
+    query.setFacetMinCount(1);
+    query.setFacetLimit(-1);
+    FacetField paths = solrServerService.getServer().query(query).getFacetField("path");
+    if (paths == null || paths.getValues() == null) {
+      return;
+    }
+    for (FacetField.Count count : paths.getValues()) {
+      if (count.getName() == null || !count.getName().startsWith(prefix)) {
+        continue;
+      }
+      String id = count.getName().substring(prefix.length());
+      if (id.length() > 0 && id.indexOf('/') < 0) {
+        tally.add(id, start, (int) count.getCount());
+      }
+    }
+  }
+
+  /**
+   * The activity of one resource in a window.
+   */
+  public static class Activity {
+    private final String id;
+    private final long count;
+    private final long lastActive;
+
+    Activity(String id, long count, long lastActive) {
+      this.id = id;
+      this.count = count;
+      this.lastActive = lastActive;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the start of the most recent bucket the resource was active in.
+     */
+    public long getLastActive() {
+      return lastActive;
+    }
+
+    @Override
+    public String toString() {
+      return "Activity(" + id + ", " + count + ")";
+    }
+  }
+
+  /**
+   * The bucketed counts of the resources of one kind.
+   */
+  static class Tally {
+    private final int capacity;
+    private final long bucketMillis;
+    private final long window;
+    private final Map<String, Buckets> resources = new HashMap<String, Buckets>();
+
+    Tally(int capacity, long bucketMillis, long window) {
+      this.capacity = capacity;
+      this.bucketMillis = bucketMillis;
+      this.window = window;
+    }
+
+    synchronized void add(String id, long time, int n) {
+      Buckets buckets = resources.get(id);
+      if (buckets == null) {
+        if (resources.size() >= capacity) {
+          buckets = evict(time);
+        }
+        if (buckets == null) {
+          buckets = new Buckets();
+        }
+        resources.put(id, buckets);
+      }
+      buckets.add(time / bucketMillis, n);
+    }
+
+    synchronized List<Activity> rank(long since, long now) {
+      long oldest = (now - window) / bucketMillis;
+      long from = Math.max(oldest, since / bucketMillis);
+      List<Activity> ranked = new ArrayList<Activity>();
+      for (Iterator<Map.Entry<String, Buckets>> i = resources.entrySet().iterator(); i
+          .hasNext();) {
+        Map.Entry<String, Buckets> e = i.next();
+        Buckets buckets = e.getValue();
+        buckets.expire(oldest);
+        if (buckets.isEmpty()) {
+          i.remove();
+          continue;
+        }
+        long count = buckets.total(from);
+        if (count > 0) {
+          ranked.add(new Activity(e.getKey(), count, buckets.last() * bucketMillis));
+        }
+      }
+      Collections.sort(ranked, MOST_ACTIVE);
+      return ranked;
+    }
+
+    /**
+     * Make room for a resource, first by dropping the ones with no activity left in the
+     * window and failing that by dropping the least active.
+     *
+     * @return the counts of the least active resource, for the new one to carry on from,
+     *         or null if dropping the inactive ones made room.
+     */
+    private Buckets evict(long now) {
+      long oldest = (now - window) / bucketMillis;
+      String least = null;
+      long leastCount = Long.MAX_VALUE;
+      for (Iterator<Map.Entry<String, Buckets>> i = resources.entrySet().iterator(); i
+          .hasNext();) {
+        Map.Entry<String, Buckets> e = i.next();
+        e.getValue().expire(oldest);
+        if (e.getValue().isEmpty()) {
+          i.remove();
+          continue;
+        }
+        long count = e.getValue().total(oldest);
+        if (count < leastCount) {
+          leastCount = count;
+          least = e.getKey();
+        }
+      }
+      if (resources.size() >= capacity && least != null) {
+        return resources.remove(least);
+      }
+      return null;
+    }
+
+    synchronized int size() {
+      return resources.size();
+    }
+  }
+
+  private static final Comparator<Activity> MOST_ACTIVE = new Comparator<Activity>() {
+    public int compare(Activity a, Activity b) {
+      if (a.count != b.count) {
+        return a.count > b.count ? -1 : 1;
+      }
+      if (a.lastActive != b.lastActive) {
+        return a.lastActive > b.lastActive ? -1 : 1;
+      }
+      return a.id.compareTo(b.id);
+    }
+  };
+
+  /**
+   * The counts of one resource, in bucket order. Only buckets with activity are kept.
+   */
+  static class Buckets {
+    private long[] buckets = new long[4];
+    private int[] counts = new int[4];
+    private int size;
+
+    void add(long bucket, int n) {
+      if (size > 0 && buckets[size - 1] == bucket) {
+        counts[size - 1] += n;
+        return;
+      }
+      // activity arrives in time order, except while the counts are being rebuilt.
+      int at = size;
+      while (at > 0 && buckets[at - 1] > bucket) {
+        at--;
+      }
+      if (at > 0 && buckets[at - 1] == bucket) {
+        counts[at - 1] += n;
+        return;
+      }
+      if (size == buckets.length) {
+        long[] b = new long[size * 2];
+        int[] c = new int[size * 2];
+        System.arraycopy(buckets, 0, b, 0, size);
+        System.arraycopy(counts, 0, c, 0, size);
+        buckets = b;
+        counts = c;
+      }
+      System.arraycopy(buckets, at, buckets, at + 1, size - at);
+      System.arraycopy(counts, at, counts, at + 1, size - at);
+      buckets[at] = bucket;
+      counts[at] = n;
+      size++;
+    }
+
+    void expire(long oldest) {
+      int drop = 0;
+      while (drop < size && buckets[drop] < oldest) {
+        drop++;
+      }
+      if (drop > 0) {
+        System.arraycopy(buckets, drop, buckets, 0, size - drop);
+        System.arraycopy(counts, drop, counts, 0, size - drop);
+        size -= drop;
+      }
+    }
+
+    long total(long from) {
+      long total = 0;
+      for (int i = size - 1; i >= 0 && buckets[i] >= from; i--) {
+        total += counts[i];
+      }
+      return total;
+    }
+
+    long last() {
+      return buckets[size - 1];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
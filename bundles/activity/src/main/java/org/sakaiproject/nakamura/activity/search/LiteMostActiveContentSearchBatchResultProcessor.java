@@ -21,6 +21,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
@@ -66,6 +68,9 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ActivityCounter activityCounter;
+
   /**
    * 
    * {@inheritDoc}
@@ -75,44 +80,77 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
 
-    // count all the activity
-    LOG.debug("Computing the most active content feed.");
-    while (iterator.hasNext()) {
-      try {
-        final Result result = iterator.next();
-        final String path = result.getPath();
-        final Content node = session.getContentManager().get(path);
-        if (node != null) {
-          final String resourceId = (String) node.getProperty("resourceId");
-          if (!resources.containsKey(resourceId)) {
-            final Content resourceNode = session.getContentManager().get(resourceId);
-            if (resourceNode == null) {
-              // this can happen if this content is no longer public
-              continue;
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    long total = 0;
+    final ActivityCounter counter = activityCounter;
+    if (counter != null && counter.isReady()) {
+      // the activity has already been counted, so only the content shown up to the end
+      // of the requested page has to be loaded.
+      LOG.debug("Reading the most active content feed from the activity counts.");
+      final List<ActivityCounter.Activity> ranked = counter.rank(ActivityCounter.CONTENT,
+          MostActiveContentPropertyProvider.deriveThen(request));
+      int skipped = 0;
+      for (ActivityCounter.Activity activity : ranked) {
+        if (resourceActivities.size() >= startpage * numitems) {
+          break;
+        }
+        final ResourceActivity resourceActivity = loadResource(session, activity.getId());
+        if (resourceActivity == null) {
+          skipped++;
+        } else {
+          resourceActivity.activityScore = (int) Math.min(activity.getCount(),
+              Integer.MAX_VALUE);
+          resourceActivities.add(resourceActivity);
+        }
+      }
+      total = ranked.size() - skipped;
+    } else {
+      final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
+
+      // count all the activity
+      LOG.debug("Computing the most active content feed.");
+      while (iterator.hasNext()) {
+        try {
+          final Result result = iterator.next();
+          final String path = result.getPath();
+          final Content node = session.getContentManager().get(path);
+          if (node != null) {
+            final String resourceId = (String) node.getProperty("resourceId");
+            if (!resources.containsKey(resourceId)) {
+              final ResourceActivity resourceActivity = loadResource(session, resourceId);
+              if (resourceActivity == null) {
+                continue;
+              }
+              resources.put(resourceId, resourceActivity);
             }
-            final String resourceName = (String) resourceNode
-                .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
-            resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-                (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
+            // increment the count for this particular resource.
+            resources.get(resourceId).activityScore++;
           }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
+        } catch (StorageClientException e) {
+          // if something is wrong with this particular resourceNode,
+          // we don't let it wreck the whole feed
+          continue;
+        } catch (AccessDeniedException e) {
+          // if something is wrong with this particular resourceNode,
+          // we don't let it wreck the whole feed
+          continue;
         }
-      } catch (StorageClientException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
-      } catch (AccessDeniedException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
       }
+      resourceActivities.addAll(resources.values());
+      Collections.sort(resourceActivities, Collections.reverseOrder());
+      total = resources.size();
     }
-    
+
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
     try {
@@ -129,23 +167,13 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     }
 
     // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(total);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
     final int beginPosition = (startpage * numitems) - numitems;
@@ -170,6 +198,29 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     write.endObject();
   }
 
+  /**
+   * Load the name and modification time of a content item.
+   *
+   * @return the activity for the content, or null if the content can't be read.
+   */
+  private ResourceActivity loadResource(Session session, String resourceId) {
+    try {
+      final Content resourceNode = session.getContentManager().get(resourceId);
+      if (resourceNode == null) {
+        // this can happen if this content is no longer public
+        return null;
+      }
+      final String resourceName = (String) resourceNode
+          .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
+      return new ResourceActivity(resourceId, 0, resourceName,
+          (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED));
+    } catch (StorageClientException e) {
+      return null;
+    } catch (AccessDeniedException e) {
+      return null;
+    }
+  }
+
   public class ResourceActivity implements Comparable<ResourceActivity> {
     public final String id;
     public final String name;
@@ -238,7 +289,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
+    final ActivityCounter counter = activityCounter;
+    if (counter != null && counter.isReady()) {
+      // the feed is written from the activity counts
+      return ActivityCounter.NO_RESULTS;
+    }
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
@@ -21,6 +21,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
@@ -68,6 +70,9 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ActivityCounter activityCounter;
+
   /**
    * {@inheritDoc}
    * 
@@ -76,60 +81,63 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> results) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final ResourceResolver resolver = request.getResourceResolver();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
-    while (results.hasNext()) {
-      final Result result = results.next();
-      final String path = result.getPath();
-      final Resource resource = resolver.getResource(path);
-      final Content content = resource.adaptTo(Content.class);
-      if (content != null) {
-        final String resourceId = (String) content.getProperty("resourceId");
-        if (!resources.containsKey(resourceId)) {
-          final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
-          Content resourceContent = null;
-          try {
-            resourceContent = session.getContentManager().get(resourcePath);
-          } catch (Exception e) {
-            // this happens if the group is not public
-            // or if the group path simply doesn't exist
-            continue;
-          }
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
 
-          // KERN-2125 determine if group should be excluded from search results
-          Authorizable authorizable = null;
-          try {
-            authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
-            // allow for not being able to find the authorizable for the group
-            if (authorizable == null) {
-              LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    long total = 0;
+    final ActivityCounter counter = activityCounter;
+    if (counter != null && counter.isReady()) {
+      // the activity has already been counted, so only the groups shown up to the end
+      // of the requested page have to be loaded.
+      final List<ActivityCounter.Activity> ranked = counter.rank(ActivityCounter.GROUP,
+          MostActiveContentPropertyProvider.deriveThen(request));
+      int skipped = 0;
+      for (ActivityCounter.Activity activity : ranked) {
+        if (resourceActivities.size() >= startpage * numitems) {
+          break;
+        }
+        final ResourceActivity resourceActivity = loadGroup(session, activity.getId());
+        if (resourceActivity == null) {
+          skipped++;
+        } else {
+          resourceActivity.activityScore = (int) Math.min(activity.getCount(),
+              Integer.MAX_VALUE);
+          resourceActivities.add(resourceActivity);
+        }
+      }
+      total = ranked.size() - skipped;
+    } else {
+      final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
+      while (results.hasNext()) {
+        final Result result = results.next();
+        final String path = result.getPath();
+        final Resource resource = resolver.getResource(path);
+        final Content content = resource.adaptTo(Content.class);
+        if (content != null) {
+          final String resourceId = (String) content.getProperty("resourceId");
+          if (!resources.containsKey(resourceId)) {
+            final ResourceActivity resourceActivity = loadGroup(session, resourceId);
+            if (resourceActivity == null) {
               continue;
             }
-          } catch (Exception e) {
-            // allow for not being able to find the authorizable for the group
-            LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
-            continue;
+            resources.put(resourceId, resourceActivity);
           }
-          if (authorizable != null) {
-            if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
-              if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
-                // don't include groups in search results where property sakai:excludeSearch=true
-                LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
-                continue;
-              }
-            }
-          }
-
-          final String resourceName = (String) resourceContent
-              .getProperty("sakai:group-title");
-          resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-              (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
+          // increment the count for this particular resource.
+          resources.get(resourceId).activityScore++;
         }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
       }
+      resourceActivities.addAll(resources.values());
+      Collections.sort(resourceActivities, Collections.reverseOrder());
+      total = resourceActivities.size();
     }
 
     // KERN-1724 determine how many content items the current user can read
@@ -147,23 +155,13 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
     }
 
     // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resourceActivities.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(total);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
     final int beginPosition = (startpage * numitems) - numitems;
@@ -196,10 +194,62 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
+    final ActivityCounter counter = activityCounter;
+    if (counter != null && counter.isReady()) {
+      // the feed is written from the activity counts
+      return ActivityCounter.NO_RESULTS;
+    }
     // Return the result set.
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
+  /**
+   * Load the title and modification time of a group.
+   *
+   * @return the activity for the group, or null if the group can't be read or is
+   *         excluded from searches.
+   */
+  private ResourceActivity loadGroup(Session session, String resourceId) {
+    final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
+    Content resourceContent = null;
+    try {
+      resourceContent = session.getContentManager().get(resourcePath);
+    } catch (Exception e) {
+      // this happens if the group is not public
+      // or if the group path simply doesn't exist
+      return null;
+    }
+    if (resourceContent == null) {
+      return null;
+    }
+
+    // KERN-2125 determine if group should be excluded from search results
+    Authorizable authorizable = null;
+    try {
+      authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
+      // allow for not being able to find the authorizable for the group
+      if (authorizable == null) {
+        LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
+        return null;
+      }
+    } catch (Exception e) {
+      // allow for not being able to find the authorizable for the group
+      LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
+      return null;
+    }
+    if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
+      if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
+        // don't include groups in search results where property sakai:excludeSearch=true
+        LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
+        return null;
+      }
+    }
+
+    final String resourceName = (String) resourceContent.getProperty("sakai:group-title");
+    return new ResourceActivity(resourceId, 0, resourceName,
+        (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED));
+  }
+
   public class ResourceActivity implements Comparable<ResourceActivity> {
     public final String id;
     public final String name;
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.List;
+
+public class ActivityCounterTest {
+
+  private static final long HOUR = 3600000L;
+  private static final long NOW = 1000 * HOUR;
+
+  @Test
+  public void testRanking() {
+    ActivityCounter.Tally tally = new ActivityCounter.Tally(10, HOUR, 100 * HOUR);
+    tally.add("a", NOW - 50 * HOUR, 5);
+    tally.add("b", NOW - 2 * HOUR, 3);
+    tally.add("b", NOW - HOUR, 1);
+    tally.add("c", NOW - 3 * HOUR, 4);
+
+    List<ActivityCounter.Activity> ranked = tally.rank(0, NOW);
+    assertEquals(3, ranked.size());
+    assertEquals("a", ranked.get(0).getId());
+    assertEquals(5, ranked.get(0).getCount());
+    // b and c tie, the most recently active comes first
+    assertEquals("b", ranked.get(1).getId());
+    assertEquals("c", ranked.get(2).getId());
+
+    ranked = tally.rank(NOW - 10 * HOUR, NOW);
+    assertEquals(2, ranked.size());
+    assertEquals("b", ranked.get(0).getId());
+    assertEquals(4, ranked.get(0).getCount());
+  }
+
+  @Test
+  public void testOutOfOrderCounts() {
+    ActivityCounter.Tally tally = new ActivityCounter.Tally(10, HOUR, 100 * HOUR);
+    for (int i = 0; i < 10; i++) {
+      tally.add("a", NOW - i * HOUR, 1);
+    }
+    tally.add("a", NOW - 20 * HOUR, 2);
+    tally.add("a", NOW - 5 * HOUR, 1);
+    assertEquals(13, tally.rank(0, NOW).get(0).getCount());
+    assertEquals(7, tally.rank(NOW - 5 * HOUR, NOW).get(0).getCount());
+  }
+
+  @Test
+  public void testExpiry() {
+    ActivityCounter.Tally tally = new ActivityCounter.Tally(10, HOUR, 100 * HOUR);
+    tally.add("a", NOW, 1);
+    tally.add("b", NOW + 50 * HOUR, 1);
+    List<ActivityCounter.Activity> ranked = tally.rank(0, NOW + 150 * HOUR);
+    assertEquals(1, ranked.size());
+    assertEquals("b", ranked.get(0).getId());
+    assertEquals(1, tally.size());
+  }
+
+  @Test
+  public void testCapacity() {
+    ActivityCounter.Tally tally = new ActivityCounter.Tally(2, HOUR, 100 * HOUR);
+    tally.add("a", NOW, 3);
+    tally.add("b", NOW, 1);
+    tally.add("c", NOW, 2);
+    assertEquals(2, tally.size());
+    List<ActivityCounter.Activity> ranked = tally.rank(0, NOW);
+    assertEquals("a", ranked.get(0).getId());
+    // c takes over the count of b, which it replaced
+    assertEquals("c", ranked.get(1).getId());
+    assertEquals(3, ranked.get(1).getCount());
+  }
+
+  @Test
+  public void testCapacityDropsInactiveFirst() {
+    ActivityCounter.Tally tally = new ActivityCounter.Tally(2, HOUR, 100 * HOUR);
+    tally.add("a", NOW, 3);
+    tally.add("b", NOW + 50 * HOUR, 1);
+    tally.add("c", NOW + 150 * HOUR, 2);
+    List<ActivityCounter.Activity> ranked = tally.rank(0, NOW + 150 * HOUR);
+    assertEquals(2, ranked.size());
+    assertEquals("c", ranked.get(0).getId());
+    assertEquals(2, ranked.get(0).getCount());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    QueryResponse empty = mock(QueryResponse.class);
+    SolrServer server = mock(SolrServer.class);
+    when(server.query(any(SolrQuery.class))).thenReturn(empty);
+    SolrServerService solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(server);
+
+    ActivityCounter counter = new ActivityCounter();
+    counter.solrServerService = solrServerService;
+    counter.activate(ImmutableMap.of(ActivityCounter.REFRESH_MILLIS, 3600000L,
+        ActivityCounter.SETTLE_MILLIS, 0L));
+    for (int i = 0; i < 100 && !counter.isReady(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(counter.isReady());
+
+    // activity indexed by any server since the rebuild
+    FacetField paths = new FacetField("path");
+    paths.add("/activity/content/abc", 2);
+    paths.add("/activity/group/g1", 1);
+    // not activity items
+    paths.add("/activity/content/abc/x4", 1);
+    paths.add("/activity/content/", 1);
+    QueryResponse response = mock(QueryResponse.class);
+    when(response.getFacetField("path")).thenReturn(paths);
+    when(server.query(any(SolrQuery.class))).thenReturn(response);
+    long now = System.currentTimeMillis() + 1;
+    counter.refresh(now);
+
+    List<ActivityCounter.Activity> content = counter.rank(ActivityCounter.CONTENT, 0);
+    assertEquals(1, content.size());
+    assertEquals("abc", content.get(0).getId());
+    assertEquals(2, content.get(0).getCount());
+    assertEquals(1, counter.rank(ActivityCounter.GROUP, 0).size());
+
+    // the same period is not counted twice
+    counter.refresh(now);
+    assertEquals(2, counter.rank(ActivityCounter.CONTENT, 0).get(0).getCount());
+    counter.deactivate();
+  }
+}
@@ -32,6 +32,7 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.tika.metadata.Metadata;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.tika.TikaService;
@@ -126,7 +127,7 @@ public class WidgetServiceImpl implements WidgetService {
     // Get the resource that should represent this widget.
     // We use resources rather than Nodes because most of the time the UI will use the
     // FsResource tool for development.
-    Resource resource = resolver.getResource(path);
+    final Resource resource = resolver.getResource(path);
 
     // Make sure that this is a proper widget.
     if (!checkValidWidget(resource)) {
@@ -134,42 +135,27 @@ public class WidgetServiceImpl implements WidgetService {
           "The provided path does not point to a valid widget.");
     }
 
-    // Check if we have something in the cache.
-    String widgetName = resource.getName();
-    Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
-        CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
-
-    Map<String, ValueMap> widgetCache = cache.get(widgetName);
-    if (widgetCache == null) {
-      widgetCache = new HashMap<String, ValueMap>();
-    } else {
-      ValueMap map = widgetCache.get(locale.toString());
-      if (map != null) {
-        // The locale for this widget is in the cache.
-        // We can just return it.
-        return map;
-      }
-    }
-
-    try {
-      // There is nothing in the cache, create it and put it in there.
-      StringWriter sw = new StringWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
-      writer.object();
-      outputWidget(resource, writer, locale);
-      writer.endObject();
-      sw.flush();
-      String content = sw.toString();
-      ValueMap map = new JsonValueMap(content);
-
-      // Put the map in the cache.
-      widgetCache.put(locale.toString(), map);
-      cache.put(widgetName, widgetCache);
-
-      return map;
-    } catch (JSONException e) {
-      throw new RuntimeException("Could not parse this widget to JSON.");
-    }
+    // Each locale of a widget is cached under the widget name, so an update can remove
+    // all of them. Requests that miss at the same time share one load.
+    Cache<ValueMap> cache = cacheManagerService.getCache(CACHE_NAME_WIDGET_FILES,
+        CacheScope.INSTANCE);
+    final Locale widgetLocale = locale;
+    return cache.getOrLoad(resource.getName() + "/" + locale,
+        new CacheLoader<ValueMap>() {
+          public ValueMap load(String key) {
+            try {
+              StringWriter sw = new StringWriter();
+              ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+              writer.object();
+              outputWidget(resource, writer, widgetLocale);
+              writer.endObject();
+              sw.flush();
+              return new JsonValueMap(sw.toString());
+            } catch (JSONException e) {
+              throw new RuntimeException("Could not parse this widget to JSON.");
+            }
+          }
+        });
   }
 
   /**
@@ -181,21 +167,18 @@ public class WidgetServiceImpl implements WidgetService {
     // Check the cache to see if we have anything cached already.
     Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
         CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    Map<String, ValueMap> configs = cache.get("configs");
-    if (configs != null) {
-      // There is something in here, return it.
-      return configs;
-    }
-
-    // We will store all the found widgets in this map.
-    // The key will be the name of widget.
-    Map<String, ValueMap> validWidgets = new HashMap<String, ValueMap>();
-    for (String folder : widgetFolders) {
-      processWidgetFolder(folder, resolver, validWidgets);
-    }
-    // Stick the map in the cache so it can be retrieved later on.
-    cache.put("configs", validWidgets);
-    return validWidgets;
+    final ResourceResolver configResolver = resolver;
+    return cache.getOrLoad("configs", new CacheLoader<Map<String, ValueMap>>() {
+      public Map<String, ValueMap> load(String key) {
+        // We will store all the found widgets in this map.
+        // The key will be the name of widget.
+        Map<String, ValueMap> validWidgets = new HashMap<String, ValueMap>();
+        for (String folder : widgetFolders) {
+          processWidgetFolder(folder, configResolver, validWidgets);
+        }
+        return validWidgets;
+      }
+    });
   }
 
   /**
@@ -230,8 +213,8 @@ public class WidgetServiceImpl implements WidgetService {
     }
     if (widget != null) {
       // Get the cache for this widget.
-      Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
-          CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
+      Cache<ValueMap> cache = cacheManagerService.getCache(CACHE_NAME_WIDGET_FILES,
+          CacheScope.INSTANCE);
 
       if (cache != null) {
         // Remove it from the cache.
@@ -240,7 +223,7 @@ public class WidgetServiceImpl implements WidgetService {
         if (LOGGER.isDebugEnabled()) {
           LOGGER.debug("Invalidating cache for '" + widget + "'");
         }
-        cache.remove(widget);
+        cache.removeChildren(widget);
       }
     }
 
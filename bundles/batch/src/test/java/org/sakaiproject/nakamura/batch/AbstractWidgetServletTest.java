@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -28,6 +30,10 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.tika.TikaService;
 
@@ -95,6 +101,26 @@ public abstract class AbstractWidgetServletTest {
     mockResource("/widgets", file);
   }
 
+  /**
+   * @return a cache that misses unless its get is stubbed, and loads on getOrLoad.
+   */
+  @SuppressWarnings("unchecked")
+  protected Cache<Object> mockCache() {
+    Cache<Object> cache = mock(Cache.class);
+    when(cache.getOrLoad(anyString(), any(CacheLoader.class))).thenAnswer(
+        new Answer<Object>() {
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            String key = (String) invocation.getArguments()[0];
+            Object value = ((Cache<Object>) invocation.getMock()).get(key);
+            if (value == null) {
+              value = ((CacheLoader<Object>) invocation.getArguments()[1]).load(key);
+            }
+            return value;
+          }
+        });
+    return cache;
+  }
+
   /**
    *
    */
@@ -19,7 +19,6 @@ package org.sakaiproject.nakamura.batch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -55,7 +54,7 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
   @Test
   public void testGoodWidgetUncached() throws Exception {
     // Always return null for cached content.
-    Cache<Object> cache = mock(Cache.class);
+    Cache<Object> cache = mockCache();
     when(
         cacheManagerService
             .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
@@ -112,7 +111,7 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
   @Test
   public void testBadWidget() throws Exception {
     // Always return null for cached content.
-    Cache<Object> cache = mock(Cache.class);
+    Cache<Object> cache = mockCache();
     when(
         cacheManagerService
             .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
@@ -58,7 +58,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
   @SuppressWarnings("unchecked")
   @Test
   public void testListUncached() throws ServletException, IOException, JSONException {
-    Cache<Object> cache = mock(Cache.class);
+    Cache<Object> cache = mockCache();
 
     when(
         cacheManagerService
@@ -75,7 +75,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
   @SuppressWarnings("unchecked")
   @Test
   public void testListCached() throws ServletException, IOException, JSONException {
-    Cache<Object> cache = mock(Cache.class);
+    Cache<Object> cache = mockCache();
 
     when(
         cacheManagerService
@@ -97,7 +97,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
   @SuppressWarnings("unchecked")
   @Test
   public void testJSONP() throws ServletException, IOException {
-    Cache<Object> cache = mock(Cache.class);
+    Cache<Object> cache = mockCache();
 
     when(
         cacheManagerService
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.connections.search;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -29,6 +30,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -40,10 +42,10 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SearchDeadline;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
@@ -56,6 +58,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.jcr.RepositoryException;
 
@@ -100,10 +103,19 @@ public class MyRelatedGroupsSearchBatchResultProcessor implements
   @Reference
   private ProfileService profileService;
 
-  private static final String DEFAULT_SEARCH_PROC_TARGET = "(&("
-      + SolrSearchResultProcessor.DEFAULT_PROCESSOR_PROP + "=true))";
-  @Reference(target = DEFAULT_SEARCH_PROC_TARGET)
-  private transient SolrSearchResultProcessor defaultSearchProcessor;
+  /**
+   * How long a request short of a page of results may wait for the random groups that
+   * fill it, in ms.
+   */
+  @Property(longValue = 5000L)
+  static final String DEADLINE = "deadline";
+
+  private long deadline;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    deadline = PropertiesUtil.toLong(props.get(DEADLINE), 5000L);
+  }
 
   /**
    * {@inheritDoc}
@@ -123,6 +135,9 @@ public class MyRelatedGroupsSearchBatchResultProcessor implements
     // TODO add proper paging support
     // final long page = SolrSearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
 
+    SearchDeadline searchDeadline = null;
+    Future<SolrSearchResultSet> randomGroups = null;
+
     final Set<String> processedGroups = new HashSet<String>();
     try {
       /* first render search results */
@@ -143,10 +158,22 @@ public class MyRelatedGroupsSearchBatchResultProcessor implements
         sourceQuery.append(AUTHORIZABLE_RT);
         sourceQuery.append(" AND type:g AND -readers:");
         sourceQuery.append(ClientUtils.escapeQueryChars(user));
-
-        final Iterator<Result> i = SolrSearchUtil.getRandomResults(request,
-            defaultSearchProcessor, sourceQuery.toString(), "items",
-            String.valueOf(VOLUME), "page", "0");
+        searchDeadline = new SearchDeadline(deadline);
+        randomGroups = searchServiceFactory.getSearchResultSetAsync(request,
+            SolrSearchUtil.getRandomQuery(sourceQuery.toString(), "items",
+                String.valueOf(VOLUME), "page", "0"), false);
+        Iterator<Result> i = null;
+        try {
+          final SolrSearchResultSet rs = searchDeadline.get(randomGroups);
+          if (rs != null) {
+            i = rs.getResultSetIterator();
+          }
+        } catch (SolrSearchException e) {
+          if (e.getCode() != 504) {
+            throw e;
+          }
+          LOG.info("Random groups were not found within {} ms", deadline);
+        }
 
         if (i != null) {
           while (i.hasNext() && processedGroups.size() <= nitems) {
@@ -174,6 +201,10 @@ public class MyRelatedGroupsSearchBatchResultProcessor implements
       throw new IllegalStateException(e);
     } catch (StorageClientException e) {
       throw new IllegalStateException(e);
+    } finally {
+      if (randomGroups != null) {
+        randomGroups.cancel(true);
+      }
     }
     long endTicks = System.currentTimeMillis();
     if (LOG.isDebugEnabled())
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.connections.search;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -29,6 +30,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -43,10 +45,10 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SearchDeadline;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
@@ -65,6 +67,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * <pre>
@@ -122,14 +125,23 @@ public class RelatedContactsSearchBatchResultProcessor implements
     SOURCE_QUERY_OPTIONS = Collections.unmodifiableMap(sqo);
   }
 
-  private static final String DEFAULT_SEARCH_PROC_TARGET = "(&("
-      + SolrSearchResultProcessor.DEFAULT_PROCESSOR_PROP + "=true))";
-  @Reference(target = DEFAULT_SEARCH_PROC_TARGET)
-  private transient SolrSearchResultProcessor defaultSearchProcessor;
-
   @Reference
   private transient BasicUserInfoService basicUserInfoService;
 
+  /**
+   * How long a request short of a page of results may wait for the random people that
+   * fill it, in ms.
+   */
+  @Property(longValue = 5000L)
+  static final String DEADLINE = "deadline";
+
+  private long deadline;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    deadline = PropertiesUtil.toLong(props.get(DEADLINE), 5000L);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -149,6 +161,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
     // TODO add proper paging support
     // final long page = SolrSearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
 
+    SearchDeadline searchDeadline = null;
+    Future<SolrSearchResultSet> randomPeople = null;
+
     final Set<String> processedUsers = new HashSet<String>();
     try {
       final AuthorizableManager authMgr = session.getAuthorizableManager();
@@ -175,6 +190,19 @@ public class RelatedContactsSearchBatchResultProcessor implements
         LOG.debug("writeResults() first iteration took {} seconds",
             new Object[] { (float) (firstIterationTicks - startTicks) / 1000 });
       if (processedUsers.size() < nitems) {
+        // the search results were short of a page. the random people don't depend on the
+        // group members, so look for them while those are rendered in case there are
+        // still not enough.
+        // TODO add some randomness; probably through solr.RandomSortField
+        final StringBuilder sourceQuery = new StringBuilder("resourceType:");
+        sourceQuery.append(AUTHORIZABLE_RT);
+        sourceQuery.append(" AND type:u AND id:([* TO *] NOT ");
+        sourceQuery.append(ClientUtils.escapeQueryChars(user));
+        sourceQuery.append(")");
+        searchDeadline = new SearchDeadline(deadline);
+        randomPeople = searchServiceFactory.getSearchResultSetAsync(request, new Query(
+            Query.SOLR, sourceQuery.toString(), SOURCE_QUERY_OPTIONS), false);
+
         // TODO migrate to part of the primary solr query - this was a quick solution
         /* Add people that are a member of groups I'm a member of */
         final Set<String> relatedUsers = new HashSet<String>();
@@ -205,25 +233,17 @@ public class RelatedContactsSearchBatchResultProcessor implements
               "writeResults() second iteration took {} seconds",
               new Object[] { (float) (secondIterationTicks - firstIterationTicks) / 1000 });
       }
-      if (processedUsers.size() < nitems) {
+      if (randomPeople != null && processedUsers.size() < nitems) {
         /* Add some random people to feed */
-
-        // query to find random people
-        // TODO add some randomness; probably through solr.RandomSortField
-        final StringBuilder sourceQuery = new StringBuilder("resourceType:");
-        sourceQuery.append(AUTHORIZABLE_RT);
-        sourceQuery.append(" AND type:u AND id:([* TO *] NOT ");
-        sourceQuery.append(ClientUtils.escapeQueryChars(user));
-        sourceQuery.append(")");
-        final Query query = new Query(Query.SOLR, sourceQuery.toString(),
-            SOURCE_QUERY_OPTIONS);
-
         SolrSearchResultSet rs = null;
         try {
-          rs = defaultSearchProcessor.getSearchResultSet(request, query);
+          rs = searchDeadline.get(randomPeople);
         } catch (SolrSearchException e) {
-          LOG.error(e.getLocalizedMessage(), e);
-          throw new IllegalStateException(e);
+          if (e.getCode() != 504) {
+            LOG.error(e.getLocalizedMessage(), e);
+            throw new IllegalStateException(e);
+          }
+          LOG.info("Random people were not found within {} ms", deadline);
         }
         if (rs != null) {
           final Iterator<Result> i = rs.getResultSetIterator();
@@ -260,6 +280,10 @@ public class RelatedContactsSearchBatchResultProcessor implements
       LOG.debug(e.getLocalizedMessage(), e);
     } catch (StorageClientException e) {
       throw new IllegalStateException(e);
+    } finally {
+      if (randomPeople != null) {
+        randomPeople.cancel(true);
+      }
     }
     long endTicks = System.currentTimeMillis();
     if (LOG.isDebugEnabled())
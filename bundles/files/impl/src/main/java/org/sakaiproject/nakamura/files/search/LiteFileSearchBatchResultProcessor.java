@@ -38,6 +38,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
@@ -62,7 +63,8 @@ import javax.jcr.RepositoryException;
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = SolrSearchConstants.REG_BATCH_PROCESSOR_NAMES, value = "LiteFiles") })
 @Service(value = SolrSearchBatchResultProcessor.class)
-public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResultProcessor {
+public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResultProcessor,
+    PrefetchedResults.Reader {
 
   public static final Logger LOGGER = LoggerFactory
       .getLogger(LiteFileSearchBatchResultProcessor.class);
@@ -125,13 +127,18 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
     try {
       javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       final Session session = StorageClientUtils.adaptToSession(jcrSession);
+      final PrefetchedResults prefetched = PrefetchedResults.get(request);
       while (iterator.hasNext()) {
         final Result result = iterator.next();
         uniquePaths.add(result.getPath());
         try {
           if ("authorizable".equals(result.getFirstValue("resourceType"))) {
-            AuthorizableManager authManager = session.getAuthorizableManager();
-            Authorizable auth = authManager.findAuthorizable((String) result.getFirstValue("id"));
+            String id = (String) result.getFirstValue("id");
+            Authorizable auth = prefetched == null ? null : prefetched.getAuthorizable(id);
+            if (auth == null) {
+              AuthorizableManager authManager = session.getAuthorizableManager();
+              auth = authManager.findAuthorizable(id);
+            }
             if (auth != null) {
               write.object();
               ValueMap map = profileService.getProfileMap(auth, jcrSession);
@@ -140,7 +147,10 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
             }
           } else {
             String contentPath = result.getPath();
-            final Content content = session.getContentManager().get(contentPath);
+            Content content = prefetched == null ? null : prefetched.getContent(contentPath);
+            if (content == null) {
+              content = session.getContentManager().get(contentPath);
+            }
             if (content != null) {
               handleContent(content, session, write, depth);
             } else {
@@ -21,51 +21,29 @@ import com.google.common.collect.Lists;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.tika.TikaService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 import java.util.List;
 
 public class PageIndexingUtil {
   private static final Logger LOGGER = LoggerFactory.getLogger(PageIndexingUtil.class);
 
-  public static void indexAllPages(Content content, ContentManager contentManager, SolrInputDocument doc, TikaService tikaService) throws PageIndexException {
-    for (InputStream pageStream : getPageStreams(content, contentManager)) {
-      try {
-        doc.addField("content", tikaService.parseToString(pageStream));
-      } catch (IOException e) {
-        LOGGER.warn(e.getMessage());
-      } catch (TikaException e) {
-        LOGGER.warn(e.getMessage());
-      }
-    }
-  }
-
-  private static List<InputStream> getPageStreams(Content content, ContentManager contentManager) throws PageIndexException {
-    List<InputStream> streams = Lists.newArrayList();
+  public static void indexAllPages(Content content, ContentManager contentManager, SolrInputDocument doc, TextExtractor textExtractor) throws PageIndexException {
     for (Content page : getPages(content, contentManager)) {
       if (page.hasProperty("page")) {
-        try {
-          // The UX posts a string, but it may have been silently stored as a LongString value.
-          String pageProperty = page.getProperty("page").toString();
-          streams.add(new ByteArrayInputStream(pageProperty.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-          throw new PageIndexException("Could not get bytes from the page property because UTF-8 is an unsupported encoding.");
+        // The UX posts a string, but it may have been silently stored as a LongString value.
+        String text = textExtractor.extractText(page.getProperty("page").toString(), page.getPath());
+        if (text != null) {
+          doc.addField("content", text);
         }
       }
     }
-    return streams;
   }
 
   private static List<Content> getPages(Content content, ContentManager contentManager) throws PageIndexException {
@@ -30,10 +30,11 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -45,17 +46,16 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.Iterables;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.QoSIndexHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
-import org.sakaiproject.nakamura.api.tika.TikaService;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -81,8 +81,11 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
   @Reference(target="(type=sparse)")
   protected ResourceIndexingService resourceIndexingService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile IndexingCoalescer indexingCoalescer;
+
   @Reference
-  private TikaService tika;
+  protected TextExtractor textExtractor;
 
   private static Map<String, Object> getFieldMap() {
     Builder<String, Object> builder = ImmutableMap.builder();
@@ -148,6 +151,11 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
     if (ignorePath(path)) {
       return Collections.emptyList();
     }
+    // a later event for the path is still queued and will index the latest state.
+    IndexingCoalescer coalescer = indexingCoalescer;
+    if (coalescer != null && coalescer.isSuperseded(event)) {
+      return Collections.emptyList();
+    }
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (path != null) {
       try {
@@ -191,21 +199,15 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
             }
             if (isPageContent) {
               long startIndexing = System.currentTimeMillis();
-              PageIndexingUtil.indexAllPages(content, contentManager, doc, tika);
+              PageIndexingUtil.indexAllPages(content, contentManager, doc, textExtractor);
               long finishIndexing = System.currentTimeMillis();
               if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Indexing all pages of {} in {} milliseconds.", content.getPath(), finishIndexing - startIndexing);
               }
             } else {
-              try {
-                // tika handles the closing of the input stream
-                InputStream contentStream = contentManager.getInputStream(path);
-                if (contentStream != null) {
-                  String extracted = tika.parseToString(contentStream);
-                  doc.addField("content", extracted);
-                }
-              } catch (TikaException e) {
-                LOGGER.warn(e.getMessage(), e);
+              String extracted = textExtractor.extractBody(contentManager, content);
+              if (extracted != null) {
+                doc.addField("content", extracted);
               }
             }
 
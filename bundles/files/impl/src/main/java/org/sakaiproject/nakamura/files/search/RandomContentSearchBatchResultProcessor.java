@@ -35,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,11 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
  * writing, the defaults are to return 4 entries but search for 4x the number of items to
  * return (16 total) for a better selection of random content. These settings were
  * specified by the UI team as what is needed for the random content carousel.
+ * <p>
+ * The sample is taken by the query, which sorts on a <code>random_*</code> field seeded
+ * per request, so Solr only keeps the few top entries of a random order and the cost does
+ * not grow with the number of items that match. This processor only chooses among those
+ * few, preferring the ones with a description, tag or preview.
  */
 @Component(inherit = true, metatype=true)
 @Properties(value = {
@@ -67,6 +73,8 @@ public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatch
   public static final Logger LOGGER = LoggerFactory
   .getLogger(RandomContentSearchBatchResultProcessor.class);
 
+  private final Random random = new Random();
+
 
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query) throws SolrSearchException {
 
@@ -95,7 +103,7 @@ public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatch
     List<Result> standardResults = Lists.newArrayList();
 
     Iterator<Result> results = rs.getResultSetIterator();
-    while (results.hasNext()) {
+    for (int i = 0; i < newItemsInt && results.hasNext(); i++) {
       Result result = results.next();
       if (result.getFirstValue("description") != null
           || result.getFirstValue("tag") != null
@@ -163,13 +171,13 @@ public class RandomContentSearchBatchResultProcessor extends LiteFileSearchBatch
     List<Result> picks = Lists.newArrayList();
     if (numToChoose > 0) {
       ArrayList<Result> pickList = Lists.newArrayList(results);
-      Random rand = new Random();
       int limit = Math.min(pickList.size(), numToChoose);
       for (int i = 0; i < limit; i++) {
-        // Pick the next integer limited to the original limit minus the number
-        // removed from the list. This keeps the picks from going out of bounds.
-        int choose = rand.nextInt(limit - i);
-        picks.add(pickList.remove(choose));
+        // Pick from the entries not yet picked, moving the pick to the front of the
+        // list so the rest stay together.
+        int choose = i + random.nextInt(pickList.size() - i);
+        Collections.swap(pickList, i, choose);
+        picks.add(pickList.get(i));
       }
     }
     return picks;
@@ -0,0 +1,298 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.tika.exception.TikaException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of content bodies and pages for indexing. Tika runs on a small
+ * pool of its own so that an upload it cannot cope with costs the indexer no more than
+ * the timeout, and bodies over a size limit are not parsed at all. The text is cached
+ * against the body's path and last modified time, or a hash of a page, so reindexing
+ * content whose body has not changed does not parse it again. A body that Tika failed
+ * to parse is remembered as well, and only tried again once it changes, but one that
+ * timed out or found the pool full is tried again the next time it is indexed.
+ */
+@Component(immediate = true, metatype = true)
+@Properties(value = {@Property(name = "service.vendor", value = "The Sakai Foundation")})
+@Service(value = TextExtractor.class)
+public class TextExtractor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TextExtractor.class);
+
+  static final String CACHE_NAME = TextExtractor.class.getName();
+
+  static final String BODY_LAST_MODIFIED = "_bodyLastModified";
+
+  /**
+   * The number of threads text is extracted on, 0 extracts on the indexing thread with
+   * no timeout.
+   */
+  @Property(intValue = 2)
+  static final String THREADS = "threads";
+
+  /**
+   * How long to wait for the text of one body or page, in ms. When the pool is full the
+   * indexer waits up to this long again for a place on it.
+   */
+  @Property(longValue = 30000L)
+  static final String TIMEOUT = "timeout";
+
+  /**
+   * Bodies larger than this, in bytes, are indexed without their text. 0 for no limit.
+   */
+  @Property(longValue = 52428800L)
+  static final String MAX_BODY_BYTES = "maxBodyBytes";
+
+  /**
+   * The most memory the cached text may use, in bytes.
+   */
+  @Property(longValue = 33554432L)
+  static final String CACHE_MAX_BYTES = "cacheMaxBytes";
+
+  @Reference
+  protected TikaService tika;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private Cache<String> cache;
+  private ThreadPoolExecutor executor;
+  private long timeout;
+  private long maxBodyBytes;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(THREADS), 2);
+    timeout = PropertiesUtil.toLong(props.get(TIMEOUT), 30000L);
+    maxBodyBytes = PropertiesUtil.toLong(props.get(MAX_BODY_BYTES), 52428800L);
+    long cacheMaxBytes = PropertiesUtil.toLong(props.get(CACHE_MAX_BYTES), 33554432L);
+    cache = cacheManagerService.getCache(CACHE_NAME, CacheScope.INSTANCE,
+        new Weigher<String>() {
+          public long weigh(String key, String value) {
+            return 2L * (key.length() + value.length());
+          }
+        }, cacheMaxBytes);
+    if (threads > 0) {
+      final AtomicInteger count = new AtomicInteger();
+      // when the pool is saturated the indexer waits for a place on it, but no longer
+      // than the timeout.
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Text Extraction " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+              try {
+                if (pool.isShutdown()
+                    || !pool.getQueue().offer(r, timeout, TimeUnit.MILLISECONDS)) {
+                  throw new RejectedExecutionException("Text extraction is saturated");
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+              }
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Extract the text of a content item's body.
+   *
+   * @param contentManager
+   * @param content
+   * @return the text, or null if the content has no body or its text could not be
+   *         extracted.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  public String extractBody(ContentManager contentManager, Content content)
+      throws StorageClientException, AccessDeniedException, IOException {
+    String path = content.getPath();
+    Object length = content.getProperty(Content.LENGTH_FIELD);
+    if (maxBodyBytes > 0 && length instanceof Number
+        && ((Number) length).longValue() > maxBodyBytes) {
+      LOGGER.info("Not extracting the text of {}, its body of {} bytes is over {}",
+          new Object[] { path, length, maxBodyBytes });
+      return null;
+    }
+    Object lastModified = content.getProperty(BODY_LAST_MODIFIED);
+    String key = lastModified == null ? null : "body:" + path + '@' + lastModified + ':'
+        + length;
+    if (key != null) {
+      String cached = cache.get(key);
+      if (cached != null) {
+        return cached.length() == 0 ? null : cached;
+      }
+    }
+    InputStream stream = contentManager.getInputStream(path);
+    if (stream == null) {
+      return null;
+    }
+    return extract(key, stream, path);
+  }
+
+  /**
+   * Extract the text of a page's markup.
+   *
+   * @param page
+   *          the page markup.
+   * @param path
+   *          the path of the page, for logging.
+   * @return the text, or null if it could not be extracted.
+   */
+  public String extractText(String page, String path) {
+    String key;
+    try {
+      key = "text:" + StringUtils.sha1Hash(page);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to hash {}, not caching its text: {}", path, e.getMessage());
+      key = null;
+    }
+    if (key != null) {
+      String cached = cache.get(key);
+      if (cached != null) {
+        return cached.length() == 0 ? null : cached;
+      }
+    }
+    try {
+      return extract(key, new ByteArrayInputStream(page.getBytes("UTF-8")), path);
+    } catch (IOException e) {
+      LOGGER.warn(e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Parse a stream, closing it, and cache the outcome under the key if it is not null.
+   * A parse that Tika fails is cached as the empty string. One that times out or is
+   * turned away by a saturated pool is not cached, so it is tried again next time.
+   */
+  private String extract(String key, final InputStream stream, String path) {
+    ThreadPoolExecutor pool = executor;
+    if (pool == null) {
+      try {
+        return cache(key, tika.parseToString(stream));
+      } catch (TikaException e) {
+        LOGGER.warn("Unable to extract the text of {}: {}", path, e.getMessage());
+        cache(key, "");
+      } catch (IOException e) {
+        LOGGER.warn("Unable to extract the text of {}: {}", path, e.getMessage());
+      } finally {
+        closeQuietly(stream);
+      }
+      return null;
+    }
+
+    Future<String> future;
+    try {
+      future = pool.submit(new Callable<String>() {
+        public String call() throws Exception {
+          return tika.parseToString(stream);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Text extraction is saturated, indexing {} without its text", path);
+      closeQuietly(stream);
+      return null;
+    }
+    try {
+      return cache(key, future.get(timeout, TimeUnit.MILLISECONDS));
+    } catch (TimeoutException e) {
+      LOGGER.warn("Gave up extracting the text of {} after {} ms", path, timeout);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      LOGGER.warn("Unable to extract the text of {}: {}", path, cause.getMessage());
+      if (cause instanceof TikaException) {
+        cache(key, "");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // closing the stream under a parse that is still running is usually what stops it.
+      future.cancel(true);
+      closeQuietly(stream);
+    }
+    return null;
+  }
+
+  private String cache(String key, String text) {
+    if (key != null && text != null) {
+      cache.put(key, text);
+    }
+    return text;
+  }
+
+  private static void closeQuietly(InputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+}
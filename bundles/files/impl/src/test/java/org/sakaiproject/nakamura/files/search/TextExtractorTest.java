@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.tika.exception.TikaException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TextExtractorTest {
+
+  private static final String PATH = "hESoXumAT";
+
+  @Mock
+  private TikaService tika;
+
+  @Mock
+  private CacheManagerService cacheManagerService;
+
+  @Mock
+  private Cache<String> cache;
+
+  @Mock
+  private ContentManager contentManager;
+
+  private final Map<String, String> cached = new HashMap<String, String>();
+
+  private TextExtractor extractor;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void setUp() throws Exception {
+    when(cacheManagerService.getCache(eq(TextExtractor.CACHE_NAME),
+        eq(CacheScope.INSTANCE), any(Weigher.class), anyLong())).thenReturn(cache);
+    when(cache.get(anyString())).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) {
+        return cached.get(invocation.getArguments()[0]);
+      }
+    });
+    when(cache.put(anyString(), anyString())).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        return cached.put((String) args[0], (String) args[1]);
+      }
+    });
+    when(contentManager.getInputStream(PATH)).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) {
+        return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+      }
+    });
+
+    extractor = new TextExtractor();
+    extractor.tika = tika;
+    extractor.cacheManagerService = cacheManagerService;
+    extractor.activate(ImmutableMap.of(TextExtractor.TIMEOUT, 200L,
+        TextExtractor.MAX_BODY_BYTES, 1000L));
+  }
+
+  @After
+  public void tearDown() {
+    extractor.deactivate();
+  }
+
+  @Test
+  public void testBodyParsedOncePerChange() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenReturn("extracted");
+
+    assertEquals("extracted", extractor.extractBody(contentManager, body(1L, 3L)));
+    assertEquals("extracted", extractor.extractBody(contentManager, body(1L, 3L)));
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+
+    assertEquals("extracted", extractor.extractBody(contentManager, body(2L, 3L)));
+    verify(tika, times(2)).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testLargeBodySkipped() throws Exception {
+    assertNull(extractor.extractBody(contentManager, body(1L, 1001L)));
+    verify(contentManager, never()).getInputStream(PATH);
+  }
+
+  @Test
+  public void testFailureRemembered() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenThrow(
+        new TikaException("malformed"));
+
+    assertNull(extractor.extractBody(contentManager, body(1L, 3L)));
+    assertNull(extractor.extractBody(contentManager, body(1L, 3L)));
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testTimeoutNotRemembered() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Exception {
+        Thread.sleep(5000);
+        return "too late";
+      }
+    });
+
+    long started = System.currentTimeMillis();
+    assertNull(extractor.extractBody(contentManager, body(1L, 3L)));
+    assertEquals(true, System.currentTimeMillis() - started < 5000);
+    assertNull(extractor.extractBody(contentManager, body(1L, 3L)));
+    verify(tika, times(2)).parseToString(any(InputStream.class));
+    assertEquals(false, cached.containsValue(""));
+  }
+
+  @Test
+  public void testPagesCachedByHash() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenReturn("page text");
+
+    assertEquals("page text", extractor.extractText("<p>page text</p>", "a/id1"));
+    assertEquals("page text", extractor.extractText("<p>page text</p>", "b/id2"));
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+  }
+
+  private Content body(long lastModified, long length) {
+    return new Content(PATH, ImmutableMap.of(TextExtractor.BODY_LAST_MODIFIED,
+        (Object) lastModified, Content.LENGTH_FIELD, length));
+  }
+}
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.api.http.cache;
 import org.sakaiproject.nakamura.api.http.cache.Operation;
 import org.sakaiproject.nakamura.http.cache.OperationResponseCapture;
 import org.sakaiproject.nakamura.http.cache.OperationResponseReplay;
+import org.sakaiproject.nakamura.api.memory.Weighable;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -29,7 +30,7 @@ import javax.servlet.http.HttpServletResponse;
 /**
   A pojo to contain the response redo log and content.
  */
-public class CachedResponse implements Serializable {
+public class CachedResponse implements Serializable, Weighable {
 
   /**
    *
@@ -57,6 +58,23 @@ public class CachedResponse implements Serializable {
     responseOperation.replay(response);
   }
 
+  /**
+   * {@inheritDoc}
+   * The body dominates, the redo log is counted at a rough size per header operation.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Weighable#getWeight()
+   */
+  public long getWeight() {
+    long weight = 64L + 64L * operations.length;
+    if (byteContent != null) {
+      weight += 16 + byteContent.length;
+    }
+    if (stringContent != null) {
+      weight += 40 + 2L * stringContent.length();
+    }
+    return weight;
+  }
+
   @Override
   public String toString() {
     return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
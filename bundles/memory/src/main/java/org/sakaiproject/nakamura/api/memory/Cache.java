@@ -56,6 +56,22 @@ public interface Cache<V> {
    */
   V get(String key);
 
+  /**
+   * Get the entry for the key, loading it with the loader if it is not in the cache.
+   * Only one load per key is in flight at a time; other callers asking for the same key
+   * while it is loading wait for that load to finish and receive its result.
+   *
+   * @param key
+   *          The cache key.
+   * @param loader
+   *          Loads the value if it is not present.
+   * @return The cached or loaded payload, or null if the loader returned null.
+   * @throws CacheLoaderException
+   *           if the loader failed with a checked exception, runtime exceptions from
+   *           the loader are thrown unchanged.
+   */
+  V getOrLoad(String key, CacheLoader<V> loader);
+
   /**
    * Clear all entries.
    */
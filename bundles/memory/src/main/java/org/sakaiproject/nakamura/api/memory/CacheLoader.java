@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Loads a value into a cache when it is not already present. Used with
+ * {@link Cache#getOrLoad(String, CacheLoader)}.
+ */
+public interface CacheLoader<V> {
+
+  /**
+   * Load the value for a key that was not found in the cache.
+   *
+   * @param key
+   *          The cache key.
+   * @return the value to cache, or null if there is no value, in which case nothing is
+   *         cached.
+   * @throws Exception
+   *           if the value could not be loaded. The exception is passed to every caller
+   *           waiting on the load, wrapped in a {@link CacheLoaderException} if it is
+   *           checked.
+   */
+  V load(String key) throws Exception;
+
+}
@@ -37,6 +37,39 @@ public interface CacheManagerService {
    */
   <T> Cache<T> getCache(String name, CacheScope scope);
 
+  /**
+   * Get a cache that is bounded by the total size of its entries in bytes as well as by
+   * the entry count in its configuration. Once the limit is passed the least recently
+   * used entries are evicted. Only INSTANCE, CLUSTERINVALIDATED and CLUSTERREPLICATED
+   * caches can be bounded, REQUEST and THREAD caches are returned unbounded. A limit
+   * configured for the cache in the cache manager overrides maxBytes. The weigher is
+   * attached the first time it is seen, so callers should pass the same instance on every
+   * call.
+   *
+   * @param <T> The type of the elements.
+   * @param name the name of the cache.
+   * @param scope the scope of the cache.
+   * @param weigher measures the size of each entry.
+   * @param maxBytes the limit on the total size of the entries.
+   * @return the cache suitable for holding the type T
+   */
+  <T> Cache<T> getCache(String name, CacheScope scope, Weigher<? super T> weigher,
+      long maxBytes);
+
+  /**
+   * Get an entry from the named cache, loading it if it is not there. Concurrent
+   * callers for the same key share a single load.
+   *
+   * @param <T> The type of the elements.
+   * @param name the name of the cache.
+   * @param scope the scope of the cache.
+   * @param key the cache key.
+   * @param loader loads the value if it is not in the cache.
+   * @return the cached or loaded value.
+   * @see Cache#getOrLoad(String, CacheLoader)
+   */
+  <T> T getOrLoad(String name, CacheScope scope, String key, CacheLoader<T> loader);
+
   /**
    * Unbind the the context specified in scope.
    *
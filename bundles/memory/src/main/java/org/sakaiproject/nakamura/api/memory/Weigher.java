@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Measures the approximate number of bytes of heap held by a cache entry, so that a
+ * cache can be bounded by the memory it uses rather than the number of entries.
+ *
+ * @see CacheManagerService#getCache(String, CacheScope, Weigher, long)
+ */
+public interface Weigher<V> {
+
+  /**
+   * @param key
+   *          the cache key.
+   * @param value
+   *          the cached value, never null.
+   * @return the approximate size of the entry in bytes, at least 1.
+   */
+  long weigh(String key, V value);
+
+}
@@ -23,7 +23,9 @@ import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +49,11 @@ public class CacheImpl<V> implements Cache<V> {
   private CacheScope scope;
   private boolean checkPayloadClasses;
   private Set<String> loadedClasses = Sets.newHashSet();
+  private KeyIndex keyIndex;
+  private LoadCoalescer<V> loadCoalescer = new LoadCoalescer<V>();
+  private OffHeapStore offHeapStore;
+  private OffHeapTierListener offHeapTier;
+  private WeightTracker weightTracker;
 
   /**
    * @param cacheManager
@@ -70,6 +77,7 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    keyIndex = KeyIndexListener.bind(cache).getIndex();
     checkPayloadClasses = false;
     CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
     if ( CacheScope.CLUSTERREPLICATED.equals(scope) || cacheConfiguration.isDiskPersistent() || cacheConfiguration.isEternal() || cacheConfiguration.isOverflowToDisk()) {
@@ -79,13 +87,72 @@ public class CacheImpl<V> implements Cache<V> {
     // a way of finding that out from the Cache Configuration object.
   }
 
+  /**
+   * Add an off heap tier behind this cache. Entries evicted from the heap are moved into
+   * the store, and moved back onto the heap when they are next read.
+   *
+   * @param offHeapStore
+   */
+  public void setOffHeapStore(OffHeapStore offHeapStore) {
+    this.offHeapStore = offHeapStore;
+    offHeapTier = new OffHeapTierListener(offHeapStore);
+    cache.getCacheEventNotificationService().registerListener(offHeapTier);
+  }
+
+  /**
+   * Bound this cache by the total weight of its entries as well as by the entry count in
+   * its configuration. Once the weight is over the limit the least recently used entries
+   * are evicted, into the off heap tier if there is one.
+   *
+   * @param weigher
+   *          measures the entries.
+   * @param maxBytes
+   *          the limit on the total weight.
+   * @return the tracker holding the weights.
+   */
+  public synchronized WeightTracker setWeigher(Weigher<? super V> weigher, long maxBytes) {
+    if (weightTracker != null) {
+      cache.getCacheEventNotificationService().unregisterListener(weightTracker);
+    }
+    WeightTracker tracker = new WeightTracker(weigher, maxBytes);
+    cache.getCacheEventNotificationService().registerListener(tracker);
+    tracker.seed(cache);
+    weightTracker = tracker;
+    evictOverweight();
+    return tracker;
+  }
+
+  /**
+   * Evict least recently used entries until the cache is back under its weight limit.
+   * The removals are not replicated, since each node holds its own limit.
+   */
+  private void evictOverweight() {
+    WeightTracker tracker = weightTracker;
+    if (tracker == null) {
+      return;
+    }
+    for (String k : tracker.overweight()) {
+      Element e = cache.getQuiet(k);
+      if (cache.remove(k, true)) {
+        tracker.evicted();
+        if (offHeapTier != null && e != null) {
+          offHeapTier.demote(e);
+        }
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
    */
   public void clear() {
+    loadCoalescer.invalidate();
     cache.removeAll();
+    if (offHeapStore != null) {
+      offHeapStore.clear();
+    }
   }
 
   /**
@@ -94,7 +161,7 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
    */
   public boolean containsKey(String key) {
-    return cache.isKeyInCache(key);
+    return cache.isKeyInCache(key) || (offHeapStore != null && offHeapStore.containsKey(key));
   }
 
   /**
@@ -106,11 +173,80 @@ public class CacheImpl<V> implements Cache<V> {
   public V get(String key) {
     Element e = cache.get(key);
     if (e == null) {
+      if (offHeapStore != null) {
+        return promote(key);
+      }
       return null;
     }
+    if (weightTracker != null) {
+      weightTracker.touch(key);
+    }
     return (V) e.getObjectValue();
   }
 
+  /**
+   * Move an entry from the off heap tier back onto the heap. A value put on the heap
+   * while the entry was being read back is newer, so it wins over the promoted one.
+   *
+   * @param key
+   * @return the value, or null if it was not in either tier.
+   */
+  @SuppressWarnings("unchecked")
+  private V promote(String key) {
+    OffHeapStore.Entry entry = offHeapStore.take(key);
+    if (entry == null) {
+      // another thread may have promoted it, or put a new value, since we looked.
+      Element e = cache.get(key);
+      return e == null ? null : (V) e.getObjectValue();
+    }
+    ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    Object value;
+    try {
+      Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+      value = CompactSerializer.deserialize(entry.getValue());
+    } finally {
+      Thread.currentThread().setContextClassLoader(cl);
+    }
+    if (value == null) {
+      return null;
+    }
+    Element element = new Element(key, value);
+    if (entry.getExpires() > 0) {
+      // keep the original expiry rather than granting a new time to live.
+      long ttl = (entry.getExpires() - System.currentTimeMillis()) / 1000L;
+      if (ttl <= 0) {
+        return null;
+      }
+      element.setTimeToLive((int) Math.min(ttl, Integer.MAX_VALUE));
+    }
+    Element resident = cache.putIfAbsent(element);
+    if (resident != null) {
+      return (V) resident.getObjectValue();
+    }
+    evictOverweight();
+    return (V) value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, CacheLoader<V> loader) {
+    V value = get(key);
+    if (value != null) {
+      return value;
+    }
+    return loadCoalescer.load(key, loader, this);
+  }
+
+  /**
+   * @return the coalescer that runs read-through loads for this cache.
+   */
+  public LoadCoalescer<V> getLoadCoalescer() {
+    return loadCoalescer;
+  }
+
   /**
    * {@inherit-doc}
    * 
@@ -161,7 +297,11 @@ public class CacheImpl<V> implements Cache<V> {
 				Thread.currentThread().setContextClassLoader(cl);
 			}
 		}
+		if (offHeapStore != null) {
+			offHeapStore.remove(key);
+		}
 		cache.put(new Element(key, payload));
+		evictOverweight();
 		return previous;
   }
 
@@ -171,7 +311,11 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
+    loadCoalescer.invalidate();
     cache.remove(key);
+    if (offHeapStore != null) {
+      offHeapStore.remove(key);
+    }
   }
 
   /**
@@ -180,14 +324,16 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    loadCoalescer.invalidate();
     cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
+    if (offHeapStore != null) {
+      offHeapStore.remove(key);
+      offHeapStore.removeChildren(key);
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    for (String k : keyIndex.children(key)) {
+      if (!cache.remove(k)) {
+        // already gone from the cache without a notification, drop the stale key.
+        keyIndex.remove(k);
       }
     }
   }
@@ -19,17 +19,25 @@ package org.sakaiproject.nakamura.memory;
 
 import com.google.common.collect.Maps;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Status;
 import net.sf.ehcache.management.ManagementService;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,13 +52,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
@@ -62,6 +79,13 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   public static final String DEFAULT_CACHE_CONFIG = "sling/ehcacheConfig.xml";
   public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
   public static final String DEFAULT_CACHE_STORE = "sling/ehcacheStore";
+  public static final boolean DEFAULT_CLUSTER_INVALIDATION = true;
+  public static final long DEFAULT_CLUSTER_INVALIDATION_WINDOW = 100L;
+  public static final int DEFAULT_OFFHEAP_SIZE_MB = 0;
+  public static final int OFFHEAP_SEGMENTS = 16;
+  public static final boolean DEFAULT_SNAPSHOT_ENABLED = false;
+  public static final long DEFAULT_SNAPSHOT_TTL = 300L;
+  public static final long DEFAULT_SNAPSHOT_MAX_AGE = 3600L;
 
   @Property( value = DEFAULT_CACHE_CONFIG)
   public static final String CACHE_CONFIG = "cache-config";
@@ -72,18 +96,128 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  /**
+   * If true CLUSTERINVALIDATED caches are kept local and their removals sent to the
+   * other nodes over JMS, if false they are left to the ehcache configuration.
+   */
+  @Property(boolValue = DEFAULT_CLUSTER_INVALIDATION)
+  public static final String CLUSTER_INVALIDATION = "cluster-invalidation";
+
+  /**
+   * The time in ms over which removals are collected before being sent to the cluster.
+   */
+  @Property(longValue = DEFAULT_CLUSTER_INVALIDATION_WINDOW)
+  public static final String CLUSTER_INVALIDATION_WINDOW = "cluster-invalidation-window";
+
+  /**
+   * The caches that get an off heap tier, if offheap-size-mb is more than 0.
+   */
+  @Property(value = { "accessControlCache", "authorizableCache", "contentCache" })
+  public static final String OFFHEAP_CACHES = "offheap-caches";
+
+  /**
+   * The size of the off heap tier of each cache in offheap-caches, in MB. 0 disables the
+   * off heap tier.
+   */
+  @Property(intValue = DEFAULT_OFFHEAP_SIZE_MB)
+  public static final String OFFHEAP_SIZE_MB = "offheap-size-mb";
+
+  /**
+   * If set, the off heap tiers are memory mapped files in this directory rather than
+   * direct memory.
+   */
+  @Property(value = "")
+  public static final String OFFHEAP_DIR = "offheap-dir";
+
+  /**
+   * Limits on the total size of the entries of named caches, as name=bytes. A limit here
+   * overrides one given in code, caches without a weigher of their own are measured with
+   * an estimate.
+   */
+  @Property(value = {
+      "org.sakaiproject.nakamura.http.cache.CacheControlFilter-cache=67108864",
+      "org.sakaiproject.nakamura.batch.WidgetServiceImpl_files=33554432" })
+  public static final String CACHE_MAX_BYTES = "cache-max-bytes";
+
+  /**
+   * If true the caches in snapshot-caches are written to the cache-store when the
+   * service stops and reloaded when it starts.
+   */
+  @Property(boolValue = DEFAULT_SNAPSHOT_ENABLED)
+  public static final String SNAPSHOT_ENABLED = "snapshot-enabled";
+
+  /**
+   * The caches that are snapshot, only INSTANCE and CLUSTERINVALIDATED caches hold
+   * entries that are worth keeping.
+   */
+  @Property(value = { "accessControlCache", "authorizableCache" })
+  public static final String SNAPSHOT_CACHES = "snapshot-caches";
+
+  /**
+   * The longest, in seconds, a reloaded entry is served before it must be fetched again.
+   */
+  @Property(longValue = DEFAULT_SNAPSHOT_TTL)
+  public static final String SNAPSHOT_TTL = "snapshot-ttl";
+
+  /**
+   * Snapshots older than this, in seconds, are discarded rather than reloaded.
+   */
+  @Property(longValue = DEFAULT_SNAPSHOT_MAX_AGE)
+  public static final String SNAPSHOT_MAX_AGE = "snapshot-max-age";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   @Property(value = "Cache Manager Service Implementation")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  static final String JMX_DOMAIN = "org.sakaiproject.nakamura.memory";
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private ConcurrentMap<String, CacheStatistics> statistics = new ConcurrentHashMap<String, CacheStatistics>();
+  private List<ObjectName> registeredMBeans = new CopyOnWriteArrayList<ObjectName>();
+  private Map<String, Cache<?>> localInvalidatedCaches = new ConcurrentHashMap<String, Cache<?>>();
+  private Map<String, CacheImpl<?>> boundableCaches = new ConcurrentHashMap<String, CacheImpl<?>>();
+  private Map<String, Weigher<?>> weighers = new ConcurrentHashMap<String, Weigher<?>>();
+  private Map<String, Long> maxBytes = new HashMap<String, Long>();
+  private Weigher<Object> estimatingWeigher = new EstimatingWeigher();
+  private CacheSnapshot cacheSnapshot;
+  private Set<String> snapshotCaches = new HashSet<String>();
+  private ClusterInvalidator clusterInvalidator = new ClusterInvalidator(
+      new ClusterInvalidator.Receiver() {
+        public void remove(String cacheName, String key) {
+          Cache<?> cache = localInvalidatedCaches.get(cacheName);
+          if (cache != null) {
+            cache.remove(key);
+          }
+        }
+
+        public void removeChildren(String cacheName, String key) {
+          Cache<?> cache = localInvalidatedCaches.get(cacheName);
+          if (cache != null) {
+            cache.removeChildren(key);
+          }
+        }
+
+        public void clear(String cacheName) {
+          Cache<?> cache = localInvalidatedCaches.get(cacheName);
+          if (cache != null) {
+            cache.clear();
+          }
+        }
+      }, DEFAULT_CLUSTER_INVALIDATION_WINDOW);
+  private boolean clusterInvalidation = DEFAULT_CLUSTER_INVALIDATION;
+  private Set<String> offHeapCaches = new HashSet<String>();
+  private long offHeapSize;
+  private String offHeapDir;
+  private boolean active;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  private ConnectionFactoryService connectionFactoryService;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -126,6 +260,21 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
    @Activate
    protected void activate(Map<String, Object> properties) throws FileNotFoundException, IOException {
+	  clusterInvalidation = PropertiesUtil.toBoolean(properties.get(CLUSTER_INVALIDATION), DEFAULT_CLUSTER_INVALIDATION);
+	  clusterInvalidator.setWindowMillis(PropertiesUtil.toLong(properties.get(CLUSTER_INVALIDATION_WINDOW), DEFAULT_CLUSTER_INVALIDATION_WINDOW));
+	  offHeapCaches = new HashSet<String>(Arrays.asList(PropertiesUtil.toStringArray(properties.get(OFFHEAP_CACHES), new String[0])));
+	  offHeapSize = PropertiesUtil.toInteger(properties.get(OFFHEAP_SIZE_MB), DEFAULT_OFFHEAP_SIZE_MB) * 1024L * 1024L;
+	  offHeapDir = PropertiesUtil.toString(properties.get(OFFHEAP_DIR), "");
+	  if (PropertiesUtil.toBoolean(properties.get(SNAPSHOT_ENABLED), DEFAULT_SNAPSHOT_ENABLED)) {
+	    snapshotCaches = new HashSet<String>(Arrays.asList(PropertiesUtil.toStringArray(properties.get(SNAPSHOT_CACHES), new String[0])));
+	    cacheSnapshot = new CacheSnapshot(new File(PropertiesUtil.toString(properties.get(CACHE_STORE), DEFAULT_CACHE_STORE)),
+	        PropertiesUtil.toLong(properties.get(SNAPSHOT_TTL), DEFAULT_SNAPSHOT_TTL),
+	        PropertiesUtil.toLong(properties.get(SNAPSHOT_MAX_AGE), DEFAULT_SNAPSHOT_MAX_AGE));
+	  } else {
+	    snapshotCaches = new HashSet<String>();
+	    cacheSnapshot = null;
+	  }
+	  maxBytes = parseMaxBytes(PropertiesUtil.toStringArray(properties.get(CACHE_MAX_BYTES), new String[0]));
 	  String config = PropertiesUtil.toString(properties.get(CACHE_CONFIG), DEFAULT_CACHE_CONFIG);
 	  File configFile = new File(config);
 	  ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -156,8 +305,51 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 		  Thread.currentThread().setContextClassLoader(cl);
 		  LOGGER.info("Context Classloader reset was {} now {} ",this.getClass().getClassLoader(),cl);
 	  }
+	  loadSnapshots();
+	  synchronized (this) {
+	    active = true;
+	    if (clusterInvalidation && connectionFactoryService != null) {
+	      clusterInvalidator.connect(connectionFactoryService.getDefaultConnectionFactory());
+	    }
+	  }
    }
 
+  /**
+   * @param limits
+   *          name=bytes pairs.
+   * @return the limits by cache name.
+   */
+  private Map<String, Long> parseMaxBytes(String[] limits) {
+    Map<String, Long> parsed = new HashMap<String, Long>();
+    for (String limit : limits) {
+      int i = limit.lastIndexOf('=');
+      if (i <= 0) {
+        LOGGER.warn("Ignoring cache size limit {}, expected name=bytes ", limit);
+        continue;
+      }
+      try {
+        parsed.put(limit.substring(0, i).trim(), Long.parseLong(limit.substring(i + 1).trim()));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring cache size limit {}, expected name=bytes ", limit);
+      }
+    }
+    return parsed;
+  }
+
+  protected synchronized void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    if (active && clusterInvalidation) {
+      clusterInvalidator.connect(connectionFactoryService.getDefaultConnectionFactory());
+    }
+  }
+
+  protected synchronized void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      clusterInvalidator.disconnect();
+      this.connectionFactoryService = null;
+    }
+  }
+
   protected InputStream processConfig(InputStream configFile, Map<String,Object> properties) {
     StringBuilder config = new StringBuilder();
     Pattern p = Pattern.compile("\\$\\{([\\S]+)}");
@@ -178,14 +370,68 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
   }
 
+  @Deactivate
+  protected void deactivate() {
+    stop();
+  }
+
   /**
    * perform a shutdown
    */
   public void stop() {
+    clusterInvalidator.disconnect();
+    saveSnapshots();
     cacheManager.shutdown();
+    unregisterMBeans();
     // we really want to notify all threads that have maps
   }
 
+  /**
+   * Warm the snapshot caches from the snapshots written when the service last stopped.
+   */
+  private void loadSnapshots() {
+    if (cacheSnapshot == null) {
+      return;
+    }
+    for (String name : snapshotCaches) {
+      net.sf.ehcache.Cache cache;
+      synchronized (cacheManager) {
+        cache = cacheManager.getCache(name);
+        if (cache == null) {
+          cacheManager.addCache(name);
+          cache = cacheManager.getCache(name);
+        }
+      }
+      if (cache != null) {
+        int n = cacheSnapshot.load(cache);
+        if (n > 0) {
+          LOGGER.info("Loaded {} entries into cache {} from its snapshot ", n, name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the snapshot caches out so they can be reloaded when the service next starts.
+   */
+  private void saveSnapshots() {
+    if (cacheSnapshot == null || !Status.STATUS_ALIVE.equals(cacheManager.getStatus())) {
+      return;
+    }
+    for (String name : snapshotCaches) {
+      net.sf.ehcache.Cache cache = cacheManager.getCache(name);
+      if (cache == null) {
+        continue;
+      }
+      try {
+        int n = cacheSnapshot.save(cache);
+        LOGGER.info("Saved {} entries of cache {} to its snapshot ", n, name);
+      } catch (IOException e) {
+        LOGGER.warn("Unable to save a snapshot of cache " + name + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -196,6 +442,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name, scope);
     case CLUSTERINVALIDATED:
+      if (clusterInvalidation && name != null) {
+        return getClusterInvalidatedCache(name);
+      }
       return getInstanceCache(name, scope);
     case CLUSTERREPLICATED:
       return getInstanceCache(name, scope);
@@ -208,6 +457,30 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#getCache(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheScope, org.sakaiproject.nakamura.api.memory.Weigher, long)
+   */
+  public <V> Cache<V> getCache(String name, CacheScope scope, Weigher<? super V> weigher,
+      long maxBytes) {
+    Cache<V> cache = getCache(name, scope);
+    if (name != null && weigher != null && weighers.get(name) != weigher) {
+      attachWeigher(name, weigher, maxBytes);
+    }
+    return cache;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#getOrLoad(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheScope, java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public <T> T getOrLoad(String name, CacheScope scope, String key, CacheLoader<T> loader) {
+    Cache<T> cache = getCache(name, scope);
+    return cache.getOrLoad(key, loader);
+  }
+
   /**
    * Generate a cache bound to the thread.
    *
@@ -219,7 +492,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>(name, CacheScope.THREAD);
+      threadCache = new InstrumentedCache<V>(new MapCacheImpl<V>(name, CacheScope.THREAD),
+          getStatistics(name, CacheScope.THREAD));
       threadCacheMap.put(name, threadCache);
     }
     return threadCache;
@@ -236,7 +510,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
     Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>(name, CacheScope.REQUEST);
+      requestCache = new InstrumentedCache<V>(new MapCacheImpl<V>(name, CacheScope.REQUEST),
+          getStatistics(name, CacheScope.REQUEST));
       requestCacheMap.put(name, requestCache);
     }
     return requestCache;
@@ -249,17 +524,169 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
     if (name == null) {
-      return new CacheImpl<V>(cacheManager, null, scope);
+      return new InstrumentedCache<V>(new CacheImpl<V>(cacheManager, null, scope),
+          getStatistics("default", scope));
     } else {
       Cache<V> c = (Cache<V>) caches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name, scope);
+        CacheImpl<V> cacheImpl = new CacheImpl<V>(cacheManager, name, scope);
+        attachOffHeapTier(cacheImpl, name);
+        boundableCaches.put(name, cacheImpl);
+        if (maxBytes.containsKey(name)) {
+          attachWeigher(name, estimatingWeigher, 0);
+        }
+        registerMBean(cacheImpl.getLoadCoalescer(), "CacheLoads", name, null);
+        c = new InstrumentedCache<V>(cacheImpl, getStatistics(name, scope));
         caches.put(name, c);
       }
       return c;
     }
   }
 
+  /**
+   * Get a CLUSTERINVALIDATED cache, which holds its values locally and sends its removals
+   * to the rest of the cluster.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterInvalidatedCache(String name) {
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c == null) {
+      CacheImpl<V> cacheImpl = new CacheImpl<V>(cacheManager, name, CacheScope.CLUSTERINVALIDATED);
+      attachOffHeapTier(cacheImpl, name);
+      boundableCaches.put(name, cacheImpl);
+      if (maxBytes.containsKey(name)) {
+        attachWeigher(name, estimatingWeigher, 0);
+      }
+      registerMBean(cacheImpl.getLoadCoalescer(), "CacheLoads", name, null);
+      localInvalidatedCaches.put(name, cacheImpl);
+      c = new InstrumentedCache<V>(new ClusterInvalidatedCache<V>(name, cacheImpl,
+          clusterInvalidator), getStatistics(name, CacheScope.CLUSTERINVALIDATED));
+      caches.put(name, c);
+    }
+    return c;
+  }
+
+  /**
+   * Bound a cache by the weight of its entries. The limit in the configuration, if there
+   * is one, takes precedence over the limit given.
+   *
+   * @param name
+   * @param weigher
+   * @param limit
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized void attachWeigher(String name, Weigher<?> weigher, long limit) {
+    CacheImpl<Object> cacheImpl = (CacheImpl<Object>) boundableCaches.get(name);
+    if (cacheImpl == null || weighers.get(name) == weigher) {
+      return;
+    }
+    Long configured = maxBytes.get(name);
+    if (configured != null) {
+      limit = configured;
+    }
+    if (limit <= 0) {
+      return;
+    }
+    WeightTracker tracker = cacheImpl.setWeigher((Weigher<Object>) weigher, limit);
+    weighers.put(name, weigher);
+    registerMBean(tracker, "CacheWeight", name, null);
+    LOGGER.info("Cache {} is limited to {} bytes ", name, limit);
+  }
+
+  /**
+   * Give the cache an off heap tier if it is configured to have one.
+   *
+   * @param cacheImpl
+   * @param name
+   */
+  private void attachOffHeapTier(CacheImpl<?> cacheImpl, String name) {
+    if (offHeapSize <= 0 || !offHeapCaches.contains(name)) {
+      return;
+    }
+    File file = null;
+    if (offHeapDir != null && offHeapDir.length() > 0) {
+      File dir = new File(offHeapDir);
+      dir.mkdirs();
+      file = new File(dir, name + ".offheap");
+    }
+    try {
+      cacheImpl.setOffHeapStore(new OffHeapStore(offHeapSize, OFFHEAP_SEGMENTS, file));
+      LOGGER.info("Cache {} has an off heap tier of {} bytes ", name, offHeapSize);
+    } catch (IOException e) {
+      LOGGER.error("Unable to create off heap tier for cache " + name + ", using the heap only "
+          + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Get the statistics shared by all the caches with this name and scope, creating and
+   * exporting them over JMX the first time they are asked for.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  private CacheStatistics getStatistics(String name, CacheScope scope) {
+    String key = scope + "/" + name;
+    CacheStatistics cacheStatistics = statistics.get(key);
+    if (cacheStatistics == null) {
+      cacheStatistics = new CacheStatistics(name, scope);
+      CacheStatistics existing = statistics.putIfAbsent(key, cacheStatistics);
+      if (existing != null) {
+        return existing;
+      }
+      registerMBean(cacheStatistics, CacheStatisticsMBean.TYPE, name, scope);
+    }
+    return cacheStatistics;
+  }
+
+  /**
+   * Register an MBean for a cache in the platform MBean server, replacing any left over
+   * from a previous instance of this service.
+   *
+   * @param mbean
+   * @param type
+   * @param name
+   * @param scope
+   *          the scope to include in the object name, or null for none.
+   */
+  private void registerMBean(Object mbean, String type, String name, CacheScope scope) {
+    try {
+      StringBuilder objectName = new StringBuilder(JMX_DOMAIN).append(":type=").append(type);
+      if (scope != null) {
+        objectName.append(",scope=").append(scope);
+      }
+      objectName.append(",name=").append(ObjectName.quote(name));
+      ObjectName on = new ObjectName(objectName.toString());
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(on)) {
+        mBeanServer.unregisterMBean(on);
+      }
+      mBeanServer.registerMBean(mbean, on);
+      registeredMBeans.add(on);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} for cache {}: {} ",
+          new Object[] { type, name, e.getMessage() });
+    }
+  }
+
+  private void unregisterMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName on : registeredMBeans) {
+      try {
+        if (mBeanServer.isRegistered(on)) {
+          mBeanServer.unregisterMBean(on);
+        }
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}: {} ", on, e.getMessage());
+      }
+    }
+    registeredMBeans.clear();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -282,7 +709,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private void unbindThread() {
     Map<String, Cache<?>> threadCache = threadCacheMapHolder.get();
     for (Cache<?> cache : threadCache.values()) {
-      cache.clear();
+      clearUncounted(cache);
     }
     threadCacheMapHolder.remove();
   }
@@ -293,9 +720,22 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private void unbindRequest() {
     Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
     for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
+      clearUncounted(cache);
     }
     requestCacheMapHolder.remove();
   }
 
+  /**
+   * Clear a cache that is being unbound, without counting the clear in its statistics.
+   *
+   * @param cache
+   */
+  private void clearUncounted(Cache<?> cache) {
+    if (cache instanceof InstrumentedCache) {
+      ((InstrumentedCache<?>) cache).getCache().clear();
+    } else {
+      cache.clear();
+    }
+  }
+
 }
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the entries of a cache to a file when the node stops and reads them back when
+ * it starts, so the node comes back with a warm cache rather than refilling it from
+ * storage. Values are written with the {@link CompactSerializer}, those it cannot write
+ * are left out. Reloaded entries live no longer than a fixed time to live, and never
+ * beyond their original expiry, so nothing that changed while the node was down is
+ * served for long.
+ */
+public class CacheSnapshot {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshot.class);
+  private static final int MAGIC = 0x4E4B4353;
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".snapshot";
+
+  private final File dir;
+  private final long timeToLive;
+  private final long maxAge;
+
+  /**
+   * @param dir
+   *          the directory the snapshots are kept in.
+   * @param timeToLiveSeconds
+   *          the longest a reloaded entry may live.
+   * @param maxAgeSeconds
+   *          snapshots older than this are discarded rather than loaded.
+   */
+  public CacheSnapshot(File dir, long timeToLiveSeconds, long maxAgeSeconds) {
+    this.dir = dir;
+    this.timeToLive = timeToLiveSeconds * 1000L;
+    this.maxAge = maxAgeSeconds * 1000L;
+  }
+
+  /**
+   * Write the live entries of a cache to its snapshot file, replacing any snapshot
+   * already there.
+   *
+   * @param cache
+   * @return the number of entries written.
+   * @throws IOException
+   */
+  public int save(Ehcache cache) throws IOException {
+    dir.mkdirs();
+    File file = getFile(cache.getName());
+    File tmp = new File(dir, cache.getName() + SUFFIX + ".tmp");
+    int n = 0;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(tmp))));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+      for (Object k : cache.getKeys()) {
+        if (!(k instanceof String)) {
+          continue;
+        }
+        Element e = cache.getQuiet(k);
+        if (e == null || e.isExpired() || e.getObjectValue() == null) {
+          continue;
+        }
+        byte[] value = CompactSerializer.serialize(e.getObjectValue());
+        if (value == null) {
+          continue;
+        }
+        byte[] key = ((String) k).getBytes("UTF-8");
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(e.isEternal() ? 0 : e.getExpirationTime());
+        out.writeInt(value.length);
+        out.write(value);
+        n++;
+      }
+      out.writeInt(-1);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Unable to replace snapshot " + file.getAbsolutePath());
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Load the snapshot of a cache, if there is one that is recent enough, and delete it so
+   * it is never loaded twice. Entries are put without notifying the cache replicators,
+   * they are already held by the rest of the cluster if they are held at all.
+   *
+   * @param cache
+   * @return the number of entries loaded.
+   */
+  public int load(Ehcache cache) {
+    File file = getFile(cache.getName());
+    if (!file.exists()) {
+      return 0;
+    }
+    int n = 0;
+    ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    DataInputStream in = null;
+    try {
+      Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+      in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+          new FileInputStream(file))));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOGGER.info("Ignoring snapshot {} written in an unknown format ", file);
+        return 0;
+      }
+      long now = System.currentTimeMillis();
+      long created = in.readLong();
+      if (created > now || now - created > maxAge) {
+        LOGGER.info("Ignoring snapshot {}, it is too old to trust ", file);
+        return 0;
+      }
+      long latest = now + timeToLive;
+      for (int keyLength = in.readInt(); keyLength >= 0; keyLength = in.readInt()) {
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        long expires = in.readLong();
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        if (expires == 0 || expires > latest) {
+          expires = latest;
+        }
+        int ttl = (int) ((expires - now) / 1000L);
+        if (ttl <= 0) {
+          continue;
+        }
+        Object o = CompactSerializer.deserialize(value);
+        if (o == null) {
+          continue;
+        }
+        Element element = new Element(new String(key, "UTF-8"), o);
+        element.setTimeToLive(ttl);
+        cache.put(element, true);
+        n++;
+      }
+    } catch (EOFException e) {
+      LOGGER.warn("Snapshot {} was truncated, loaded {} entries ", file, n);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to load snapshot " + file + ": " + e.getMessage(), e);
+    } finally {
+      Thread.currentThread().setContextClassLoader(cl);
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      file.delete();
+    }
+    return n;
+  }
+
+  private File getFile(String cacheName) {
+    return new File(dir, cacheName + SUFFIX);
+  }
+
+}
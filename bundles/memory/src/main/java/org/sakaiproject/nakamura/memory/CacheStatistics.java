@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weighable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a named cache in one scope, updated by {@link InstrumentedCache}.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  private final String name;
+  private final CacheScope scope;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong removes = new AtomicLong();
+  private final AtomicLong removeChildren = new AtomicLong();
+  private final AtomicLong clears = new AtomicLong();
+  private final AtomicLong bytesPut = new AtomicLong();
+  private final AtomicLong unmeasuredPuts = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadFailures = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+  private final AtomicLong maxLoadNanos = new AtomicLong();
+
+  public CacheStatistics(String name, CacheScope scope) {
+    this.name = name;
+    this.scope = scope;
+  }
+
+  /**
+   * Estimate the in memory size of a payload.
+   *
+   * @param payload
+   * @return the estimated size in bytes, or -1 if the size of this type of payload can
+   *         not be measured cheaply.
+   */
+  public static long sizeOf(Object payload) {
+    if (payload instanceof Weighable) {
+      return ((Weighable) payload).getWeight();
+    } else if (payload instanceof String) {
+      return 40 + 2 * ((String) payload).length();
+    } else if (payload instanceof byte[]) {
+      return 16 + ((byte[]) payload).length;
+    } else if (payload instanceof char[]) {
+      return 16 + 2 * ((char[]) payload).length;
+    }
+    return -1;
+  }
+
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  void put(Object payload) {
+    puts.incrementAndGet();
+    long size = sizeOf(payload);
+    if (size < 0) {
+      unmeasuredPuts.incrementAndGet();
+    } else {
+      bytesPut.addAndGet(size);
+    }
+  }
+
+  void remove() {
+    removes.incrementAndGet();
+  }
+
+  void removeChildren() {
+    removeChildren.incrementAndGet();
+  }
+
+  void clear() {
+    clears.incrementAndGet();
+  }
+
+  void load(long nanos, boolean failed) {
+    loads.incrementAndGet();
+    if (failed) {
+      loadFailures.incrementAndGet();
+    }
+    loadNanos.addAndGet(nanos);
+    long max = maxLoadNanos.get();
+    while (nanos > max && !maxLoadNanos.compareAndSet(max, nanos)) {
+      max = maxLoadNanos.get();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getScope() {
+    return scope.toString();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0) {
+      return 0.0;
+    }
+    return ((double) h) / total;
+  }
+
+  public long getPuts() {
+    return puts.get();
+  }
+
+  public long getRemoves() {
+    return removes.get();
+  }
+
+  public long getRemoveChildren() {
+    return removeChildren.get();
+  }
+
+  public long getClears() {
+    return clears.get();
+  }
+
+  public long getBytesPut() {
+    return bytesPut.get();
+  }
+
+  public long getUnmeasuredPuts() {
+    return unmeasuredPuts.get();
+  }
+
+  public long getLoads() {
+    return loads.get();
+  }
+
+  public long getLoadFailures() {
+    return loadFailures.get();
+  }
+
+  public double getAverageLoadMillis() {
+    long n = loads.get();
+    if (n == 0) {
+      return 0.0;
+    }
+    return loadNanos.get() / NANOS_PER_MILLI / n;
+  }
+
+  public double getMaxLoadMillis() {
+    return maxLoadNanos.get() / NANOS_PER_MILLI;
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    removes.set(0);
+    removeChildren.set(0);
+    clears.set(0);
+    bytesPut.set(0);
+    unmeasuredPuts.set(0);
+    loads.set(0);
+    loadFailures.set(0);
+    loadNanos.set(0);
+    maxLoadNanos.set(0);
+  }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the usage of a named cache in one scope. Request and thread scoped caches
+ * are aggregated over all the threads that use them.
+ */
+public interface CacheStatisticsMBean {
+
+  /**
+   * The type key of the object names the statistics are registered under.
+   */
+  String TYPE = "CacheStatistics";
+
+  String getName();
+
+  String getScope();
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), or 0 if the cache has not been read.
+   */
+  double getHitRatio();
+
+  long getPuts();
+
+  long getRemoves();
+
+  long getRemoveChildren();
+
+  long getClears();
+
+  /**
+   * @return the estimated bytes of all the payloads put whose size could be measured.
+   */
+  long getBytesPut();
+
+  /**
+   * @return the number of puts whose payload size could not be measured.
+   */
+  long getUnmeasuredPuts();
+
+  long getLoads();
+
+  long getLoadFailures();
+
+  double getAverageLoadMillis();
+
+  double getMaxLoadMillis();
+
+  /**
+   * Reset all the counters to zero.
+   */
+  void reset();
+
+}
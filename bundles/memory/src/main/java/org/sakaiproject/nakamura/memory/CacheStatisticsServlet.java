@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+@ServiceDocumentation(name = "Cache Statistics Servlet", okForVersion = "1.2",
+    description = "Lists the usage statistics of every cache handed out by the cache manager, "
+        + "including request and thread scoped caches, which are aggregated over all threads.",
+    shortDescription = "Lists cache usage statistics",
+    bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/memory/caches"),
+    methods = @ServiceMethod(name = "GET",
+        description = { "Lists cache usage statistics as JSON, admin only.",
+            "Example<br><pre>curl -u admin:admin http://localhost:8080/system/memory/caches</pre>" },
+        response = {
+            @ServiceResponse(code = 200, description = "A JSON object with a caches array, one entry per cache name and scope."),
+            @ServiceResponse(code = 403, description = "The current user is not admin.") }))
+@SlingServlet(paths = { "/system/memory/caches" }, methods = { "GET" }, generateComponent = true, generateService = true)
+public class CacheStatisticsServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = -2467829474735720862L;
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!User.ADMIN_USER.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "You must be an admin to view cache statistics");
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      Set<ObjectName> names = new TreeSet<ObjectName>(mBeanServer.queryNames(new ObjectName(
+          CacheManagerServiceImpl.JMX_DOMAIN + ":type=" + CacheStatisticsMBean.TYPE + ",*"),
+          null));
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.object();
+      writer.key("caches");
+      writer.array();
+      for (ObjectName name : names) {
+        CacheStatisticsMBean stats = JMX.newMBeanProxy(mBeanServer, name,
+            CacheStatisticsMBean.class);
+        writer.object();
+        writer.key("name").value(stats.getName());
+        writer.key("scope").value(stats.getScope());
+        writer.key("hits").value(stats.getHits());
+        writer.key("misses").value(stats.getMisses());
+        writer.key("hitRatio").value(stats.getHitRatio());
+        writer.key("puts").value(stats.getPuts());
+        writer.key("removes").value(stats.getRemoves());
+        writer.key("removeChildren").value(stats.getRemoveChildren());
+        writer.key("clears").value(stats.getClears());
+        writer.key("bytesPut").value(stats.getBytesPut());
+        writer.key("unmeasuredPuts").value(stats.getUnmeasuredPuts());
+        writer.key("loads").value(stats.getLoads());
+        writer.key("loadFailures").value(stats.getLoadFailures());
+        writer.key("averageLoadMillis").value(stats.getAverageLoadMillis());
+        writer.key("maxLoadMillis").value(stats.getMaxLoadMillis());
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (MalformedObjectNameException e) {
+      throw new ServletException(e.getMessage(), e);
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+}
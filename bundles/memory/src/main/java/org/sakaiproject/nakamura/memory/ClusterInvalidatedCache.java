@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * A CLUSTERINVALIDATED cache. Values live only in the local cache, removals are applied
+ * locally and then sent to the other nodes by the {@link ClusterInvalidator}. A put is
+ * sent as a removal of the key, so the other nodes drop their stale copy and load the
+ * new value when they next need it; the values themselves are never sent. Values loaded
+ * by {@link #getOrLoad(String, CacheLoader)} are not new, so they are not sent.
+ */
+public class ClusterInvalidatedCache<V> implements Cache<V> {
+
+  private final String name;
+  private final Cache<V> cache;
+  private final ClusterInvalidator invalidator;
+
+  public ClusterInvalidatedCache(String name, Cache<V> cache, ClusterInvalidator invalidator) {
+    this.name = name;
+    this.cache = cache;
+    this.invalidator = invalidator;
+  }
+
+  public V put(String key, V payload) {
+    V previous = cache.put(key, payload);
+    invalidator.remove(name, key);
+    return previous;
+  }
+
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  public V get(String key) {
+    return cache.get(key);
+  }
+
+  public V getOrLoad(String key, CacheLoader<V> loader) {
+    return cache.getOrLoad(key, loader);
+  }
+
+  public void clear() {
+    cache.clear();
+    invalidator.clear(name);
+  }
+
+  public void remove(String key) {
+    cache.remove(key);
+    invalidator.remove(name, key);
+  }
+
+  public void removeChildren(String key) {
+    cache.removeChildren(key);
+    invalidator.removeChildren(name, key);
+  }
+
+  public List<V> list() {
+    return cache.list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    cache.checkCompatableScope(scope);
+  }
+
+}
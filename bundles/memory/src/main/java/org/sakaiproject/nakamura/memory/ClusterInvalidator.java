@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends and receives key invalidations for CLUSTERINVALIDATED caches over JMS. Every
+ * node keeps its own copy of the values, only removals are sent. Removals are collected
+ * for a short window and then sent as one compact message, so that a burst of removals
+ * of the same keys (eg a subtree delete) costs a single message.
+ */
+public class ClusterInvalidator implements MessageListener {
+
+  /**
+   * Applies invalidations received from other nodes to the local caches.
+   */
+  public interface Receiver {
+
+    void remove(String cacheName, String key);
+
+    void removeChildren(String cacheName, String key);
+
+    void clear(String cacheName);
+
+  }
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/INVALIDATE";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterInvalidator.class);
+
+  /**
+   * Pending invalidations for one cache.
+   */
+  private static class Batch {
+    boolean clear;
+    Set<String> keys = new LinkedHashSet<String>();
+    Set<String> children = new LinkedHashSet<String>();
+  }
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final Receiver receiver;
+  private volatile long windowMillis;
+  private final Object lock = new Object();
+  private final Object sendLock = new Object();
+  private Map<String, Batch> pending = new HashMap<String, Batch>();
+  private volatile boolean connected;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private ScheduledExecutorService flusher;
+
+  public ClusterInvalidator(Receiver receiver, long windowMillis) {
+    this.receiver = receiver;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * @param windowMillis
+   *          how long to collect removals for before sending them, takes effect on the
+   *          next connect.
+   */
+  public void setWindowMillis(long windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Connect to the cluster, after which local removals are sent to, and removals are
+   * received from, the other nodes.
+   *
+   * @param connectionFactory
+   */
+  public synchronized void connect(ConnectionFactory connectionFactory) {
+    disconnect();
+    try {
+      connection = connectionFactory.createConnection();
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(TOPIC);
+      // noLocal, we have already applied our own invalidations.
+      MessageConsumer consumer = consumerSession.createConsumer(topic, null, true);
+      consumer.setMessageListener(this);
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(producerSession.createTopic(TOPIC));
+      connection.start();
+      connected = true;
+    } catch (JMSException e) {
+      LOGGER.error("Unable to connect cache invalidation to the cluster, caches will only be invalidated locally "
+          + e.getMessage(), e);
+      closeConnection();
+      return;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cache Cluster Invalidation");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop sending and receiving invalidations, anything pending is sent first.
+   */
+  public synchronized void disconnect() {
+    if (flusher != null) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination(windowMillis * 10, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      flusher = null;
+      flush();
+    }
+    closeConnection();
+  }
+
+  public void remove(String cacheName, String key) {
+    if (connected) {
+      synchronized (lock) {
+        Batch batch = getBatch(cacheName);
+        if (!batch.clear) {
+          batch.keys.add(key);
+        }
+      }
+    }
+  }
+
+  public void removeChildren(String cacheName, String key) {
+    if (connected) {
+      synchronized (lock) {
+        Batch batch = getBatch(cacheName);
+        if (!batch.clear) {
+          batch.children.add(key);
+        }
+      }
+    }
+  }
+
+  public void clear(String cacheName) {
+    if (connected) {
+      synchronized (lock) {
+        Batch batch = getBatch(cacheName);
+        batch.clear = true;
+        batch.keys.clear();
+        batch.children.clear();
+      }
+    }
+  }
+
+  private Batch getBatch(String cacheName) {
+    Batch batch = pending.get(cacheName);
+    if (batch == null) {
+      batch = new Batch();
+      pending.put(cacheName, batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Send everything collected since the last flush as a single message.
+   */
+  void flush() {
+    Map<String, Batch> toSend;
+    synchronized (lock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      toSend = pending;
+      pending = new HashMap<String, Batch>();
+    }
+    synchronized (sendLock) {
+      if (producer == null) {
+        return;
+      }
+      try {
+        BytesMessage message = producerSession.createBytesMessage();
+        message.writeBytes(encode(nodeId, toSend));
+        producer.send(message);
+      } catch (JMSException e) {
+        LOGGER.warn("Failed to send cache invalidations to the cluster {} ", e.getMessage());
+      } catch (IOException e) {
+        LOGGER.warn("Failed to encode cache invalidations {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      decode(body);
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to read cache invalidation message {} ", e.getMessage());
+    } catch (IOException e) {
+      LOGGER.warn("Unable to decode cache invalidation message {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Apply the invalidations of a message body written by {@link #encode}, unless this
+   * node sent them.
+   */
+  private void decode(byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    String from = in.readUTF();
+    if (nodeId.equals(from)) {
+      return;
+    }
+    int caches = in.readInt();
+    for (int i = 0; i < caches; i++) {
+      String cacheName = in.readUTF();
+      if (in.readBoolean()) {
+        receiver.clear(cacheName);
+      }
+      int keys = in.readInt();
+      for (int k = 0; k < keys; k++) {
+        receiver.remove(cacheName, in.readUTF());
+      }
+      int children = in.readInt();
+      for (int k = 0; k < children; k++) {
+        receiver.removeChildren(cacheName, in.readUTF());
+      }
+    }
+  }
+
+  private static byte[] encode(String nodeId, Map<String, Batch> batches) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeUTF(nodeId);
+    out.writeInt(batches.size());
+    for (Entry<String, Batch> e : batches.entrySet()) {
+      Batch batch = e.getValue();
+      out.writeUTF(e.getKey());
+      out.writeBoolean(batch.clear);
+      out.writeInt(batch.keys.size());
+      for (String key : batch.keys) {
+        out.writeUTF(key);
+      }
+      out.writeInt(batch.children.size());
+      for (String key : batch.children) {
+        out.writeUTF(key);
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  private void closeConnection() {
+    connected = false;
+    synchronized (sendLock) {
+      producer = null;
+      producerSession = null;
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (JMSException e) {
+          LOGGER.debug("Failed to close invalidation connection {} ", e.getMessage());
+        }
+        connection = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+/**
+ * A compact binary form for cache payloads that are moved off the heap. The types found
+ * in sparse content and authorizable property maps, and the {@link CacheHolder}s that wrap
+ * them, are written with a one byte tag and no class metadata. Any other serializable
+ * value falls back to java serialization.
+ */
+public class CompactSerializer {
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte LONG = 2;
+  private static final byte INTEGER = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte CALENDAR = 6;
+  private static final byte BIG_DECIMAL = 7;
+  private static final byte MAP = 8;
+  private static final byte STRING_ARRAY = 9;
+  private static final byte BYTE_ARRAY = 10;
+  private static final byte CACHE_HOLDER = 11;
+  private static final byte SERIALIZED = 12;
+
+  private CompactSerializer() {
+  }
+
+  /**
+   * @param value
+   * @return the value as bytes, or null if it can not be serialized, in which case it
+   *         should stay on the heap.
+   */
+  public static byte[] serialize(Object value) {
+    if (value instanceof CacheHolder && ((CacheHolder) value).get() == null) {
+      // sparse locks a key while it loads it with a holder that has no map, and replaces
+      // it with an unlocked holder of the map it loaded. only the map is written, so a
+      // holder without one is a lock or a miss marker, which stays on the heap.
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(baos);
+      write(out, value);
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param bytes
+   * @return the value, or null if it could not be read.
+   */
+  public static Object deserialize(byte[] bytes) {
+    try {
+      return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    } catch (IOException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static void write(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof GregorianCalendar) {
+      Calendar c = (Calendar) value;
+      out.writeByte(CALENDAR);
+      writeString(out, c.getTimeZone().getID());
+      out.writeLong(c.getTimeInMillis());
+    } else if (value instanceof BigDecimal) {
+      out.writeByte(BIG_DECIMAL);
+      writeString(out, value.toString());
+    } else if (value instanceof String[]) {
+      String[] a = (String[]) value;
+      out.writeByte(STRING_ARRAY);
+      out.writeInt(a.length);
+      for (String s : a) {
+        writeString(out, s);
+      }
+    } else if (value instanceof byte[]) {
+      byte[] a = (byte[]) value;
+      out.writeByte(BYTE_ARRAY);
+      out.writeInt(a.length);
+      out.write(a);
+    } else if (value instanceof CacheHolder) {
+      out.writeByte(CACHE_HOLDER);
+      writeMap(out, ((CacheHolder) value).get());
+    } else if (value.getClass() == HashMap.class) {
+      // other map types go through java serialization so they keep their class.
+      out.writeByte(MAP);
+      writeMap(out, (Map<?, ?>) value);
+    } else if (value instanceof Serializable) {
+      out.writeByte(SERIALIZED);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(value);
+      oos.flush();
+      byte[] b = baos.toByteArray();
+      out.writeInt(b.length);
+      out.write(b);
+    } else {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+  }
+
+  private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+    out.writeInt(map.size());
+    for (Entry<?, ?> e : map.entrySet()) {
+      if (!(e.getKey() instanceof String)) {
+        throw new NotSerializableException("Map key " + e.getKey());
+      }
+      writeString(out, (String) e.getKey());
+      write(out, e.getValue());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    // not writeUTF, property values can be longer than 64K.
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+    byte tag = in.readByte();
+    switch (tag) {
+    case NULL:
+      return null;
+    case STRING:
+      return readString(in);
+    case LONG:
+      return in.readLong();
+    case INTEGER:
+      return in.readInt();
+    case BOOLEAN:
+      return in.readBoolean();
+    case DOUBLE:
+      return in.readDouble();
+    case CALENDAR:
+      Calendar c = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+      c.setTimeInMillis(in.readLong());
+      return c;
+    case BIG_DECIMAL:
+      return new BigDecimal(readString(in));
+    case STRING_ARRAY:
+      String[] a = new String[in.readInt()];
+      for (int i = 0; i < a.length; i++) {
+        a[i] = readString(in);
+      }
+      return a;
+    case BYTE_ARRAY:
+      byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      return b;
+    case CACHE_HOLDER:
+      return new CacheHolder(readMap(in));
+    case MAP:
+      return readMap(in);
+    case SERIALIZED:
+      byte[] s = new byte[in.readInt()];
+      in.readFully(s);
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(s));
+      return ois.readObject();
+    default:
+      throw new IOException("Unknown type tag " + tag);
+    }
+  }
+
+  private static Map<String, Object> readMap(DataInputStream in) throws IOException,
+      ClassNotFoundException {
+    int n = in.readInt();
+    Map<String, Object> map = new HashMap<String, Object>(n * 2);
+    for (int i = 0; i < n; i++) {
+      String key = readString(in);
+      map.put(key, read(in));
+    }
+    return map;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+}
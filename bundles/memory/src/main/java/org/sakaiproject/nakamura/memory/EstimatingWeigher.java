@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Weighable;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The weigher used when a cache is given a byte limit but no weigher of its own. Values
+ * that are {@link Weighable} report their own size, strings, arrays, maps and
+ * collections are estimated by walking them, anything else is measured by the length of
+ * its compact serialized form. Serializing costs about as much as the put it is weighing,
+ * so only one value in {@link #SAMPLE_RATE} of each class is serialized and the rest are
+ * given the running average for their class. The results are estimates of heap use, not
+ * exact sizes.
+ */
+public class EstimatingWeigher implements Weigher<Object> {
+
+  /**
+   * The size assumed for a value that cannot be measured.
+   */
+  static final long UNMEASURED = 1024L;
+
+  /**
+   * The rough overhead of an ehcache Element and its entry in the store.
+   */
+  private static final long ENTRY_OVERHEAD = 96L;
+  private static final long MAP_ENTRY_OVERHEAD = 32L;
+  private static final long OBJECT_OVERHEAD = 16L;
+  private static final int MAX_DEPTH = 8;
+  /**
+   * One value in this many of a class is serialized to refresh the size of that class.
+   */
+  static final int SAMPLE_RATE = 16;
+
+  private final ConcurrentMap<Class<?>, SerializedSize> serializedSizes =
+      new ConcurrentHashMap<Class<?>, SerializedSize>();
+
+  public long weigh(String key, Object value) {
+    return ENTRY_OVERHEAD + CacheStatistics.sizeOf(key) + estimate(value, 0);
+  }
+
+  private long estimate(Object value, int depth) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Weighable) {
+      return Math.max(((Weighable) value).getWeight(), 1L);
+    }
+    long size = CacheStatistics.sizeOf(value);
+    if (size >= 0) {
+      return size;
+    }
+    if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+      return OBJECT_OVERHEAD + 8;
+    }
+    if (depth < MAX_DEPTH) {
+      if (value instanceof Map<?, ?>) {
+        size = OBJECT_OVERHEAD * 3;
+        for (Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+          size += MAP_ENTRY_OVERHEAD + estimate(e.getKey(), depth + 1)
+              + estimate(e.getValue(), depth + 1);
+        }
+        return size;
+      }
+      if (value instanceof Collection<?>) {
+        size = OBJECT_OVERHEAD * 2;
+        for (Object o : (Collection<?>) value) {
+          size += 8 + estimate(o, depth + 1);
+        }
+        return size;
+      }
+      if (value instanceof Object[]) {
+        size = OBJECT_OVERHEAD;
+        for (Object o : (Object[]) value) {
+          size += 8 + estimate(o, depth + 1);
+        }
+        return size;
+      }
+    }
+    return serializedSize(value);
+  }
+
+  private long serializedSize(Object value) {
+    SerializedSize sampled = serializedSizes.get(value.getClass());
+    if (sampled == null) {
+      sampled = new SerializedSize();
+      SerializedSize existing = serializedSizes.putIfAbsent(value.getClass(), sampled);
+      if (existing != null) {
+        sampled = existing;
+      }
+    }
+    long average = sampled.average;
+    if (sampled.count.getAndIncrement() % SAMPLE_RATE != 0 && average > 0) {
+      return average;
+    }
+    byte[] serialized = CompactSerializer.serialize(value);
+    if (serialized == null) {
+      if (average <= 0) {
+        sampled.average = UNMEASURED;
+        return UNMEASURED;
+      }
+      return average;
+    }
+    long size = OBJECT_OVERHEAD + serialized.length;
+    // racing samples may lose an update, which only makes the average a little staler.
+    sampled.average = average > 0 ? (average * 3 + size) / 4 : size;
+    return size;
+  }
+
+  private static class SerializedSize {
+    private final AtomicLong count = new AtomicLong();
+    private volatile long average;
+  }
+
+}
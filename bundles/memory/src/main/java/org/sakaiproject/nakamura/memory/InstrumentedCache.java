@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * Wraps every cache handed out by the {@link CacheManagerServiceImpl}, counting its use
+ * into a {@link CacheStatistics} that is shared by all the caches of the same name and
+ * scope.
+ */
+public class InstrumentedCache<V> implements Cache<V> {
+
+  private final Cache<V> cache;
+  private final CacheStatistics statistics;
+
+  public InstrumentedCache(Cache<V> cache, CacheStatistics statistics) {
+    this.cache = cache;
+    this.statistics = statistics;
+  }
+
+  /**
+   * @return the cache being instrumented.
+   */
+  public Cache<V> getCache() {
+    return cache;
+  }
+
+  public V put(String key, V payload) {
+    statistics.put(payload);
+    return cache.put(key, payload);
+  }
+
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  public V get(String key) {
+    V value = cache.get(key);
+    if (value == null) {
+      statistics.miss();
+    } else {
+      statistics.hit();
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * A call that is served by another thread's load in flight is counted as a hit.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, final CacheLoader<V> loader) {
+    final boolean[] loaded = new boolean[1];
+    V value = cache.getOrLoad(key, new CacheLoader<V>() {
+      public V load(String key) throws Exception {
+        loaded[0] = true;
+        statistics.miss();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+          V v = loader.load(key);
+          failed = false;
+          if (v != null) {
+            statistics.put(v);
+          }
+          return v;
+        } finally {
+          statistics.load(System.nanoTime() - start, failed);
+        }
+      }
+    });
+    if (!loaded[0]) {
+      statistics.hit();
+    }
+    return value;
+  }
+
+  public void clear() {
+    statistics.clear();
+    cache.clear();
+  }
+
+  public void remove(String key) {
+    statistics.remove();
+    cache.remove(key);
+  }
+
+  public void removeChildren(String key) {
+    statistics.removeChildren();
+    cache.removeChildren(key);
+  }
+
+  public List<V> list() {
+    return cache.list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    cache.checkCompatableScope(scope);
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted secondary index over the keys of a cache. Because path keys that share a
+ * parent sort next to each other, all the children of a key can be found with a
+ * single range lookup, costing O(log n + children) rather than a scan of every key in
+ * the cache.
+ */
+public class KeyIndex {
+
+  /**
+   * The character immediately after '/', used as the exclusive upper bound of a
+   * subtree range.
+   */
+  private static final char AFTER_SEPARATOR = (char) ('/' + 1);
+
+  private final NavigableSet<String> keys;
+
+  private KeyIndex(NavigableSet<String> keys) {
+    this.keys = keys;
+  }
+
+  /**
+   * @return an index that may be updated and read from many threads.
+   */
+  public static KeyIndex newConcurrentIndex() {
+    return new KeyIndex(new ConcurrentSkipListSet<String>());
+  }
+
+  /**
+   * @return an index for use by a single thread, eg a request or thread scoped cache.
+   */
+  public static KeyIndex newLocalIndex() {
+    return new KeyIndex(new TreeSet<String>());
+  }
+
+  public void add(String key) {
+    if (key != null) {
+      keys.add(key);
+    }
+  }
+
+  public void remove(String key) {
+    if (key != null) {
+      keys.remove(key);
+    }
+  }
+
+  public void clear() {
+    keys.clear();
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Get a snapshot of all the keys below the supplied key, ie those that start with
+   * key + "/". The key itself is not included. The snapshot is safe to iterate while
+   * the cache (and so this index) is being modified.
+   *
+   * @param key
+   *          the parent key.
+   * @return a list of child keys, in sorted order.
+   */
+  public List<String> children(String key) {
+    String base = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+    return new ArrayList<String>(keys.subSet(base + "/", true, base + AFTER_SEPARATOR,
+        false));
+  }
+}
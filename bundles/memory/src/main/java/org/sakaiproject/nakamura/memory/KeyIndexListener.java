@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Keeps a {@link KeyIndex} in step with an ehcache. Ehcache notifies listeners of puts,
+ * removes, expiries and evictions, including those that arrive from other cluster
+ * members, so the index never drifts far from the real key set.
+ */
+public class KeyIndexListener implements CacheEventListener {
+
+  private final KeyIndex index = KeyIndex.newConcurrentIndex();
+
+  /**
+   * Find the listener already registered against the cache, or register a new one
+   * seeded with the keys currently in the cache.
+   *
+   * @param cache
+   * @return the listener bound to the cache.
+   */
+  public static KeyIndexListener bind(Ehcache cache) {
+    synchronized (cache) {
+      for (Object o : cache.getCacheEventNotificationService().getCacheEventListeners()) {
+        if (o instanceof KeyIndexListener) {
+          return (KeyIndexListener) o;
+        }
+      }
+      KeyIndexListener listener = new KeyIndexListener();
+      cache.getCacheEventNotificationService().registerListener(listener);
+      for (Object k : cache.getKeys()) {
+        if (k instanceof String) {
+          listener.index.add((String) k);
+        }
+      }
+      return listener;
+    }
+  }
+
+  public KeyIndex getIndex() {
+    return index;
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(element);
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    index.clear();
+  }
+
+  public void dispose() {
+    index.clear();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The key index is bound to a single cache");
+  }
+
+  private void add(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      index.add((String) element.getObjectKey());
+    }
+  }
+
+  private void remove(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      index.remove((String) element.getObjectKey());
+    }
+  }
+}
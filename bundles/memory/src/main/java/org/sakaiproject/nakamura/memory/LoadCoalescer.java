@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheLoaderException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one load per key is in flight against a cache. The first caller to
+ * miss runs the loader, any others that miss on the same key while it is running wait
+ * for, and share, its result or its exception.
+ * <p>
+ * The cache calls {@link #invalidate()} before every remove, removeChildren and clear.
+ * A load that was running at the time may hold a value read before the invalidation, so
+ * it takes its put back out of the cache, and later callers start a new load rather than
+ * join the old one.
+ */
+public class LoadCoalescer<V> implements LoadCoalescerMBean {
+
+  private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong coalescedWaiters = new AtomicLong();
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Load the key into the cache, joining a load that is already running if there is one.
+   *
+   * @param key
+   * @param loader
+   * @param cache
+   *          the cache the loaded value is put into.
+   * @return the loaded value.
+   */
+  public V load(final String key, final CacheLoader<V> loader, final Cache<V> cache) {
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      public V call() throws Exception {
+        // another load may have completed between the caller missing and this task
+        // being registered.
+        V value = cache.get(key);
+        if (value == null) {
+          long started = generation.get();
+          value = loader.load(key);
+          if (value != null) {
+            cache.put(key, value);
+            // the generation is bumped before the cache is invalidated, so either the
+            // invalidation removed this put or the change is seen here.
+            if (generation.get() != started) {
+              cache.remove(key);
+            }
+          }
+        }
+        return value;
+      }
+    });
+    FutureTask<V> running = inFlight.putIfAbsent(key, task);
+    if (running != null) {
+      coalescedWaiters.incrementAndGet();
+      return getResult(key, running);
+    }
+    loads.incrementAndGet();
+    try {
+      task.run();
+    } finally {
+      inFlight.remove(key, task);
+    }
+    return getResult(key, task);
+  }
+
+  /**
+   * Mark the loads in flight as stale. Must be called before the cache removes anything.
+   */
+  public void invalidate() {
+    generation.incrementAndGet();
+    inFlight.clear();
+  }
+
+  /**
+   * Load a value without coalescing, for caches that are only ever used by one thread.
+   *
+   * @param key
+   * @param loader
+   * @return the loaded value.
+   */
+  public static <V> V loadDirect(String key, CacheLoader<V> loader) {
+    try {
+      return loader.load(key);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new CacheLoaderException("Failed to load cache entry " + key, e);
+    }
+  }
+
+  private V getResult(String key, FutureTask<V> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CacheLoaderException("Interrupted waiting for cache entry " + key, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CacheLoaderException("Failed to load cache entry " + key, cause);
+    }
+  }
+
+  public long getLoads() {
+    return loads.get();
+  }
+
+  public long getCoalescedWaiters() {
+    return coalescedWaiters.get();
+  }
+
+  public int getInFlight() {
+    return inFlight.size();
+  }
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the read-through loads made against a single cache.
+ */
+public interface LoadCoalescerMBean {
+
+  /**
+   * @return the number of loads that were actually run.
+   */
+  long getLoads();
+
+  /**
+   * @return the number of callers that waited on a load already in flight rather than
+   *         running their own.
+   */
+  long getCoalescedWaiters();
+
+  /**
+   * @return the number of loads running now.
+   */
+  int getInFlight();
+
+}
@@ -18,26 +18,33 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
- *
+ * A cache held in a plain map, for caches bound to a single thread or request. The map
+ * is private so every change goes through the methods that keep the key index in step.
  */
-public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
+public class MapCacheImpl<V> implements Cache<V>, Serializable {
 
 
   /**
    *
    */
-  private static final long serialVersionUID = -5400056532743570231L;
+  private static final long serialVersionUID = -5400056532743570232L;
   private CacheScope scope;
   private String name;
+  private final Map<String, V> map = new HashMap<String, V>();
+  private transient KeyIndex keyIndex = KeyIndex.newLocalIndex();
 
   public MapCacheImpl(String name, CacheScope scope) {
     this.scope = scope;
@@ -49,7 +56,7 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
    */
   public boolean containsKey(String key) {
-    return super.containsKey(key);
+    return map.containsKey(key);
  }
 
   /**
@@ -57,7 +64,32 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
    */
   public V get(String key) {
-    return super.get(key);
+    return map.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * This cache is bound to a single thread, so there are no concurrent loads to coalesce.
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, CacheLoader<V> loader) {
+    V value = map.get(key);
+    if (value == null) {
+      value = LoadCoalescer.loadDirect(key, loader);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V value) {
+    keyIndex.add(key);
+    return map.put(key, value);
   }
 
   /**
@@ -65,7 +97,8 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    V o = super.remove(key);
+    keyIndex.remove(key);
+    V o = map.remove(key);
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
     }
@@ -74,17 +107,16 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
 
   /**
    * {@inheritDoc}
-   * @see java.util.HashMap#clear()
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
    */
-  @Override
   public void clear() {
-    for ( String k : super.keySet() ) {
-      Object o = get(k);
+    for ( V o : map.values() ) {
       if( o instanceof ThreadBound ) {
         ((ThreadBound) o).unbind();
       }
     }
-    super.clear();
+    map.clear();
+    keyIndex.clear();
   }
 
   /**
@@ -92,15 +124,11 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
-      }
+    keyIndex.remove(key);
+    map.remove(key);
+    for ( String k : keyIndex.children(key) ) {
+      keyIndex.remove(k);
+      map.remove(k);
     }
   }
 
@@ -109,7 +137,19 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#list()
    */
   public List<V> list() {
-    return new ArrayList<V>(super.values());
+    return new ArrayList<V>(map.values());
+  }
+
+  /**
+   * The key index is not serialized, so rebuild it from the keys of the map.
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    keyIndex = KeyIndex.newLocalIndex();
+    for (String k : map.keySet()) {
+      keyIndex.add(k);
+    }
   }
 
   public void checkCompatableScope(CacheScope scope) {
@@ -0,0 +1,293 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A byte store outside the java heap, used as a second tier behind an ehcache so that a
+ * large working set can stay resident without adding to GC cost. The memory is either
+ * direct ByteBuffers or a memory mapped file, split into segments each with its own lock.
+ * Each segment is written as a ring, when it wraps the oldest entries are overwritten,
+ * so eviction is FIFO. Only the key index is held on the heap.
+ */
+public class OffHeapStore {
+
+  private static final int HEADER = 8;
+
+  /**
+   * A value taken from the store, with the time it expires.
+   */
+  public static class Entry {
+    private final byte[] value;
+    private final long expires;
+
+    Entry(byte[] value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+
+    public byte[] getValue() {
+      return value;
+    }
+
+    /**
+     * @return the time in ms the value expires, or 0 for never.
+     */
+    public long getExpires() {
+      return expires;
+    }
+  }
+
+  /**
+   * Where an entry was written, in logical (ever increasing) segment offsets.
+   */
+  private static class Slot {
+    final String key;
+    final long logical;
+    final int length;
+
+    Slot(String key, long logical, int length) {
+      this.key = key;
+      this.logical = logical;
+      this.length = length;
+    }
+  }
+
+  private static class Segment {
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final KeyIndex keyIndex;
+    private final Map<String, Slot> index = new HashMap<String, Slot>();
+    private final ArrayDeque<Slot> written = new ArrayDeque<Slot>();
+    private long writeLogical;
+
+    Segment(ByteBuffer buffer, KeyIndex keyIndex) {
+      this.buffer = buffer;
+      this.capacity = buffer.capacity();
+      this.keyIndex = keyIndex;
+    }
+
+    synchronized boolean put(String key, byte[] value, long expires) {
+      int length = HEADER + value.length;
+      if (length > capacity) {
+        return false;
+      }
+      int pos = (int) (writeLogical % capacity);
+      if (pos + length > capacity) {
+        // entries do not wrap, skip the tail of the ring.
+        writeLogical += capacity - pos;
+        pos = 0;
+      }
+      expireBefore(writeLogical + length - capacity);
+      ByteBuffer b = buffer.duplicate();
+      b.position(pos);
+      b.putLong(expires);
+      b.put(value);
+      Slot slot = new Slot(key, writeLogical, length);
+      index.put(key, slot);
+      written.add(slot);
+      keyIndex.add(key);
+      writeLogical += length;
+      return true;
+    }
+
+    synchronized Entry get(String key) {
+      Slot slot = index.get(key);
+      if (slot == null) {
+        return null;
+      }
+      ByteBuffer b = buffer.duplicate();
+      b.position((int) (slot.logical % capacity));
+      long expires = b.getLong();
+      if (expires > 0 && expires < System.currentTimeMillis()) {
+        remove(key);
+        return null;
+      }
+      byte[] value = new byte[slot.length - HEADER];
+      b.get(value);
+      return new Entry(value, expires);
+    }
+
+    synchronized boolean contains(String key) {
+      return index.containsKey(key);
+    }
+
+    synchronized void remove(String key) {
+      // the ring entry is left to be overwritten.
+      if (index.remove(key) != null) {
+        keyIndex.remove(key);
+      }
+    }
+
+    synchronized void clear() {
+      for (String key : index.keySet()) {
+        keyIndex.remove(key);
+      }
+      index.clear();
+      written.clear();
+    }
+
+    synchronized int size() {
+      return index.size();
+    }
+
+    /**
+     * Drop every entry that started before the logical offset, they are about to be
+     * overwritten.
+     */
+    private void expireBefore(long limit) {
+      while (!written.isEmpty() && written.peek().logical < limit) {
+        Slot slot = written.poll();
+        if (index.get(slot.key) == slot) {
+          index.remove(slot.key);
+          keyIndex.remove(slot.key);
+        }
+      }
+    }
+  }
+
+  private final Segment[] segments;
+  private final KeyIndex keyIndex = KeyIndex.newConcurrentIndex();
+  private final long capacity;
+
+  /**
+   * @param capacity
+   *          total bytes to allocate.
+   * @param segmentCount
+   *          number of independently locked segments.
+   * @param file
+   *          a file to memory map, or null to use direct buffers.
+   * @throws IOException
+   *           if the file could not be mapped.
+   */
+  public OffHeapStore(long capacity, int segmentCount, File file) throws IOException {
+    long segmentCapacity = Math.min(capacity / segmentCount, Integer.MAX_VALUE);
+    this.capacity = segmentCapacity * segmentCount;
+    segments = new Segment[segmentCount];
+    if (file == null) {
+      for (int i = 0; i < segmentCount; i++) {
+        segments[i] = new Segment(ByteBuffer.allocateDirect((int) segmentCapacity), keyIndex);
+      }
+    } else {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(this.capacity);
+        FileChannel channel = raf.getChannel();
+        for (int i = 0; i < segmentCount; i++) {
+          segments[i] = new Segment(channel.map(MapMode.READ_WRITE, i * segmentCapacity,
+              segmentCapacity), keyIndex);
+        }
+      } finally {
+        // the mappings stay valid once the file is closed.
+        raf.close();
+      }
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * @param key
+   * @param value
+   * @param expires
+   *          the time in ms after which the entry is no longer returned, or 0 for never.
+   * @return false if the value is too big to store.
+   */
+  public boolean put(String key, byte[] value, long expires) {
+    return segmentFor(key).put(key, value, expires);
+  }
+
+  /**
+   * @param key
+   * @return the value, or null if it is not present, has been overwritten or has expired.
+   */
+  public byte[] get(String key) {
+    Entry entry = segmentFor(key).get(key);
+    return entry == null ? null : entry.getValue();
+  }
+
+  /**
+   * Get and remove a value, used when it is promoted back onto the heap.
+   *
+   * @param key
+   * @return the entry, or null if it is not present, has been overwritten or has expired.
+   */
+  public Entry take(String key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      Entry entry = segment.get(key);
+      if (entry != null) {
+        segment.remove(key);
+      }
+      return entry;
+    }
+  }
+
+  public boolean containsKey(String key) {
+    return segmentFor(key).contains(key);
+  }
+
+  public void remove(String key) {
+    segmentFor(key).remove(key);
+  }
+
+  /**
+   * Remove every entry below the key, see {@link KeyIndex#children(String)}.
+   *
+   * @param key
+   */
+  public void removeChildren(String key) {
+    List<String> children = keyIndex.children(key);
+    for (String child : children) {
+      remove(child);
+    }
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+}
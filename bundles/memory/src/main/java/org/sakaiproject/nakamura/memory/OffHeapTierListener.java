@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Moves entries evicted from an ehcache's heap into an {@link OffHeapStore}, keeping the
+ * time they would have expired.
+ */
+public class OffHeapTierListener implements CacheEventListener {
+
+  private final OffHeapStore store;
+
+  public OffHeapTierListener(OffHeapStore store) {
+    this.store = store;
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    demote(element);
+  }
+
+  /**
+   * Move an element that has left the heap into the off heap store.
+   *
+   * @param element
+   */
+  public void demote(Element element) {
+    if (element == null || !(element.getObjectKey() instanceof String)
+        || element.isExpired()) {
+      return;
+    }
+    byte[] bytes = CompactSerializer.serialize(element.getObjectValue());
+    if (bytes != null) {
+      long expires = element.isEternal() ? 0 : element.getExpirationTime();
+      store.put((String) element.getObjectKey(), bytes, expires);
+    }
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+  }
+
+  public void dispose() {
+    store.clear();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The off heap tier is bound to a single cache");
+  }
+
+}
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the weight of every entry in an ehcache, in least recently used order, so the
+ * cache can be held under a limit in bytes as well as the entry count in its
+ * configuration. Ehcache 2.4 only bounds a store by the number of elements, so the
+ * weights are tracked here from the cache events and {@link CacheImpl} evicts the least
+ * recently used entries once the total is over the limit.
+ * <p>
+ * Every get touches an entry, so the entries are spread over segments with a lock each,
+ * and each entry carries a tick from a shared clock. The segments are kept in access
+ * order, so the least recently used entries of the whole cache are found by merging
+ * their heads on the tick.
+ */
+public class WeightTracker implements CacheEventListener, WeightTrackerMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WeightTracker.class);
+
+  private static final int SEGMENTS = 16;
+
+  private final Weigher<Object> weigher;
+  private final long maxBytes;
+  /**
+   * Entry weights in access order, each segment guarded by itself.
+   */
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final AtomicLong weightedBytes = new AtomicLong();
+  private final AtomicLong clock = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public WeightTracker(Weigher<?> weigher, long maxBytes) {
+    this.weigher = (Weigher<Object>) weigher;
+    this.maxBytes = maxBytes;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Weigh the entries already in a cache, used when the tracker is attached to a cache
+   * that is in use.
+   *
+   * @param cache
+   */
+  public void seed(Ehcache cache) {
+    for (Object k : cache.getKeys()) {
+      Element e = cache.getQuiet(k);
+      if (e != null) {
+        add(e);
+      }
+    }
+  }
+
+  /**
+   * Mark an entry as recently used.
+   *
+   * @param key
+   */
+  public void touch(String key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      Weight w = segment.get(key);
+      if (w != null) {
+        w.tick = clock.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return the least recently used keys that must go to bring the cache back under its
+   *         limit, empty if it is under the limit. The keys stay tracked until the cache
+   *         reports their removal.
+   */
+  public List<String> overweight() {
+    long excess = weightedBytes.get() - maxBytes;
+    if (excess <= 0) {
+      return Collections.emptyList();
+    }
+    // no segment can give up more than the excess, so take that much from the head of
+    // each and keep the oldest of them.
+    List<Weight> candidates = new ArrayList<Weight>();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        long taken = 0;
+        Iterator<Weight> i = segment.values().iterator();
+        while (taken < excess && i.hasNext()) {
+          Weight w = i.next();
+          candidates.add(new Weight(w.key, w.bytes, w.tick));
+          taken += w.bytes;
+        }
+      }
+    }
+    Collections.sort(candidates);
+    List<String> keys = new ArrayList<String>();
+    for (Iterator<Weight> i = candidates.iterator(); excess > 0 && i.hasNext();) {
+      Weight w = i.next();
+      keys.add(w.key);
+      excess -= w.bytes;
+    }
+    return keys;
+  }
+
+  void evicted() {
+    evictions.incrementAndGet();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getWeightedBytes() {
+    return weightedBytes.get();
+  }
+
+  public int getEntries() {
+    int entries = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        entries += segment.size();
+      }
+    }
+    return entries;
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(element);
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        long bytes = 0;
+        for (Weight w : segment.values()) {
+          bytes += w.bytes;
+        }
+        segment.clear();
+        weightedBytes.addAndGet(-bytes);
+      }
+    }
+  }
+
+  public void dispose() {
+    notifyRemoveAll(null);
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The weight tracker is bound to a single cache");
+  }
+
+  private void add(Element element) {
+    if (element == null || !(element.getObjectKey() instanceof String)) {
+      return;
+    }
+    String key = (String) element.getObjectKey();
+    long weight = 1;
+    Object value = element.getObjectValue();
+    if (value != null) {
+      try {
+        weight = Math.max(weigher.weigh(key, value), 1L);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unable to weigh {}, assuming {} bytes: {} ", new Object[] { key,
+            EstimatingWeigher.UNMEASURED, e.getMessage() });
+        weight = EstimatingWeigher.UNMEASURED;
+      }
+    }
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      Weight previous = segment.put(key, new Weight(key, weight, clock.incrementAndGet()));
+      weightedBytes.addAndGet(weight - (previous == null ? 0 : previous.bytes));
+    }
+  }
+
+  private void remove(Element element) {
+    if (element == null || !(element.getObjectKey() instanceof String)) {
+      return;
+    }
+    Segment segment = segmentFor((String) element.getObjectKey());
+    synchronized (segment) {
+      Weight previous = segment.remove(element.getObjectKey());
+      if (previous != null) {
+        weightedBytes.addAndGet(-previous.bytes);
+      }
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  private static class Segment extends LinkedHashMap<String, Weight> {
+    private static final long serialVersionUID = 1L;
+
+    Segment() {
+      super(16, 0.75f, true);
+    }
+  }
+
+  private static class Weight implements Comparable<Weight> {
+    private final String key;
+    private final long bytes;
+    private long tick;
+
+    Weight(String key, long bytes, long tick) {
+      this.key = key;
+      this.bytes = bytes;
+      this.tick = tick;
+    }
+
+    public int compareTo(Weight o) {
+      return tick < o.tick ? -1 : (tick == o.tick ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the weight held by a cache with a byte limit.
+ */
+public interface WeightTrackerMBean {
+
+  /**
+   * @return the limit on the total weight of the cache, in bytes.
+   */
+  long getMaxBytes();
+
+  /**
+   * @return the estimated total weight of the entries in the cache, in bytes.
+   */
+  long getWeightedBytes();
+
+  /**
+   * @return the number of entries being weighed.
+   */
+  int getEntries();
+
+  /**
+   * @return the number of entries evicted to keep the cache under its limit.
+   */
+  long getEvictions();
+
+}
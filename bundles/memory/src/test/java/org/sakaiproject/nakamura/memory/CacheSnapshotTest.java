@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CacheSnapshotTest {
+
+  private CacheManager cacheManager;
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheManager = new CacheManager();
+    cacheManager.addCache("snapshotTest");
+    dir = File.createTempFile("snapshot", "dir");
+    dir.delete();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManager.shutdown();
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    net.sf.ehcache.Cache cache = cacheManager.getCache("snapshotTest");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("name", "fish");
+    map.put("count", 3L);
+    cache.put(new Element("a/b", "value"));
+    cache.put(new Element("a/c", map));
+    cache.put(new Element("unserializable", new Object()));
+    CacheSnapshot snapshot = new CacheSnapshot(dir, 60, 3600);
+    assertEquals(2, snapshot.save(cache));
+
+    cache.removeAll();
+    assertEquals(2, snapshot.load(cache));
+    assertEquals("value", cache.get("a/b").getObjectValue());
+    assertEquals(map, cache.get("a/c").getObjectValue());
+    assertNull(cache.get("unserializable"));
+    Element e = cache.get("a/b");
+    assertNotNull(e);
+    assertTrue("Expected reloaded entries to be given the snapshot ttl",
+        e.getTimeToLive() <= 60);
+    assertFalse("Expected the snapshot to be consumed", new File(dir,
+        "snapshotTest.snapshot").exists());
+    cache.removeAll();
+    assertEquals(0, snapshot.load(cache));
+  }
+
+}
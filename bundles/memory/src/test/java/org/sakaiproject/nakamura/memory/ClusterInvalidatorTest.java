@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+public class ClusterInvalidatorTest {
+
+  private final List<byte[]> sent = new ArrayList<byte[]>();
+  private final List<String> received = new ArrayList<String>();
+  private final ClusterInvalidator.Receiver receiver = new ClusterInvalidator.Receiver() {
+    public void remove(String cacheName, String key) {
+      received.add("remove " + cacheName + " " + key);
+    }
+
+    public void removeChildren(String cacheName, String key) {
+      received.add("removeChildren " + cacheName + " " + key);
+    }
+
+    public void clear(String cacheName) {
+      received.add("clear " + cacheName);
+    }
+  };
+
+  private ClusterInvalidator sender;
+  private ClusterInvalidator other;
+
+  @Before
+  public void setUp() throws Exception {
+    // a long window, so only the test flushes.
+    sender = new ClusterInvalidator(receiver, 60000);
+    sender.connect(connectionFactory());
+    other = new ClusterInvalidator(receiver, 60000);
+  }
+
+  @After
+  public void tearDown() {
+    sender.disconnect();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    sender.remove("a", "k1");
+    sender.removeChildren("a", "/p");
+    sender.clear("b");
+    sender.flush();
+    assertEquals(1, sent.size());
+
+    deliver(other, sent.get(0));
+    assertEquals(ImmutableSet.of("remove a k1", "removeChildren a /p", "clear b"),
+        new HashSet<String>(received));
+    assertEquals(3, received.size());
+  }
+
+  @Test
+  public void testRemovalsCoalesced() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      sender.remove("a", "k1");
+    }
+    sender.remove("a", "k2");
+    sender.remove("c", "k3");
+    sender.clear("c");
+    sender.remove("c", "k4");
+    sender.flush();
+    assertEquals(1, sent.size());
+
+    deliver(other, sent.get(0));
+    assertEquals(ImmutableSet.of("remove a k1", "remove a k2", "clear c"),
+        new HashSet<String>(received));
+    assertEquals(3, received.size());
+  }
+
+  @Test
+  public void testNothingSentWhenIdle() throws Exception {
+    sender.flush();
+    assertTrue(sent.isEmpty());
+  }
+
+  @Test
+  public void testOwnInvalidationsIgnored() throws Exception {
+    sender.remove("a", "k1");
+    sender.flush();
+    deliver(sender, sent.get(0));
+    assertTrue(received.isEmpty());
+  }
+
+  @Test
+  public void testPutInvalidates() throws Exception {
+    ClusterInvalidatedCache<String> cache = new ClusterInvalidatedCache<String>("a",
+        new MapCacheImpl<String>("a", CacheScope.INSTANCE), sender);
+    cache.put("k1", "v1");
+    assertEquals("v1", cache.get("k1"));
+    sender.flush();
+
+    deliver(other, sent.get(0));
+    assertEquals(ImmutableSet.of("remove a k1"), new HashSet<String>(received));
+  }
+
+  private ConnectionFactory connectionFactory() throws JMSException {
+    ConnectionFactory connectionFactory = createNiceMock(ConnectionFactory.class);
+    Connection connection = createNiceMock(Connection.class);
+    Session session = createNiceMock(Session.class);
+    MessageConsumer consumer = createNiceMock(MessageConsumer.class);
+    MessageProducer producer = createNiceMock(MessageProducer.class);
+    BytesMessage message = createNiceMock(BytesMessage.class);
+    expect(connectionFactory.createConnection()).andReturn(connection);
+    expect(connection.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(session)
+        .anyTimes();
+    expect(session.createConsumer((Topic) anyObject(), (String) anyObject(), eq(true)))
+        .andReturn(consumer);
+    expect(session.createProducer((Topic) anyObject())).andReturn(producer);
+    expect(session.createBytesMessage()).andReturn(message).anyTimes();
+    message.writeBytes((byte[]) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() {
+        sent.add((byte[]) getCurrentArguments()[0]);
+        return null;
+      }
+    }).anyTimes();
+    replay(connectionFactory, connection, session, consumer, producer, message);
+    return connectionFactory;
+  }
+
+  private void deliver(ClusterInvalidator to, final byte[] body) throws JMSException {
+    BytesMessage message = createMock(BytesMessage.class);
+    expect(message.getBodyLength()).andReturn((long) body.length);
+    expect(message.readBytes((byte[]) anyObject())).andAnswer(new IAnswer<Integer>() {
+      public Integer answer() {
+        byte[] into = (byte[]) getCurrentArguments()[0];
+        System.arraycopy(body, 0, into, 0, body.length);
+        return body.length;
+      }
+    });
+    replay(message);
+    to.onMessage(message);
+  }
+}
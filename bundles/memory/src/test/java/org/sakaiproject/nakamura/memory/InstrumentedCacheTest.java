@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+public class InstrumentedCacheTest {
+
+  @Test
+  public void testCounts() {
+    CacheStatistics stats = new CacheStatistics("test", CacheScope.REQUEST);
+    Cache<String> cache = new InstrumentedCache<String>(new MapCacheImpl<String>("test",
+        CacheScope.REQUEST), stats);
+    cache.put("a", "1234");
+    cache.get("a");
+    cache.get("b");
+    cache.remove("a");
+    cache.removeChildren("a");
+    cache.getOrLoad("c", new CacheLoader<String>() {
+      public String load(String key) throws Exception {
+        return "loaded";
+      }
+    });
+    cache.getOrLoad("c", new CacheLoader<String>() {
+      public String load(String key) throws Exception {
+        throw new IllegalStateException("should have been cached");
+      }
+    });
+    cache.put("d", "dd");
+    cache.clear();
+
+    assertEquals(2, stats.getHits());
+    assertEquals(2, stats.getMisses());
+    assertEquals(0.5, stats.getHitRatio(), 0.0001);
+    assertEquals(3, stats.getPuts());
+    assertEquals(1, stats.getRemoves());
+    assertEquals(1, stats.getRemoveChildren());
+    assertEquals(1, stats.getClears());
+    assertEquals(1, stats.getLoads());
+    assertEquals(0, stats.getLoadFailures());
+    assertEquals(0, stats.getUnmeasuredPuts());
+    stats.reset();
+    assertEquals(0, stats.getPuts());
+  }
+
+  @Test
+  public void testUnmeasuredPayloads() {
+    CacheStatistics stats = new CacheStatistics("test", CacheScope.THREAD);
+    Cache<Object> cache = new InstrumentedCache<Object>(new MapCacheImpl<Object>("test",
+        CacheScope.THREAD), stats);
+    cache.put("a", new Object());
+    cache.put("b", new byte[100]);
+    assertEquals(1, stats.getUnmeasuredPuts());
+    assertEquals(116, stats.getBytesPut());
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadCoalescerTest {
+
+  @Test
+  public void testLoadIsCached() {
+    LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+    MapCacheImpl<String> cache = new MapCacheImpl<String>("test", CacheScope.REQUEST);
+    assertEquals("a-value", coalescer.load("a", new CacheLoader<String>() {
+      public String load(String key) {
+        return key + "-value";
+      }
+    }, cache));
+    assertEquals("a-value", cache.get("a"));
+  }
+
+  @Test
+  public void testInvalidatedLoadNotCached() {
+    final LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+    final MapCacheImpl<String> cache = new MapCacheImpl<String>("test", CacheScope.REQUEST);
+    String value = coalescer.load("a", new CacheLoader<String>() {
+      public String load(String key) {
+        // the entry is invalidated while the old value is being read.
+        coalescer.invalidate();
+        cache.remove(key);
+        return "stale";
+      }
+    }, cache);
+    assertEquals("stale", value);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testInvalidatedLoadNotJoined() throws Exception {
+    final LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+    final MapCacheImpl<String> cache = new MapCacheImpl<String>("test", CacheScope.REQUEST);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger loads = new AtomicInteger();
+    Thread first = new Thread() {
+      public void run() {
+        coalescer.load("a", new CacheLoader<String>() {
+          public String load(String key) throws Exception {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "stale";
+          }
+        }, cache);
+      }
+    };
+    first.start();
+    loading.await(5, TimeUnit.SECONDS);
+    coalescer.invalidate();
+    assertEquals("fresh", coalescer.load("a", new CacheLoader<String>() {
+      public String load(String key) {
+        loads.incrementAndGet();
+        return "fresh";
+      }
+    }, cache));
+    release.countDown();
+    first.join(5000);
+    assertEquals(2, loads.get());
+    // the stale put is taken back out, at the cost of the fresh one.
+    assertNull(cache.get("a"));
+  }
+
+}
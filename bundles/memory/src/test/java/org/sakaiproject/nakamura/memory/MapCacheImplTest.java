@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+public class MapCacheImplTest {
+
+  @Test
+  public void testRemoveChildrenAfterDeserialization() throws Exception {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>("test", CacheScope.REQUEST);
+    cache.put("a/b", "1");
+    cache.put("a/b/c", "2");
+    cache.put("a/bc", "3");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(cache);
+    out.close();
+    @SuppressWarnings("unchecked")
+    MapCacheImpl<String> copy = (MapCacheImpl<String>) new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+    copy.removeChildren("a/b");
+    assertNull(copy.get("a/b"));
+    assertNull(copy.get("a/b/c"));
+    assertEquals("3", copy.get("a/bc"));
+    copy.put("a/d", "4");
+    copy.removeChildren("a");
+    assertNull(copy.get("a/d"));
+  }
+
+  @Test
+  public void testRemoveChildrenAfterRemoveAndClear() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>("test", CacheScope.REQUEST);
+    cache.put("a/b", "1");
+    cache.put("a/b/c", "2");
+    cache.remove("a/b/c");
+    cache.removeChildren("a");
+    assertNull(cache.get("a/b"));
+    assertTrue(cache.list().isEmpty());
+
+    cache.put("a/b", "1");
+    cache.clear();
+    cache.put("a/b/c", "2");
+    cache.removeChildren("a/b");
+    assertFalse(cache.containsKey("a/b/c"));
+    assertTrue(cache.list().isEmpty());
+  }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+public class OffHeapStoreTest {
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    OffHeapStore store = new OffHeapStore(64 * 1024, 4, null);
+    store.put("a/b", new byte[] { 1, 2, 3 }, 0);
+    store.put("a/b/c", new byte[] { 4 }, 0);
+    store.put("a/bc", new byte[] { 5 }, 0);
+    assertArrayEquals(new byte[] { 1, 2, 3 }, store.get("a/b"));
+    store.removeChildren("a/b");
+    assertNull(store.get("a/b/c"));
+    assertTrue(store.containsKey("a/bc"));
+    OffHeapStore.Entry entry = store.take("a/b");
+    assertArrayEquals(new byte[] { 1, 2, 3 }, entry.getValue());
+    assertFalse(store.containsKey("a/b"));
+    store.clear();
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testRingOverwritesOldest() throws Exception {
+    // one segment of 1000 bytes, each entry is 8 + 100 bytes.
+    OffHeapStore store = new OffHeapStore(1000, 1, null);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(store.put("k" + i, new byte[100], 0));
+    }
+    assertNull("Expected the oldest entry to be overwritten", store.get("k0"));
+    assertTrue(store.containsKey("k19"));
+    assertTrue(store.size() <= 9);
+    assertFalse("Expected values bigger than a segment to be refused",
+        store.put("big", new byte[2000], 0));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    OffHeapStore store = new OffHeapStore(64 * 1024, 1, null);
+    store.put("old", new byte[] { 1 }, System.currentTimeMillis() - 1000);
+    store.put("new", new byte[] { 1 }, System.currentTimeMillis() + 100000);
+    assertNull(store.get("old"));
+    assertArrayEquals(new byte[] { 1 }, store.get("new"));
+  }
+
+  @Test
+  public void testMappedFile() throws Exception {
+    File file = File.createTempFile("offheap", ".test");
+    file.deleteOnExit();
+    OffHeapStore store = new OffHeapStore(64 * 1024, 2, file);
+    store.put("a", new byte[] { 9 }, 0);
+    assertArrayEquals(new byte[] { 9 }, store.get("a"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCompactSerializer() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("s", "value");
+    props.put("l", 10L);
+    props.put("i", 3);
+    props.put("b", true);
+    props.put("d", 1.5);
+    props.put("bd", new BigDecimal("12.50"));
+    props.put("a", new String[] { "x", "y" });
+    props.put("n", null);
+    Map<String, Object> copy = (Map<String, Object>) CompactSerializer
+        .deserialize(CompactSerializer.serialize(props));
+    assertEquals("value", copy.get("s"));
+    assertEquals(10L, copy.get("l"));
+    assertEquals(3, copy.get("i"));
+    assertEquals(true, copy.get("b"));
+    assertEquals(1.5, copy.get("d"));
+    assertEquals(new BigDecimal("12.50"), copy.get("bd"));
+    assertArrayEquals(new String[] { "x", "y" }, (String[]) copy.get("a"));
+    assertTrue(copy.containsKey("n"));
+    assertNull("Expected unserializable values to be refused",
+        CompactSerializer.serialize(new Object()));
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.Element;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+
+import java.util.Arrays;
+
+public class WeightTrackerTest {
+
+  private static final Weigher<Object> TEN_BYTES = new Weigher<Object>() {
+    public long weigh(String key, Object value) {
+      return 10;
+    }
+  };
+
+  @Test
+  public void testOverweightIsLeastRecentlyUsed() {
+    WeightTracker tracker = new WeightTracker(TEN_BYTES, 100);
+    for (int i = 0; i < 12; i++) {
+      tracker.notifyElementPut(null, new Element("k" + i, "v"));
+    }
+    assertEquals(12, tracker.getEntries());
+    assertEquals(120, tracker.getWeightedBytes());
+    tracker.touch("k0");
+    tracker.touch("k1");
+    // the oldest keys are spread over segments, so this checks the merge on access order.
+    assertEquals(Arrays.asList("k2", "k3"), tracker.overweight());
+
+    tracker.notifyElementRemoved(null, new Element("k2", null));
+    assertEquals(Arrays.asList("k3"), tracker.overweight());
+    tracker.notifyRemoveAll(null);
+    assertEquals(0, tracker.getWeightedBytes());
+    assertTrue(tracker.overweight().isEmpty());
+  }
+
+  @Test
+  public void testUpdateReplacesWeight() {
+    WeightTracker tracker = new WeightTracker(new EstimatingWeigher(), Long.MAX_VALUE);
+    tracker.notifyElementPut(null, new Element("k", "short"));
+    long before = tracker.getWeightedBytes();
+    tracker.notifyElementUpdated(null, new Element("k", "a much longer value than before"));
+    assertEquals(1, tracker.getEntries());
+    assertTrue(tracker.getWeightedBytes() > before);
+  }
+
+}
@@ -23,16 +23,22 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheLoaderException;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
+import org.sakaiproject.nakamura.api.memory.Weigher;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestCache {
 
@@ -93,6 +99,127 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testRemoveChildrenLeavesSiblings() {
+    for (CacheScope scope : CacheScope.values()) {
+      String cacheName = "SiblingTestCache"+scope.toString();
+      Cache<String> cache = cacheManagerService.getCache(cacheName, scope);
+      cache.put("a/b", "b");
+      cache.put("a/b/c", "c");
+      cache.put("a/bc", "bc");
+      cache.put("a/b0", "b0");
+      cache.removeChildren("a/b");
+      assertNull("Expected key to be removed", cache.get("a/b"));
+      assertNull("Expected key to be removed", cache.get("a/b/c"));
+      assertEquals("Expected sibling to remain", "bc", cache.get("a/bc"));
+      assertEquals("Expected sibling to remain", "b0", cache.get("a/b0"));
+      cache.remove("a/bc");
+      cache.put("a/bc/d", "d");
+      cache.removeChildren("a/bc");
+      assertNull("Expected re-added key to be removed", cache.get("a/bc/d"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testGetOrLoad() {
+    for (CacheScope scope : CacheScope.values()) {
+      final AtomicInteger loads = new AtomicInteger();
+      CacheLoader<String> loader = new CacheLoader<String>() {
+        public String load(String key) throws Exception {
+          loads.incrementAndGet();
+          return "loaded-" + key;
+        }
+      };
+      String value = cacheManagerService.getOrLoad("LoadTestCache" + scope.toString(),
+          scope, "fish", loader);
+      assertEquals("loaded-fish", value);
+      Cache<String> cache = cacheManagerService.getCache("LoadTestCache" + scope.toString(),
+          scope);
+      assertEquals("loaded-fish", cache.get("fish"));
+      assertEquals("loaded-fish", cache.getOrLoad("fish", loader));
+      assertEquals("Expected the second call to be served from the cache", 1, loads.get());
+      try {
+        cache.getOrLoad("broken", new CacheLoader<String>() {
+          public String load(String key) throws Exception {
+            throw new IOException("broken");
+          }
+        });
+        fail("Expected the loader exception to propagate");
+      } catch (CacheLoaderException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      assertNull(cache.get("broken"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testGetOrLoadCoalescesConcurrentLoads() throws Exception {
+    final Cache<String> cache = cacheManagerService.getCache("CoalesceTestCache",
+        CacheScope.INSTANCE);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CacheLoader<String> loader = new CacheLoader<String>() {
+      public String load(String key) throws Exception {
+        loads.incrementAndGet();
+        loading.countDown();
+        release.await();
+        return "slow";
+      }
+    };
+    Thread[] threads = new Thread[5];
+    final String[] results = new String[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          results[n] = cache.getOrLoad("popular", loader);
+        }
+      };
+      threads[i].start();
+      if (i == 0) {
+        loading.await();
+      }
+    }
+    // give the waiters a moment to join the load in flight.
+    Thread.sleep(100);
+    release.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals("Expected a single load", 1, loads.get());
+    for (String result : results) {
+      assertEquals("slow", result);
+    }
+    cache.clear();
+  }
+
+  @Test
+  public void testWeightLimitEvictsLeastRecentlyUsed() {
+    Weigher<String> weigher = new Weigher<String>() {
+      public long weigh(String key, String value) {
+        return value.length();
+      }
+    };
+    Cache<String> cache = cacheManagerService.getCache("WeightTestCache",
+        CacheScope.INSTANCE, weigher, 10);
+    cache.put("a", "12345");
+    cache.put("b", "12345");
+    assertEquals("12345", cache.get("a"));
+    cache.put("c", "12345");
+    assertNull("Expected the least recently used entry to be evicted", cache.get("b"));
+    assertEquals("12345", cache.get("a"));
+    assertEquals("12345", cache.get("c"));
+    cache.put("d", "12345678901");
+    assertNull("Expected an entry over the limit to be evicted", cache.get("d"));
+    cache.clear();
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.message;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
@@ -30,8 +31,10 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -43,17 +46,15 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -67,7 +68,9 @@ import javax.servlet.http.HttpServletResponse;
  * The following are optional:
  *  - filters: only nodes with the properties in filters and the values in values
  *    get traversed
- *  - groupedby: group the results by the values of this parameter.
+ *  - groupedby: group the results by the values of this parameter. Only the message
+ *    fields that are untokenized in the index can be grouped by, anything else returns
+ *    no groups.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -92,7 +95,7 @@ import javax.servlet.http.HttpServletResponse;
         parameters = {
           @ServiceParameter(name = "filters", description = "Optional. Comma separated list of properties that should be matched"),
           @ServiceParameter(name = "values", description = "Optional. Comma separated list of values for each property."),
-          @ServiceParameter(name = "groupedby", description = "Optional. A property name on what to group by, e.g. sakai:category will return separate counts for each message category.") }))
+          @ServiceParameter(name = "groupedby", description = "Optional. A property name on what to group by, e.g. sakai:category will return separate counts for each message category. One of sakai:messagebox, sakai:category, sakai:from, sakai:to, sakai:read, sakai:sendstate or a sakai* field, anything else returns no counts.") }))
 
 public class LiteCountServlet extends SlingSafeMethodsServlet {
 
@@ -102,7 +105,14 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -5714446506015596037L;
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteCountServlet.class);
 
-  private static long MAX_RESULTS_COUNTED = 500;
+  /**
+   * The message fields that can be grouped by. They are untokenized in the index, so
+   * each group is a whole value. Fields named sakai* are untokenized as well.
+   */
+  private static final Set<String> GROUPABLE_FIELDS = ImmutableSet.of("messagebox",
+      "category", "from", "to", "read", "sendstate");
+
+  private static final Pattern GROUPABLE_DYNAMIC_FIELD = Pattern.compile("sakai[\\w.]*");
 
   @Reference
   protected transient LiteMessagingService messagingService;
@@ -147,77 +157,73 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
 
       queryString.append(")");
 
-      // The "groupedby" clause forces us to inspect every message. If not
-      // specified, all we need is the count.
-      final long itemCount;
-      if (request.getRequestParameter("groupedby") == null) {
-        itemCount = 0;
+      // No messages are needed, only their number or, with a "groupedby" clause, the
+      // number for each value of the grouped property, which solr counts as facets.
+      String groupedby = null;
+      if (request.getRequestParameter("groupedby") != null) {
+        groupedby = request.getRequestParameter("groupedby").getString();
+        if (groupedby.startsWith("sakai:")) {
+          groupedby = groupedby.substring(6);
+        }
+      }
+      Map<String, Object> queryOptions;
+      if (groupedby != null && !isGroupable(groupedby)) {
+        LOGGER.debug("Messages can not be grouped by {}", groupedby);
+        queryOptions = null;
+      } else if (groupedby == null) {
+        queryOptions = ImmutableMap.of(
+            PARAMS_ITEMS_PER_PAGE, (Object) "0",
+            CommonParams.START, "0"
+        );
       } else {
-        itemCount = MAX_RESULTS_COUNTED;
+        queryOptions = ImmutableMap.<String, Object> builder()
+            .put(PARAMS_ITEMS_PER_PAGE, "0")
+            .put(CommonParams.START, "0")
+            .put(FacetParams.FACET, "true")
+            .put(FacetParams.FACET_FIELD, groupedby)
+            .put(FacetParams.FACET_MINCOUNT, "1")
+            .put(FacetParams.FACET_LIMIT, "-1")
+            .build();
+      }
+
+      SolrSearchResultSet resultSet = null;
+      if (queryOptions != null) {
+        Query query = new Query(queryString.toString(), queryOptions);
+        LOGGER.info("Submitting Query {} ", query);
+        resultSet = searchServiceFactory.getSearchResultSet(request, query, false);
       }
-      Map<String, Object> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, (Object) Long.toString(itemCount),
-          CommonParams.START, "0",
-          CommonParams.SORT, "_created desc"
-      );
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
       JSONWriter write = new JSONWriter(response.getWriter());
 
-      if (request.getRequestParameter("groupedby") == null) {
+      if (groupedby == null) {
         write.object();
         write.key("count");
         write.value(resultSet.getSize());
         write.endObject();
       } else {
         // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
-        String groupedby = request.getRequestParameter("groupedby").getString();
-        if (groupedby.startsWith("sakai:")) {
-          groupedby = groupedby.substring(6);
-        }
-
-        long count = 0;
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (count >= MAX_RESULTS_COUNTED) {
-            break;
-          }
-          count++;
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
-            }
-            mapCount.put(key, val);
-          }
-        }
-
         write.object();
         write.key("count");
         write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
-          write.object();
+        if (resultSet != null && resultSet.getFacetFields() != null) {
+          for (FacetField field : resultSet.getFacetFields()) {
+            if (!groupedby.equals(field.getName()) || field.getValues() == null) {
+              continue;
+            }
+            for (FacetField.Count count : field.getValues()) {
+              write.object();
 
-          write.key("group");
-          write.value(e.getKey());
-          write.key("count");
-          write.value(e.getValue());
+              write.key("group");
+              write.value(count.getName());
+              write.key("count");
+              write.value(count.getCount());
 
-          write.endObject();
+              write.endObject();
+            }
+          }
         }
         write.endArray();
         write.endObject();
@@ -233,4 +239,14 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     }
 
   }
+
+  /**
+   * @param field
+   *          the field to group by, without its sakai: prefix.
+   * @return true if the messages can be counted for each value of the field.
+   */
+  static boolean isGroupable(String field) {
+    return GROUPABLE_FIELDS.contains(field)
+        || GROUPABLE_DYNAMIC_FIELD.matcher(field).matches();
+  }
 }
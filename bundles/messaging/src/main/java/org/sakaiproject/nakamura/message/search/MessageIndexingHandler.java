@@ -31,6 +31,8 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
@@ -42,6 +44,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.QoSIndexHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
@@ -94,6 +97,9 @@ public class MessageIndexingHandler implements IndexingHandler, QoSIndexHandler
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile IndexingCoalescer indexingCoalescer;
+
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
     for (String type : CONTENT_TYPES) {
@@ -128,6 +134,11 @@ public class MessageIndexingHandler implements IndexingHandler, QoSIndexHandler
   public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
       Event event) {
     String path = (String) event.getProperty(IndexingHandler.FIELD_PATH);
+    // a later event for the path is still queued and will index the latest state.
+    IndexingCoalescer coalescer = indexingCoalescer;
+    if (coalescer != null && coalescer.isSuperseded(event)) {
+      return Collections.emptyList();
+    }
 
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
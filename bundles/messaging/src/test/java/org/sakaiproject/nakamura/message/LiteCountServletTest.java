@@ -21,9 +21,14 @@ import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.isA;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -32,15 +37,17 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.FacetParams;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 
@@ -48,9 +55,6 @@ import com.google.common.collect.Lists;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -79,6 +83,57 @@ public class LiteCountServletTest {
 
   @Test
   public void testParams() throws Exception {
+    // Counts for each value of the grouped property
+    FacetField category = new FacetField("category");
+    category.add("a", 2);
+    category.add("c", 1);
+
+    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class);
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), query.capture(), anyBoolean())).thenReturn(resultSet);
+    when(resultSet.getFacetFields()).thenReturn(Lists.newArrayList(category));
+    JSONArray arr = count("sakai:category");
+
+    // No messages should be fetched, solr counts them
+    Map<String, Object> options = query.getValue().getOptions();
+    assertEquals("0", options.get(PARAMS_ITEMS_PER_PAGE));
+    assertEquals("true", options.get(FacetParams.FACET));
+    assertEquals("category", options.get(FacetParams.FACET_FIELD));
+    verify(resultSet, never()).getResultSetIterator();
+
+    assertEquals(2, arr.length());
+    assertEquals("a", arr.getJSONObject(0).getString("group"));
+    assertEquals("2", arr.getJSONObject(0).getString("count"));
+    assertEquals("c", arr.getJSONObject(1).getString("group"));
+    assertEquals("1", arr.getJSONObject(1).getString("count"));
+
+  }
+
+  @Test
+  public void testUnknownGroupedBy() throws Exception {
+    assertEquals(0, count("foo").length());
+    assertEquals(0, count("sakai:body").length());
+    verify(searchFactory, never()).getSearchResultSet(isA(SlingHttpServletRequest.class),
+        isA(Query.class), anyBoolean());
+  }
+
+  @Test
+  public void testGroupable() {
+    assertTrue(LiteCountServlet.isGroupable("messagebox"));
+    assertTrue(LiteCountServlet.isGroupable("sendstate"));
+    assertTrue(LiteCountServlet.isGroupable("sakai.group"));
+    assertFalse(LiteCountServlet.isGroupable("body"));
+    assertFalse(LiteCountServlet.isGroupable("{!ex=a}messagebox"));
+    assertFalse(LiteCountServlet.isGroupable("sakai x"));
+  }
+
+  /**
+   * Count the messages grouped by a property.
+   *
+   * @param groupedby
+   * @return the counts written.
+   */
+  private JSONArray count(String groupedby) throws Exception {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
     SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -87,16 +142,10 @@ public class LiteCountServletTest {
 
     // Request stuff
     RequestParameter groupParam = mock(RequestParameter.class);
-    when(groupParam.getString()).thenReturn("foo");
+    when(groupParam.getString()).thenReturn(groupedby);
     when(request.getRemoteUser()).thenReturn("admin");
     when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
 
-    // Results
-    Map<String, Collection<Object>> props = new HashMap<String, Collection<Object>>();
-    props.put("foo", (Collection<Object>) Lists.newArrayList((Object) "a"));
-    Map<String, Collection<Object>> propsC = new HashMap<String, Collection<Object>>();
-    propsC.put("foo", (Collection<Object>) Lists.newArrayList((Object) "c"));
-
     // Session & search
     ResourceResolver rr = mock(ResourceResolver.class);
     when(request.getResourceResolver()).thenReturn(rr);
@@ -114,30 +163,11 @@ public class LiteCountServletTest {
     when(messagingService.getFullPathToStore("admin", session)).thenReturn(
         "/path/to/store");
 
-    Result r1 = mock(Result.class);
-    when(r1.getPath()).thenReturn("/path/to/msgA");
-    when(r1.getProperties()).thenReturn(props);
-    Result r2 = mock(Result.class);
-    when(r2.getPath()).thenReturn("/path/to/msgB");
-    when(r2.getProperties()).thenReturn(props);
-    Result r3 = mock(Result.class);
-    when(r3.getPath()).thenReturn("/path/to/msgC");
-    when(r3.getProperties()).thenReturn(propsC);
-    Iterator<Result> results = Lists.newArrayList(r1, r2, r3).iterator();
-
-    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class);
-    when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean())).thenReturn(resultSet);
-    when(resultSet.getResultSetIterator()).thenReturn(results);
     servlet.doGet(request, response);
 
     write.flush();
     String s = baos.toString("UTF-8");
     JSONObject o = new JSONObject(s);
-
-    JSONArray arr = o.getJSONArray("count");
-    assertEquals(1, arr.length());
-    assertEquals("null", arr.getJSONObject(0).getString("group"));
-    assertEquals("3", arr.getJSONObject(0).getString("count"));
-
+    return o.getJSONArray("count");
   }
 }
@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -52,8 +53,9 @@ import javax.jcr.RepositoryException;
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "sakai.search.processor", value = "User") })
-@Service
-public class UserSearchResultProcessor implements SolrSearchResultProcessor {
+@Service(value = SolrSearchResultProcessor.class)
+public class UserSearchResultProcessor implements SolrSearchResultProcessor,
+    PrefetchedResults.Reader {
 
   @Reference
   private PresenceService presenceService;
@@ -92,8 +94,15 @@ public class UserSearchResultProcessor implements SolrSearchResultProcessor {
     String userId = (String) result.getFirstValue(User.NAME_FIELD);
     if (userId != null) {
       try {
-        AuthorizableManager authMgr = session.getAuthorizableManager();
-        Authorizable auth = authMgr.findAuthorizable(path);
+        Authorizable auth = null;
+        PrefetchedResults prefetched = PrefetchedResults.get(request);
+        if (prefetched != null) {
+          auth = prefetched.getAuthorizable(path);
+        }
+        if (auth == null) {
+          AuthorizableManager authMgr = session.getAuthorizableManager();
+          auth = authMgr.findAuthorizable(path);
+        }
 
         write.object();
         ValueMap map = profileService.getProfileMap(auth, jcrSession);
@@ -10,4 +10,12 @@ public interface DeletedPathsService {
    * query.
    */
   List<String> getDeletedPaths();
+
+  /**
+   * Get a filter query that excludes the paths deleted since the last Solr commit across
+   * all nodes in the cluster, and everything below them.
+   *
+   * @return the filter query, or null if nothing has been deleted.
+   */
+  String getDeletedPathsFilter();
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges any number of iterators that are each sorted by the same order into a single
+ * sorted iterator. Only the head of each input is held, in a heap, so a merge of
+ * <code>n</code> items from <code>k</code> inputs takes <code>O(n log k)</code> and
+ * memory in proportion to <code>k</code>. An input is only asked for its next item when
+ * its head has been returned, so inputs that fetch their items a page at a time are only
+ * paged as far as the merge is read. Where two inputs have equal heads the one passed
+ * first is returned first.
+ *
+ * @param <T>
+ */
+public class MergingIterator<T> implements Iterator<T> {
+
+  private final Comparator<? super T> order;
+  private final boolean distinct;
+  private final Iterator<? extends T>[] inputs;
+  private final PriorityQueue<Head<T>> heads;
+  /**
+   * The input whose head was returned last, which has to be advanced before the next
+   * item can be chosen, or -1 if every input has its head in the heap.
+   */
+  private int consumed;
+  private T last;
+  private boolean returned;
+  private boolean started;
+  private Head<T> nextHead;
+
+  /**
+   * Merge iterators.
+   *
+   * @param order
+   *          the order each of the inputs is sorted by.
+   * @param inputs
+   */
+  public MergingIterator(Comparator<? super T> order,
+      List<? extends Iterator<? extends T>> inputs) {
+    this(order, inputs, false);
+  }
+
+  /**
+   * Merge iterators, optionally dropping duplicates. Items are duplicates when the order
+   * finds them equal, so when the inputs are sorted by the key the duplicates are to be
+   * dropped they come out of the merge next to each other and only the item returned
+   * last has to be kept to recognize them.
+   *
+   * @param order
+   *          the order each of the inputs is sorted by.
+   * @param inputs
+   * @param distinct
+   *          true to return only the first of a run of items the order finds equal.
+   */
+  @SuppressWarnings("unchecked")
+  public MergingIterator(Comparator<? super T> order,
+      List<? extends Iterator<? extends T>> inputs, boolean distinct) {
+    this.order = order;
+    this.distinct = distinct;
+    this.inputs = inputs.toArray(new Iterator[inputs.size()]);
+    this.heads = new PriorityQueue<Head<T>>(Math.max(1, inputs.size()),
+        new Comparator<Head<T>>() {
+          public int compare(Head<T> a, Head<T> b) {
+            int c = MergingIterator.this.order.compare(a.value, b.value);
+            return c != 0 ? c : a.input - b.input;
+          }
+        });
+    this.consumed = -1;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    if (nextHead == null) {
+      nextHead = advance();
+    }
+    return nextHead != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Head<T> head = nextHead;
+    nextHead = null;
+    consumed = head.input;
+    last = head.value;
+    returned = true;
+    return head.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+
+  private Head<T> advance() {
+    if (!started) {
+      started = true;
+      for (int i = 0; i < inputs.length; i++) {
+        pull(i);
+      }
+    }
+    while (true) {
+      if (consumed >= 0) {
+        pull(consumed);
+        consumed = -1;
+      }
+      Head<T> head = heads.poll();
+      if (head == null) {
+        return null;
+      }
+      if (distinct && returned && order.compare(last, head.value) == 0) {
+        // a duplicate of the item returned last; skip it and take the input's next.
+        consumed = head.input;
+        continue;
+      }
+      return head;
+    }
+  }
+
+  private void pull(int input) {
+    if (inputs[input].hasNext()) {
+      heads.add(new Head<T>(inputs[input].next(), input));
+    }
+  }
+
+  private static class Head<T> {
+    private final T value;
+    private final int input;
+
+    private Head(T value, int input) {
+      this.value = value;
+      this.input = input;
+    }
+  }
+}
@@ -25,13 +25,31 @@ import javax.jcr.RepositoryException;
 import javax.jcr.query.RowIterator;
 
 /**
- *
+ * Filters out the rows whose path has already been returned. Rows in no particular order
+ * need every path returned to be remembered; rows sorted by path, such as those merged by
+ * a distinct {@link MergingIterator}, only need the last.
  */
 public class UniquePathRowIterator extends ValidatingRowIterator {
-  private HashSet<String> processedPaths = new HashSet<String>();
+  private final boolean sortedByPath;
+  private HashSet<String> processedPaths;
+  private String lastPath;
 
   public UniquePathRowIterator(RowIterator rows) {
+    this(rows, false);
+  }
+
+  /**
+   * @param rows
+   * @param sortedByPath
+   *          true if the rows are sorted by path, so that rows with the same path are next
+   *          to each other.
+   */
+  public UniquePathRowIterator(RowIterator rows, boolean sortedByPath) {
     super(rows);
+    this.sortedByPath = sortedByPath;
+    if (!sortedByPath) {
+      processedPaths = new HashSet<String>();
+    }
     loadNextRow();
   }
 
@@ -39,6 +57,13 @@ public class UniquePathRowIterator extends ValidatingRowIterator {
   protected boolean isValid(Node node) {
     try {
       String path = node.getPath();
+      if (sortedByPath) {
+        if (path.equals(lastPath)) {
+          return false;
+        }
+        lastPath = path;
+        return true;
+      }
       if (!processedPaths.contains(path)) {
         processedPaths.add(path);
         return true;
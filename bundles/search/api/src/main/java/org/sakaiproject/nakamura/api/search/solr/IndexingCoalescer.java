@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Coalesces the added and updated events for a path that pile up in the indexing queue.
+ * A single save can raise many events for the same path, and an indexing handler
+ * rebuilds its documents from storage for each one. The coalescer counts the events as
+ * they are raised, so a handler can tell when a later event for the same path is still
+ * to come and leave the indexing to that one, which will see the latest state.
+ */
+public interface IndexingCoalescer {
+
+  /**
+   * Call once for each added or updated event an indexing handler is given, before
+   * building its documents.
+   *
+   * @param event
+   *          the event being indexed.
+   * @return true if a later added or updated event for the same path has been raised
+   *         and not yet indexed, so no documents need be built for this one.
+   */
+  boolean isSuperseded(Event event);
+
+  /**
+   * @return the number of added and updated events raised but not yet indexed, a measure
+   *         of how far the indexing is behind.
+   */
+  long getQueueDepth();
+
+}
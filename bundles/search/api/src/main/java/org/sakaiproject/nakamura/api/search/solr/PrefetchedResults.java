@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Content and Authorizables behind a page of search results, loaded before the
+ * result processors run. The search servlet binds an instance to the request for the
+ * duration of the page so a processor can take an object from memory rather than make
+ * a storage round trip per result. Anything not found here must still be loaded in the
+ * normal way. The page is only loaded for processors that implement {@link Reader}.
+ */
+public class PrefetchedResults {
+
+  /**
+   * Implemented by a result processor that looks its results up here, so the search
+   * servlet only loads the page ahead for processors that will use it.
+   */
+  public interface Reader {
+  }
+
+  /**
+   * The request attribute the prefetched results are bound to.
+   */
+  public static final String REQUEST_ATTRIBUTE = PrefetchedResults.class.getName();
+
+  private final Map<String, Content> content = new ConcurrentHashMap<String, Content>();
+
+  private final Map<String, Authorizable> authorizables = new ConcurrentHashMap<String, Authorizable>();
+
+  /**
+   * @param request
+   * @return the results prefetched for the page being written, or null if there are none.
+   */
+  public static PrefetchedResults get(SlingHttpServletRequest request) {
+    Object o = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (o instanceof PrefetchedResults) {
+      return (PrefetchedResults) o;
+    }
+    return null;
+  }
+
+  /**
+   * @param path
+   * @return the Content at the path, or null if it was not prefetched.
+   */
+  public Content getContent(String path) {
+    return path == null ? null : content.get(path);
+  }
+
+  /**
+   * @param id
+   * @return the Authorizable with the id, or null if it was not prefetched.
+   */
+  public Authorizable getAuthorizable(String id) {
+    return id == null ? null : authorizables.get(id);
+  }
+
+  public void putContent(Content c) {
+    if (c != null) {
+      content.put(c.getPath(), c);
+    }
+  }
+
+  public void putAuthorizable(Authorizable a) {
+    if (a != null) {
+      authorizables.put(a.getId(), a);
+    }
+  }
+
+  public int size() {
+    return content.size() + authorizables.size();
+  }
+}
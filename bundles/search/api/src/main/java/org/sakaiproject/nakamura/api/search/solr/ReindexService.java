@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+/**
+ * Rebuilds the index from storage, for example after a schema change. The job walks
+ * every authorizable and every item of content and has each refreshed, so that the
+ * registered indexing handlers index it again. Progress is checkpointed in storage as
+ * the job goes, so a job that is stopped, or interrupted by a restart, carries on from
+ * where it got to.
+ */
+public interface ReindexService {
+
+  /**
+   * Start a reindex job in the background.
+   *
+   * @param resume
+   *          true to carry on from the checkpoint of an unfinished job, if there is one,
+   *          false to start from the beginning.
+   * @return false if a job is already running.
+   */
+  boolean start(boolean resume);
+
+  /**
+   * Stop the running job once it has checkpointed the items it is working on. It can be
+   * resumed later.
+   */
+  void stop();
+
+  /**
+   * @return true if a job is running.
+   */
+  boolean isRunning();
+
+  /**
+   * @return the number of items the current or last job has refreshed.
+   */
+  long getDone();
+
+  /**
+   * @return roughly how many items there are to refresh, or -1 if that is not known.
+   */
+  long getEstimatedTotal();
+
+  /**
+   * @return the items refreshed per second since the job was started or resumed.
+   */
+  double getItemsPerSecond();
+
+  /**
+   * @return roughly how many seconds the running job has left, or -1 if that is not
+   *         known.
+   */
+  long getEtaSeconds();
+
+  /**
+   * @return a line describing the progress of the current or last job.
+   */
+  String getStatus();
+}
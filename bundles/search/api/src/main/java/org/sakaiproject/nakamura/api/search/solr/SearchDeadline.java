@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time a request has left to wait for the searches it started with
+ * {@link SolrSearchServiceFactory#getSearchResultSetAsync(org.apache.sling.api.SlingHttpServletRequest, Query, boolean)}.
+ * Every wait comes out of the same allowance, so a request that joins on several
+ * searches waits no longer in total than the deadline allows.
+ */
+public class SearchDeadline {
+
+  private final long deadline;
+
+  /**
+   * @param millis
+   *          the time allowed from now, in ms.
+   */
+  public SearchDeadline(long millis) {
+    deadline = System.currentTimeMillis() + Math.max(0, millis);
+  }
+
+  /**
+   * @return the time left in ms, 0 once the deadline has passed.
+   */
+  public long remaining() {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  public boolean isExpired() {
+    return remaining() == 0;
+  }
+
+  /**
+   * Wait for a search to finish, no later than the deadline. A search that is still
+   * running at the deadline is cancelled.
+   *
+   * @param future
+   * @return the result of the search.
+   * @throws SolrSearchException
+   *           with a 504 code if the deadline passed, or the exception the search failed
+   *           with.
+   */
+  public <T> T get(Future<T> future) throws SolrSearchException {
+    try {
+      return future.get(remaining(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new SolrSearchException(504, "The search did not finish in time");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SolrSearchException(500, "Interrupted while waiting for a search");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SolrSearchException) {
+        throw (SolrSearchException) e.getCause();
+      }
+      throw new SolrSearchException(500, String.valueOf(e.getCause()));
+    }
+  }
+}
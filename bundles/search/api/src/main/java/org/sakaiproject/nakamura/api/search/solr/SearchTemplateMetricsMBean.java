@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+/**
+ * JMX view of the searches run against one search template. Latencies are split into
+ * the query phase, which binds the template and runs the solr or sparse query, the
+ * processing phase, which loads the content the page of results refers to, and the
+ * writing phase, which writes the whole response, the results included. Result
+ * processors write as they go, so any work they do per result counts as writing.
+ * Histogram counts line up with {@link #getHistogramBounds()}, with one more count at
+ * the end for anything slower than the last bound.
+ */
+public interface SearchTemplateMetricsMBean {
+
+  /**
+   * The type key of the object names the metrics are registered under.
+   */
+  String TYPE = "SearchTemplateMetrics";
+
+  /**
+   * @return the path of the search template.
+   */
+  String getPath();
+
+  /**
+   * @return the number of searches that completed.
+   */
+  long getCalls();
+
+  /**
+   * @return the number of searches that failed with a server side error.
+   */
+  long getErrors();
+
+  /**
+   * @return the number of responses served from the response cache.
+   */
+  long getCachedResponses();
+
+  /**
+   * @return the number of searches turned away because the template was running as many
+   *         as it may.
+   */
+  long getRejected();
+
+  /**
+   * @return the total number of results written.
+   */
+  long getResults();
+
+  /**
+   * @return the largest number of results written for one search.
+   */
+  long getMaxResults();
+
+  /**
+   * @return the mean time of a whole search, in ms.
+   */
+  double getAverageMillis();
+
+  /**
+   * @return the longest time taken by a whole search, in ms.
+   */
+  long getMaxMillis();
+
+  /**
+   * @return the upper bounds of the histogram buckets, in ms.
+   */
+  long[] getHistogramBounds();
+
+  long[] getQueryHistogram();
+
+  long[] getProcessingHistogram();
+
+  long[] getWritingHistogram();
+
+  long getQueryMillis();
+
+  long getProcessingMillis();
+
+  long getWritingMillis();
+
+  /**
+   * Start counting again from zero.
+   */
+  void reset();
+
+}
@@ -51,6 +51,15 @@ public interface SolrSearchConstants {
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * Request parameter selecting cursor paging. The value is * for the first page, then
+   * the {@link #JSON_NEXT_CURSOR} returned with the previous page.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The token for the page after this one when cursor paging, null after the last page.
+   */
+  public static final String JSON_NEXT_CURSOR = "nextcursor";
   /**
    *
    */
@@ -102,6 +111,34 @@ public interface SolrSearchConstants {
    *
    */
   public static final String SAKAI_BATCHRESULTPROCESSOR = "sakai:batchresultprocessor";
+  /**
+   * Property naming the fields a search writes straight from the index, rather than
+   * loading each hit from storage. Each value is either a property name that is stored
+   * in the index under the same name, or property=solrfield. A field the index does not
+   * store is still loaded from storage for every hit.
+   */
+  public static final String SAKAI_PROJECTION = "sakai:projection";
+  /**
+   * Property that, set to true on a search node, caches its rendered responses until the
+   * next index commit. Only for templates whose output depends on nothing but the request
+   * parameters and what the user can read.
+   */
+  public static final String SAKAI_CACHE_RESPONSE = "sakai:cache-response";
+  /**
+   * Property capping the number of searches of a template that may run at once. Any more
+   * are turned away with a 503 rather than queued.
+   */
+  public static final String SAKAI_MAX_CONCURRENT = "sakai:max-concurrent";
+  /**
+   * Property giving solr a time budget in ms for a search of the template. A search that
+   * runs out of time returns the hits found so far, flagged with {@link #JSON_PARTIAL}.
+   */
+  public static final String SAKAI_TIME_ALLOWED = "sakai:time-allowed";
+  /**
+   * True if the search ran out of time and the results are incomplete. Only written for
+   * templates with a {@link #SAKAI_TIME_ALLOWED}.
+   */
+  public static final String JSON_PARTIAL = "partial";
   /**
   *
   */
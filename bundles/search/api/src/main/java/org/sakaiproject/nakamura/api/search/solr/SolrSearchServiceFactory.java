@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.api.search.solr;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 
+import java.util.concurrent.Future;
+
 public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query,
@@ -26,4 +28,22 @@ public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SolrSearchException;
+
+  /**
+   * Start a search that runs while the caller gets on with other work, so that
+   * independent searches made for one request can run in parallel. The search runs on a
+   * bounded pool; when the pool is busy it runs on the calling thread before this method
+   * returns. Anything the search needs from the request's session is resolved before
+   * this method returns, but the request must stay open until the search has finished
+   * or been cancelled. Wait for the result with a {@link SearchDeadline} to cap the time
+   * a request spends waiting.
+   *
+   * @param request
+   * @param query
+   * @param asAnon
+   * @return the running search, whose result is null if no factory handles the query
+   *         type and which fails with the {@link SolrSearchException} of the search.
+   */
+  Future<SolrSearchResultSet> getSearchResultSetAsync(SlingHttpServletRequest request,
+      Query query, boolean asAnon);
 }
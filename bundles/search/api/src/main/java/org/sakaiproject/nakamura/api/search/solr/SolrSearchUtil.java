@@ -229,26 +229,9 @@ public class SolrSearchUtil {
                                                   String... options)
     throws SolrSearchException
   {
-    if ((options.length % 2) != 0) {
-      throw new IllegalArgumentException("The number of getRandomResults options must be even.");
-    }
-
-    final Map<String,Object> queryOptions = new HashMap<String,Object>();
-    for (int i = 0; i < options.length; i += 2) {
-      queryOptions.put(options[i], options[i + 1]);
-    }
-
-    // random solr sorting requires a seed for the dynamic random_* field
-    final int random = (int) (Math.random() * 10000);
-    queryOptions.put("sort", "random_" + random + " desc");
-
     SolrSearchResultSet rs = null;
     try {
-      rs = searchProcessor.getSearchResultSet
-        (request,
-         new org.sakaiproject.nakamura.api.search.solr.Query(org.sakaiproject.nakamura.api.search.solr.Query.SOLR,
-                                                             query,
-                                                             queryOptions));
+      rs = searchProcessor.getSearchResultSet(request, getRandomQuery(query, options));
 
       if (rs == null) {
         return null;
@@ -261,4 +244,31 @@ public class SolrSearchUtil {
       throw new IllegalStateException(e);
     }
   }
+
+  /**
+   * Build a query that returns its matches in a random order.
+   *
+   * @param query
+   * @param options
+   *          query option names and values, in pairs.
+   * @return the query.
+   */
+  public static org.sakaiproject.nakamura.api.search.solr.Query getRandomQuery(
+      String query, String... options) {
+    if ((options.length % 2) != 0) {
+      throw new IllegalArgumentException("The number of getRandomResults options must be even.");
+    }
+
+    final Map<String,Object> queryOptions = new HashMap<String,Object>();
+    for (int i = 0; i < options.length; i += 2) {
+      queryOptions.put(options[i], options[i + 1]);
+    }
+
+    // random solr sorting requires a seed for the dynamic random_* field
+    final int random = (int) (Math.random() * 10000);
+    queryOptions.put("sort", "random_" + random + " desc");
+
+    return new org.sakaiproject.nakamura.api.search.solr.Query(
+        org.sakaiproject.nakamura.api.search.solr.Query.SOLR, query, queryOptions);
+  }
 }
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A set of deleted paths that never holds a path and one of its descendants, since
+ * deleting a path deletes everything below it. Paths are kept in the order they were
+ * deleted. The set is not thread safe.
+ */
+public class DeletedPathSet {
+
+  /**
+   * The character immediately after '/', used as the exclusive upper bound of a
+   * subtree range.
+   */
+  private static final char AFTER_SEPARATOR = (char) ('/' + 1);
+
+  private final Set<String> ordered = new LinkedHashSet<String>();
+  private final NavigableSet<String> sorted = new TreeSet<String>();
+
+  /**
+   * Add a path, dropping any of its descendants already in the set.
+   *
+   * @param path
+   * @return true if the set changed, false if the path was already covered.
+   */
+  public boolean add(String path) {
+    if (path == null || path.length() == 0 || isCovered(sorted, path)) {
+      return false;
+    }
+    String base = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    NavigableSet<String> descendants = sorted.subSet(base + "/", true,
+        base + AFTER_SEPARATOR, false);
+    ordered.removeAll(descendants);
+    descendants.clear();
+    ordered.add(path);
+    sorted.add(path);
+    return true;
+  }
+
+  public void clear() {
+    ordered.clear();
+    sorted.clear();
+  }
+
+  public int size() {
+    return ordered.size();
+  }
+
+  /**
+   * @return the paths in the order they were deleted.
+   */
+  public List<String> getPaths() {
+    return new ArrayList<String>(ordered);
+  }
+
+  /**
+   * Merge lists of paths from several sources into one list in which no path is a
+   * descendant of another, keeping the order of the lists.
+   *
+   * @param lists
+   * @return the merged paths.
+   */
+  public static List<String> merge(Collection<List<String>> lists) {
+    Set<String> all = new HashSet<String>();
+    for (List<String> list : lists) {
+      all.addAll(list);
+    }
+    List<String> merged = new ArrayList<String>();
+    Set<String> seen = new HashSet<String>();
+    for (List<String> list : lists) {
+      for (String path : list) {
+        if (seen.add(path) && !hasAncestorIn(all, path)) {
+          merged.add(path);
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return true if the path, or one of its ancestors, is in the set.
+   */
+  private static boolean isCovered(Set<String> paths, String path) {
+    return paths.contains(path) || hasAncestorIn(paths, path);
+  }
+
+  private static boolean hasAncestorIn(Set<String> paths, String path) {
+    for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+      if (paths.contains(path.substring(0, i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
@@ -19,12 +19,13 @@ package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
@@ -44,6 +45,11 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine publishes its deleted paths as a single entry, a version followed by the
+ * paths, with any path below another deleted path left out. Reading the paths of the
+ * cluster costs one cache read per machine, and the merged paths and filter are only
+ * rebuilt when one of the versions changes.
  */
 @Component
 @Service
@@ -61,6 +67,19 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  /**
+   * The authoritative copy of this machine's deleted paths, guarded by itself.
+   */
+  private final DeletedPathSet localPaths = new DeletedPathSet();
+
+  /**
+   * Versions start from the time the service was created so that a restarted machine
+   * never republishes a version the rest of the cluster has already seen.
+   */
+  private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+  private volatile Merged merged = new Merged("", new ArrayList<String>(), null);
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -75,33 +94,23 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * deleted since the last Solr commit.  This cache is shared by all nodes in a
    * cluster, acting as a sort of shared memory.
    */
-  private Cache<String> getDeletedPathCache() {
+  private Cache<String[]> getDeletedPathCache() {
     return cacheManagerService.getCache(DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
   }
 
+  private static String getKey(String serverId) {
+    return "paths@" + serverId;
+  }
+
   /**
    * Record a path as having been deleted, preventing it from appearing in search results.
    *
    * @param path the path that was deleted
    */
-  private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
+  private void storeDeletedPath(String path) {
+    synchronized (localPaths) {
+      if (localPaths.add(path)) {
+        publish();
       }
     }
   }
@@ -109,16 +118,62 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
   /**
    * Clear the list of deleted nodes for this node.
    */
-  private synchronized void clearDeletedPaths() {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
+  private void clearDeletedPaths() {
+    synchronized (localPaths) {
+      localPaths.clear();
+      publish();
+    }
+  }
 
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+  /**
+   * Publish this machine's paths to the cluster, must be called holding localPaths.
+   */
+  private void publish() {
+    List<String> paths = localPaths.getPaths();
+    String[] entry = new String[paths.size() + 1];
+    entry[0] = String.valueOf(version.incrementAndGet());
+    for (int i = 0; i < paths.size(); i++) {
+      entry[i + 1] = paths.get(i);
     }
+    getDeletedPathCache().put(getKey(clusterTrackingService.getCurrentServerId()), entry);
+  }
 
-    cache.put("pathCount@" + myId, Integer.toString(0));
+  /**
+   * Get the merged paths of the cluster, rebuilding them only if a machine has published
+   * a new version since they were last built.
+   */
+  private Merged getMerged() {
+    Cache<String[]> cache = getDeletedPathCache();
+    List<String[]> entries = new ArrayList<String[]>();
+    StringBuilder versions = new StringBuilder();
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      String serverId = server.getServerId();
+      String[] entry = cache.get(getKey(serverId));
+      if (entry != null && entry.length > 1) {
+        entries.add(entry);
+        versions.append(serverId).append('=').append(entry[0]).append(';');
+      }
+    }
+    Merged current = merged;
+    if (current.versions.equals(versions.toString())) {
+      return current;
+    }
+    List<List<String>> lists = new ArrayList<List<String>>();
+    for (String[] entry : entries) {
+      List<String> list = new ArrayList<String>(entry.length - 1);
+      for (int i = 1; i < entry.length; i++) {
+        list.add(SearchUtil.escapeString(entry[i], Query.SOLR));
+      }
+      lists.add(list);
+    }
+    List<String> paths = DeletedPathSet.merge(lists);
+    String filter = null;
+    if (!paths.isEmpty()) {
+      filter = "-path:(" + StringUtils.join(paths, " OR ") + ")";
+    }
+    current = new Merged(versions.toString(), paths, filter);
+    merged = current;
+    return current;
   }
 
   // ---------- DeletedPathsService interface ----------------------------------
@@ -129,23 +184,17 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    */
   @Override
   public List<String> getDeletedPaths() {
-    List<String> deletedPaths = new ArrayList<String>();
-    Cache<String> cache = getDeletedPathCache();
-
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
-          deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
-        }
-      }
-    }
+    return new ArrayList<String>(getMerged().paths);
+  }
 
-    return deletedPaths;
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilter()
+   */
+  @Override
+  public String getDeletedPathsFilter() {
+    return getMerged().filter;
   }
 
   // ---------- EventHandler interface -----------------------------------------
@@ -163,4 +212,19 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
       clearDeletedPaths();
     }
   }
+
+  /**
+   * The merged paths of the cluster and the versions they were built from.
+   */
+  private static class Merged {
+    private final String versions;
+    private final List<String> paths;
+    private final String filter;
+
+    private Merged(String versions, List<String> paths, String filter) {
+      this.versions = versions;
+      this.paths = paths;
+      this.filter = filter;
+    }
+  }
 }
@@ -17,44 +17,53 @@
  */
 package org.sakaiproject.nakamura.search;
 
+import org.sakaiproject.nakamura.api.search.MergingIterator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
+/**
+ * Merges row iterators that are each sorted by descending score, keeping the merged rows
+ * in descending score order.
+ */
 public class MergedRowIterator implements RowIterator {
 
-  private RowIterator iteratorA;
-  private RowIterator iteratorB;
+  private static final Comparator<Row> BY_SCORE = new Comparator<Row>() {
+    public int compare(Row a, Row b) {
+      long l1 = getScore(a);
+      long l2 = getScore(b);
+      return l1 > l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+  };
 
-  private Row rowA = null;
-  private Row rowB = null;
+  private final MergingIterator<Row> rows;
 
   private int pos;
 
-  public MergedRowIterator(RowIterator iteratorA, RowIterator iteratorB) {
-    this.iteratorA = iteratorA;
-    this.iteratorB = iteratorB;
+  @SuppressWarnings("unchecked")
+  public MergedRowIterator(RowIterator... iterators) {
+    List<Iterator<Row>> inputs = new ArrayList<Iterator<Row>>(iterators.length);
+    for (RowIterator iterator : iterators) {
+      inputs.add(iterator);
+    }
+    rows = new MergingIterator<Row>(BY_SCORE, inputs);
   }
 
   public Row nextRow() {
-    Row rowA = getRowA();
-    Row rowB = getRowB();
-
     Row r = null;
-
-    if (compare(rowA, rowB)) {
-      r = rowA;
-      this.rowA = null;
-    } else {
-      r = rowB;
-      this.rowB = null;
-    }
-    pos++;
-    if (r == null) {
+    try {
+      r = rows.next();
+    } catch (NoSuchElementException e) {
       throw new IllegalStateException();
     }
+    pos++;
     return r;
   }
 
@@ -69,7 +78,6 @@ public class MergedRowIterator implements RowIterator {
   }
 
   public void skip(long skipNum) {
-    // TODO Find a better performing mechanism for this.
     while (skipNum > 0) {
       try {
         nextRow();
@@ -81,7 +89,7 @@ public class MergedRowIterator implements RowIterator {
   }
 
   public boolean hasNext() {
-    return iteratorA.hasNext() || iteratorB.hasNext();
+    return rows.hasNext();
   }
 
   public Object next() {
@@ -92,37 +100,12 @@ public class MergedRowIterator implements RowIterator {
     throw new UnsupportedOperationException();
   }
 
-  private long getScore(Row row) {
+  private static long getScore(Row row) {
     try {
-      if (row == null) {
-        return Long.MIN_VALUE;
-      }
       return row.getValue("jcr:score").getLong();
     } catch (RepositoryException e) {
       return 0;
     }
   }
 
-  private boolean compare(Row rowA, Row rowB) {
-    long l1 = getScore(rowA);
-    long l2 = getScore(rowB);
-    return (l1 >= l2);
-  }
-
-  private Row getRowA() {
-    if (rowA == null && iteratorA.hasNext()) {
-      this.rowA = iteratorA.nextRow();
-    }
-
-    return rowA;
-  }
-
-  private Row getRowB() {
-    if (rowB == null && iteratorB.hasNext()) {
-      this.rowB = iteratorB.nextRow();
-    }
-
-    return rowB;
-  }
-
 }
@@ -29,6 +29,7 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
@@ -50,8 +51,9 @@ import org.slf4j.LoggerFactory;
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = SolrSearchConstants.REG_PROCESSOR_NAMES, value = "Resource"),
     @Property(name = SolrSearchResultProcessor.DEFAULT_PROCESSOR_PROP, boolValue = true) })
-@Service
-public class DefaultSearchResultProcessor implements SolrSearchResultProcessor {
+@Service(value = SolrSearchResultProcessor.class)
+public class DefaultSearchResultProcessor implements SolrSearchResultProcessor,
+    PrefetchedResults.Reader {
 
   private static final Logger LOGGER = LoggerFactory
     .getLogger(DefaultSearchResultProcessor.class);
@@ -82,7 +84,14 @@ public class DefaultSearchResultProcessor implements SolrSearchResultProcessor {
     Session session =
       StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
     try {
-      Content contentResult = session.getContentManager().get(contentPath);
+      Content contentResult = null;
+      PrefetchedResults prefetched = PrefetchedResults.get(request);
+      if (prefetched != null) {
+        contentResult = prefetched.getContent(contentPath);
+      }
+      if (contentResult == null) {
+        contentResult = session.getContentManager().get(contentPath);
+      }
       if (contentResult != null) {
         int traversalDepth = SearchUtil.getTraversalDepth(request, -1);
         ExtendedJSONWriter.writeContentTreeToWriter(write, contentResult, traversalDepth);
@@ -0,0 +1,370 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counts the added and updated events raised for each path, and the ones indexing
+ * handlers have been given. While the count for a path is above what has been indexed, a
+ * later event is still in the indexing queue and an earlier one can be skipped. A count
+ * is only trusted for a window after the last event for the path was raised.
+ * <p>
+ * Not every counted event reaches a handler that asks about it: it may go to a handler
+ * that does not coalesce, or be dropped by the queue. So a skip is only provisional. If
+ * nothing has been indexed for the path a window after an event was skipped, the count is
+ * dropped and the path is refreshed, which raises a new event to index it.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { IndexingCoalescer.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.ADDED_TOPIC,
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.ADDED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC },
+        propertyPrivate = true) })
+public class IndexingCoalescerImpl implements IndexingCoalescer, EventHandler,
+    IndexingCoalescerMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexingCoalescerImpl.class);
+
+  /**
+   * How long after an event is raised it is trusted to still be on its way to the
+   * indexer, in ms. 0 turns coalescing off.
+   */
+  @Property(longValue = 30000L)
+  static final String WINDOW = "window";
+
+  /**
+   * Paths are swept for expired counts once this many are being tracked.
+   */
+  private static final int SWEEP_SIZE = 10000;
+
+  private static final String CONTENT_TOPIC = StoreListener.TOPIC_BASE + "content/";
+  private static final String AUTHORIZABLES_TOPIC = StoreListener.TOPIC_BASE
+      + "authorizables/";
+
+  @Reference
+  protected Repository repository;
+
+  private long window = 30000L;
+
+  private ObjectName objectName;
+
+  private ScheduledExecutorService refresher;
+
+  private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+  private final AtomicLong queueDepth = new AtomicLong();
+  private final AtomicLong raised = new AtomicLong();
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong lagged = new AtomicLong();
+  private final AtomicLong totalLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+  private final AtomicLong refreshed = new AtomicLong();
+
+  /**
+   * The events raised for a path that have not been indexed.
+   */
+  private static class Pending {
+    final AtomicInteger count = new AtomicInteger();
+    volatile long lastRaised;
+    /**
+     * When an event was last skipped for a later one, 0 once an event has been indexed.
+     */
+    volatile long lastSkipped;
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    window = PropertiesUtil.toLong(props.get(WINDOW), 30000L);
+    stopRefresher();
+    if (window > 0) {
+      refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Indexing Coalescer Refresh");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      refresher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          refreshSkipped(System.currentTimeMillis());
+        }
+      }, window, window, TimeUnit.MILLISECONDS);
+    }
+    try {
+      objectName = new ObjectName(SearchMetrics.JMX_DOMAIN + ":type=IndexingCoalescer");
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, IndexingCoalescerMBean.class),
+          objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the indexing coalescer: {} ", e.getMessage());
+      objectName = null;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    stopRefresher();
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}: {} ", objectName, e.getMessage());
+      }
+      objectName = null;
+    }
+    pending.clear();
+  }
+
+  private void stopRefresher() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Counts an event raised for a path.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String key = getKey(event);
+    if (key == null || window <= 0) {
+      return;
+    }
+    raised.incrementAndGet();
+    Pending p = getPending(key);
+    p.lastRaised = System.currentTimeMillis();
+    p.count.incrementAndGet();
+    queueDepth.incrementAndGet();
+  }
+
+  private Pending getPending(String key) {
+    Pending p = pending.get(key);
+    if (p == null) {
+      if (pending.size() >= SWEEP_SIZE) {
+        sweep();
+      }
+      Pending created = new Pending();
+      created.lastRaised = System.currentTimeMillis();
+      p = pending.putIfAbsent(key, created);
+      if (p == null) {
+        p = created;
+      }
+    }
+    return p;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer#isSuperseded(org.osgi.service.event.Event)
+   */
+  public boolean isSuperseded(Event event) {
+    String topic = event.getTopic();
+    if (topic == null || !(topic.endsWith(StoreListener.ADDED_TOPIC)
+        || topic.endsWith(StoreListener.UPDATED_TOPIC))) {
+      return false;
+    }
+    String key = getKey(event);
+    if (key == null || window <= 0) {
+      indexed.incrementAndGet();
+      return false;
+    }
+    // an event can reach the indexer before it is counted here, its count then takes
+    // the path back to zero.
+    Pending p = getPending(key);
+    queueDepth.decrementAndGet();
+    int left = p.count.decrementAndGet();
+    long lag = System.currentTimeMillis() - p.lastRaised;
+    if (left > 0 && lag <= window) {
+      coalesced.incrementAndGet();
+      p.lastSkipped = System.currentTimeMillis();
+      return true;
+    }
+    p.lastSkipped = 0;
+    indexed.incrementAndGet();
+    lagged.incrementAndGet();
+    totalLag.addAndGet(lag);
+    long max = maxLag.get();
+    while (lag > max && !maxLag.compareAndSet(max, lag)) {
+      max = maxLag.get();
+    }
+    if (left == 0) {
+      pending.remove(key, p);
+    }
+    return false;
+  }
+
+  /**
+   * Refresh the paths that had an event skipped a window or more ago and nothing indexed
+   * since, so the event that superseded it never reached a handler. Their counts cannot
+   * be trusted, so they are dropped before the refresh raises a new event.
+   *
+   * @param now
+   */
+  void refreshSkipped(long now) {
+    List<String> keys = new ArrayList<String>();
+    for (Entry<String, Pending> e : pending.entrySet()) {
+      Pending p = e.getValue();
+      long skipped = p.lastSkipped;
+      if (skipped > 0 && now - skipped > window && pending.remove(e.getKey(), p)) {
+        queueDepth.addAndGet(-p.count.get());
+        keys.add(e.getKey());
+      }
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+    try {
+      Session session = repository.loginAdministrative();
+      try {
+        for (String key : keys) {
+          if (key.startsWith(AUTHORIZABLES_TOPIC)) {
+            session.getAuthorizableManager().triggerRefresh(
+                key.substring(AUTHORIZABLES_TOPIC.length()));
+            refreshed.incrementAndGet();
+          } else if (key.startsWith(CONTENT_TOPIC)) {
+            session.getContentManager().triggerRefresh(key.substring(CONTENT_TOPIC.length()));
+            refreshed.incrementAndGet();
+          }
+        }
+      } finally {
+        session.logout();
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to refresh paths with skipped events: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to refresh paths with skipped events: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Drop the counts that are too old to be trusted, unless they hold a skipped event
+   * that is waiting to be refreshed.
+   */
+  private void sweep() {
+    long expired = System.currentTimeMillis() - window;
+    for (Iterator<Pending> i = pending.values().iterator(); i.hasNext();) {
+      Pending p = i.next();
+      if (p.lastRaised < expired && p.lastSkipped == 0) {
+        queueDepth.addAndGet(-p.count.get());
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the topic family and path the event is counted under, or null if it has no
+   *         path.
+   */
+  private static String getKey(Event event) {
+    Object path = event.getProperty(IndexingHandler.FIELD_PATH);
+    String topic = event.getTopic();
+    if (path == null || topic == null) {
+      return null;
+    }
+    return topic.substring(0, topic.lastIndexOf('/') + 1) + path;
+  }
+
+  public long getQueueDepth() {
+    return Math.max(0, queueDepth.get());
+  }
+
+  public int getTrackedPaths() {
+    return pending.size();
+  }
+
+  public long getEventsRaised() {
+    return raised.get();
+  }
+
+  public long getEventsIndexed() {
+    return indexed.get();
+  }
+
+  public long getEventsCoalesced() {
+    return coalesced.get();
+  }
+
+  public double getCoalesceRatio() {
+    long total = indexed.get() + coalesced.get();
+    return total == 0 ? 0 : (double) coalesced.get() / total;
+  }
+
+  public double getAverageLagMillis() {
+    long n = lagged.get();
+    return n == 0 ? 0 : (double) totalLag.get() / n;
+  }
+
+  public long getMaxLagMillis() {
+    return maxLag.get();
+  }
+
+  public long getPathsRefreshed() {
+    return refreshed.get();
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+/**
+ * JMX view of the events passing through the indexing coalescer.
+ */
+public interface IndexingCoalescerMBean {
+
+  /**
+   * @return the number of added and updated events raised but not yet indexed.
+   */
+  long getQueueDepth();
+
+  /**
+   * @return the number of paths with events being counted.
+   */
+  int getTrackedPaths();
+
+  long getEventsRaised();
+
+  /**
+   * @return the number of events whose documents were built.
+   */
+  long getEventsIndexed();
+
+  /**
+   * @return the number of events skipped because a later event for the path was to come.
+   */
+  long getEventsCoalesced();
+
+  /**
+   * @return coalesced / (indexed + coalesced), or 0 if nothing has been indexed.
+   */
+  double getCoalesceRatio();
+
+  /**
+   * @return the mean time from the latest event for a path being raised to its
+   *         documents being built, in ms.
+   */
+  double getAverageLagMillis();
+
+  /**
+   * @return the longest time from the latest event for a path being raised to its
+   *         documents being built, in ms.
+   */
+  long getMaxLagMillis();
+
+  /**
+   * @return the number of paths refreshed because an event was skipped for a later one
+   *         that was never indexed.
+   */
+  long getPathsRefreshed();
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Writes search results from the fields stored in the index, for search templates that
+ * declare a projection. A stored field missing from a hit has no value and is left out.
+ * Storage is only read for declared fields the index does not store, which the template
+ * is warned about when it is compiled, and then only once for each hit.
+ */
+public class ProjectionResultWriter {
+
+  private static final String PATH_FIELD = "path";
+
+  /**
+   * Output property name to index field name, in declaration order.
+   */
+  private final Map<String, String> fields = new LinkedHashMap<String, String>();
+
+  /**
+   * The output property names whose index field is not stored.
+   */
+  private final Set<String> unstored = new LinkedHashSet<String>();
+
+  /**
+   * @param declarations
+   *          property names, or property=solrfield pairs.
+   * @param storedFields
+   *          the fields the index stores, if null every declared field is taken to be
+   *          stored.
+   */
+  public ProjectionResultWriter(String[] declarations, StoredFields storedFields) {
+    for (String declaration : declarations) {
+      if (StringUtils.isBlank(declaration)) {
+        continue;
+      }
+      int i = declaration.indexOf('=');
+      String property;
+      String field;
+      if (i > 0) {
+        property = declaration.substring(0, i).trim();
+        field = declaration.substring(i + 1).trim();
+      } else {
+        property = declaration.trim();
+        field = property;
+      }
+      fields.put(property, field);
+      if (storedFields != null && !storedFields.isStored(field)) {
+        unstored.add(property);
+      }
+    }
+  }
+
+  /**
+   * @return the declared properties that have to be loaded from storage for every hit,
+   *         because the index does not store their fields.
+   */
+  public Set<String> getUnstoredFields() {
+    return unstored;
+  }
+
+  /**
+   * @param existing
+   *          the field list already set on the query, may be null.
+   * @return the field list the query must ask for so the projection can be written.
+   */
+  public String getFieldList(Object existing) {
+    Set<String> fl = new LinkedHashSet<String>();
+    if (existing != null) {
+      for (String f : StringUtils.split(String.valueOf(existing), ", ")) {
+        fl.add(f);
+      }
+    }
+    fl.add(PATH_FIELD);
+    fl.addAll(fields.values());
+    return StringUtils.join(fl, ",");
+  }
+
+  /**
+   * Write a result as an object holding its path and the declared fields.
+   *
+   * @param request
+   * @param write
+   * @param result
+   * @throws JSONException
+   */
+  public void writeResult(SlingHttpServletRequest request, JSONWriter write, Result result)
+      throws JSONException {
+    String path = result.getPath();
+    Map<String, Collection<Object>> stored = result.getProperties();
+    Map<String, Object> fromStorage = null;
+    write.object();
+    write.key(PATH_FIELD);
+    write.value(path);
+    for (Entry<String, String> field : fields.entrySet()) {
+      if (!unstored.contains(field.getKey())) {
+        Collection<Object> values = stored.get(field.getValue());
+        if (values != null && !values.isEmpty()) {
+          write.key(field.getKey());
+          writeValues(write, values);
+        }
+        continue;
+      }
+      if (fromStorage == null) {
+        fromStorage = loadProperties(request, path);
+      }
+      Object value = fromStorage.get(field.getKey());
+      if (value != null) {
+        write.key(field.getKey());
+        writeValue(write, value);
+      }
+    }
+    write.endObject();
+  }
+
+  /**
+   * Load the properties of a hit from storage, as content or, failing that, as an
+   * authorizable.
+   */
+  private Map<String, Object> loadProperties(SlingHttpServletRequest request, String path)
+      throws JSONException {
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    try {
+      Content content = session.getContentManager().get(path);
+      if (content != null) {
+        return content.getProperties();
+      }
+      Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(path);
+      if (authorizable != null) {
+        return authorizable.getSafeProperties();
+      }
+      return new LinkedHashMap<String, Object>();
+    } catch (StorageClientException e) {
+      throw new JSONException(e);
+    } catch (AccessDeniedException e) {
+      throw new JSONException(e);
+    }
+  }
+
+  private void writeValues(JSONWriter write, Collection<Object> values)
+      throws JSONException {
+    if (values.size() == 1) {
+      write.value(values.iterator().next());
+    } else {
+      write.array();
+      for (Object v : values) {
+        write.value(v);
+      }
+      write.endArray();
+    }
+  }
+
+  private void writeValue(JSONWriter write, Object value) throws JSONException {
+    if (value instanceof Object[]) {
+      write.array();
+      for (Object v : (Object[]) value) {
+        write.value(v);
+      }
+      write.endArray();
+    } else {
+      write.value(value);
+    }
+  }
+}
@@ -45,6 +45,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.QueryOutputService;
+import org.sakaiproject.nakamura.api.search.solr.ReindexService;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
@@ -90,6 +91,9 @@ public class QueryOutputServiceImpl implements QueryOutputService {
   @Reference
   private SlingRepository slingRepo;
 
+  @Reference
+  private ReindexService reindexService;
+
   private Set<String> IGNORE_PARAMS = ImmutableSet.of("q", "addReaders", "asAnon", "indent");
 
   private class SolrOutputIndenter {
@@ -360,6 +364,17 @@ public class QueryOutputServiceImpl implements QueryOutputService {
       } else if ("all".equalsIgnoreCase(type)) {
         indexAuthorizables(w);
         indexContent(w);
+      } else if ("job".equalsIgnoreCase(type)) {
+        if (!reindexService.start(true)) {
+          writeStatus(w, "A reindex job is already running.");
+        }
+        writeStatus(w, reindexService.getStatus());
+      } else if ("stop".equalsIgnoreCase(type)) {
+        reindexService.stop();
+        writeStatus(w, "The reindex job will stop once it has checkpointed. "
+            + reindexService.getStatus());
+      } else if ("status".equalsIgnoreCase(type)) {
+        writeStatus(w, reindexService.getStatus());
       } else {
         throw new IllegalArgumentException("Unable to handle request reindex type [" + type + "]");
       }
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheLoaderException;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Holds the readers filter query of each user, so that a search does not have to load
+ * the user and walk its groups, and so that the same user always sends Solr the same
+ * filter string, which Solr can then answer from its filterCache. The principals are
+ * sorted to make the filter canonical. The cache is cluster invalidated, so a membership
+ * change on one node is seen by all of them.
+ */
+public class ReadersFilterCache {
+
+  static final String CACHE_NAME = ReadersFilterCache.class.getName();
+
+  /**
+   * The filter of a search run as the anonymous user.
+   */
+  static final String ANON_FILTER = "readers:" + User.ANON_USER;
+
+  private final CacheManagerService cacheManagerService;
+  private final int compactThreshold;
+
+  /**
+   * @param cacheManagerService
+   * @param compactThreshold
+   *          users with more principals than this get the compact form of the filter, 0
+   *          to always use the long form.
+   */
+  public ReadersFilterCache(CacheManagerService cacheManagerService, int compactThreshold) {
+    this.cacheManagerService = cacheManagerService;
+    this.compactThreshold = compactThreshold;
+  }
+
+  /**
+   * Get the readers filter for the user of a session, building it if it is not cached.
+   *
+   * @param session
+   * @return the filter query.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getFilter(final Session session) throws StorageClientException,
+      AccessDeniedException {
+    try {
+      return getCache().getOrLoad(session.getUserId(), new CacheLoader<String>() {
+        public String load(String userId) throws Exception {
+          return buildFilter(getPrincipals(session.getAuthorizableManager(), userId),
+              compactThreshold);
+        }
+      });
+    } catch (CacheLoaderException e) {
+      if (e.getCause() instanceof StorageClientException) {
+        throw (StorageClientException) e.getCause();
+      } else if (e.getCause() instanceof AccessDeniedException) {
+        throw (AccessDeniedException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Invalidate after an authorizable has changed. A changed user only affects its own
+   * filter, but a changed group may affect any user in it, directly or through other
+   * groups, so anything that is not a cached user clears the whole cache.
+   *
+   * @param authorizableId
+   */
+  public void invalidate(String authorizableId) {
+    Cache<String> cache = getCache();
+    if (authorizableId != null && cache.containsKey(authorizableId)) {
+      cache.remove(authorizableId);
+    } else {
+      cache.clear();
+    }
+  }
+
+  private Cache<String> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * @param am
+   * @param userId
+   * @return the user and all the groups it is a member of, directly or not.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  static SortedSet<String> getPrincipals(AuthorizableManager am, String userId)
+      throws AccessDeniedException, StorageClientException {
+    SortedSet<String> principals = new TreeSet<String>();
+    Authorizable user = am.findAuthorizable(userId);
+    if (user != null) {
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        principals.add(gi.next().getId());
+      }
+    }
+    principals.add(userId);
+    return principals;
+  }
+
+  /**
+   * Build the readers filter query for a set of principals. The long form is
+   * <code>readers:(a OR b)</code>, the compact form leaves out the field name and
+   * operator on each term, <code>{!lucene q.op=OR df=readers}a b</code>, which matches
+   * the same documents in a fraction of the length.
+   *
+   * @param principals
+   *          the principals, in the order they should appear.
+   * @param compactThreshold
+   *          use the compact form when there are more principals than this, 0 to never
+   *          use it.
+   * @return the filter query.
+   */
+  static String buildFilter(Collection<String> principals, int compactThreshold) {
+    StringBuilder sb = new StringBuilder();
+    boolean compact = compactThreshold > 0 && principals.size() > compactThreshold;
+    sb.append(compact ? "{!lucene q.op=OR df=readers}" : "readers:(");
+    String separator = compact ? " " : " OR ";
+    boolean first = true;
+    for (String principal : principals) {
+      if (StringUtils.isEmpty(principal)) {
+        continue;
+      }
+      if (!first) {
+        sb.append(separator);
+      }
+      sb.append(SearchUtil.escapeString(principal, Query.SOLR));
+      first = false;
+    }
+    if (!compact) {
+      sb.append(")");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+/**
+ * Provides the readers filter that restricts a Solr search to what the user of a request
+ * may read.
+ */
+public interface ReadersFilterSource {
+
+  /**
+   * The request attribute holding a readers filter resolved ahead of the search, the
+   * empty string if the user may read everything. A search that runs off the request
+   * thread uses it rather than the request's session, which is not thread safe.
+   */
+  String READERS_FILTER = ReadersFilterSource.class.getName() + ".readersFilter";
+
+  /**
+   * @param request
+   * @return the readers filter query for the user of the request, or null if the user
+   *         may read everything.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  String getReadersFilter(SlingHttpServletRequest request) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * @param request
+   * @return the readers filter query a search made for the request applies: the one in
+   *         {@link #READERS_FILTER} if it has been resolved, or else the user's own. Null
+   *         if the user may read everything.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  String getSearchReadersFilter(SlingHttpServletRequest request)
+      throws StorageClientException, AccessDeniedException;
+
+}
@@ -0,0 +1,689 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
+import org.sakaiproject.nakamura.api.search.solr.ReindexService;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Reindexes everything in storage by refreshing each authorizable and item of content,
+ * which raises the same events a save does and so feeds the registered indexing
+ * handlers. The work is read in batches of units, users then groups then the content
+ * tree, and each batch is split into partitions refreshed in parallel, each through its
+ * own session. A user or group is a unit on its own. The content tree is cut into units
+ * at its top two levels: a top level item is refreshed on its own, and an item below it
+ * is refreshed together with everything beneath it, so the walk of the tree, which is
+ * most of the job, is shared between the partitions rather than made by the job thread
+ * alone. After every batch the position in the units is saved at
+ * {@link #CHECKPOINT_PATH}; a resumed job walks back to that position, checking the last
+ * unit it refreshed is still there, and starts the source over if it is not. Between
+ * batches the job waits while the indexing queue is deeper than a limit, so it goes no
+ * faster than the index can take it, and it is also held to a maximum rate so it does
+ * not crowd out live traffic.
+ */
+@Component(immediate = true, metatype = true)
+@Properties(value = {@Property(name = "service.vendor", value = "The Sakai Foundation")})
+@Service(value = ReindexService.class)
+public class ReindexServiceImpl implements ReindexService {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReindexServiceImpl.class);
+
+  static final String CHECKPOINT_PATH = "system/solr-reindex";
+
+  static final String STATE = "state";
+  static final String SOURCE = "source";
+  static final String POSITION = "position";
+  static final String LAST_KEY = "lastKey";
+  static final String DONE = "done";
+  static final String TOTAL = "total";
+
+  static final String RUNNING = "running";
+  static final String STOPPED = "stopped";
+  static final String COMPLETE = "complete";
+
+  private static final String[] SOURCES = { "users", "groups", "content" };
+
+  /**
+   * The number of partitions a batch is refreshed in.
+   */
+  @Property(intValue = 4)
+  static final String THREADS = "threads";
+
+  /**
+   * The number of units read and checkpointed at a time.
+   */
+  @Property(intValue = 500)
+  static final String BATCH_SIZE = "batchSize";
+
+  /**
+   * The most items to refresh a second, 0 for no limit.
+   */
+  @Property(intValue = 200)
+  static final String MAX_RATE = "maxRate";
+
+  /**
+   * The most events waiting to be indexed before the job waits for the indexing to catch
+   * up, 0 for no limit.
+   */
+  @Property(intValue = 1000)
+  static final String MAX_QUEUE_DEPTH = "maxQueueDepth";
+
+  /**
+   * How long to wait before looking at the indexing queue again, in ms.
+   */
+  private static final long QUEUE_POLL_MS = 250L;
+
+  /**
+   * Whether to carry on with a job that was running when the server stopped.
+   */
+  @Property(boolValue = true)
+  static final String RESUME_ON_START = "resumeOnStart";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile IndexingCoalescer indexingCoalescer;
+
+  private int threads;
+  private int batchSize;
+  private int maxRate;
+  private int maxQueueDepth;
+
+  private volatile Thread job;
+  private volatile boolean stopping;
+
+  private final AtomicLong done = new AtomicLong();
+  private volatile long estimatedTotal = -1;
+  private volatile long runStarted;
+  private volatile long runStartDone;
+  private volatile String state = "idle";
+  private long lastLogged;
+
+  private ObjectName objectName;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    threads = Math.max(1, PropertiesUtil.toInteger(props.get(THREADS), 4));
+    batchSize = Math.max(1, PropertiesUtil.toInteger(props.get(BATCH_SIZE), 500));
+    maxRate = PropertiesUtil.toInteger(props.get(MAX_RATE), 200);
+    maxQueueDepth = PropertiesUtil.toInteger(props.get(MAX_QUEUE_DEPTH), 1000);
+    try {
+      objectName = new ObjectName(SearchMetrics.JMX_DOMAIN + ":type=Reindex");
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, ReindexService.class), objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the reindex service: {} ", e.getMessage());
+      objectName = null;
+    }
+    if (PropertiesUtil.toBoolean(props.get(RESUME_ON_START), true)) {
+      try {
+        Map<String, Object> checkpoint = readCheckpoint();
+        if (checkpoint != null && RUNNING.equals(checkpoint.get(STATE))) {
+          LOGGER.info("Resuming the reindex job interrupted at {} {} of {}", new Object[] {
+              SOURCES[toInt(checkpoint.get(SOURCE))], checkpoint.get(POSITION),
+              checkpoint.get(LAST_KEY) });
+          start(true);
+        }
+      } catch (Exception e) {
+        LOGGER.warn("Unable to check for an interrupted reindex job: {}", e.getMessage());
+      }
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    stop();
+    Thread t = job;
+    if (t != null) {
+      try {
+        // give the job the chance to checkpoint, it is resumed on the next start.
+        t.join(30000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}: {} ", objectName, e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#start(boolean)
+   */
+  public synchronized boolean start(final boolean resume) {
+    if (job != null) {
+      return false;
+    }
+    stopping = false;
+    job = new Thread(new Runnable() {
+      public void run() {
+        try {
+          runJob(resume);
+        } catch (Exception e) {
+          LOGGER.error("The reindex job failed, it can be resumed: " + e.getMessage(), e);
+          state = "failed: " + e.getMessage();
+        } finally {
+          job = null;
+        }
+      }
+    }, "Solr Reindex");
+    job.setDaemon(true);
+    job.start();
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#stop()
+   */
+  public void stop() {
+    stopping = true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#isRunning()
+   */
+  public boolean isRunning() {
+    return job != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#getDone()
+   */
+  public long getDone() {
+    return done.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#getEstimatedTotal()
+   */
+  public long getEstimatedTotal() {
+    return estimatedTotal;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#getItemsPerSecond()
+   */
+  public double getItemsPerSecond() {
+    long elapsed = System.currentTimeMillis() - runStarted;
+    if (runStarted == 0 || elapsed <= 0) {
+      return 0.0;
+    }
+    return (done.get() - runStartDone) * 1000.0 / elapsed;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#getEtaSeconds()
+   */
+  public long getEtaSeconds() {
+    double rate = getItemsPerSecond();
+    long left = estimatedTotal - done.get();
+    if (!isRunning() || estimatedTotal < 0 || rate <= 0.0) {
+      return -1;
+    }
+    return (long) (Math.max(0, left) / rate);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.solr.ReindexService#getStatus()
+   */
+  public String getStatus() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Reindex ").append(state).append(": ").append(done.get());
+    if (estimatedTotal >= 0) {
+      sb.append(" of about ").append(estimatedTotal);
+    }
+    sb.append(" items refreshed");
+    if (isRunning()) {
+      sb.append(String.format(", %.1f a second", getItemsPerSecond()));
+      long eta = getEtaSeconds();
+      if (eta >= 0) {
+        sb.append(", about ").append(eta).append(" seconds to go");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Run a job on the calling thread.
+   *
+   * @param resume
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  void runJob(boolean resume) throws StorageClientException, AccessDeniedException {
+    Map<String, Object> checkpoint = readCheckpoint();
+    int source = 0;
+    long position = 0;
+    String lastKey = null;
+    long total = -1;
+    done.set(0);
+    if (checkpoint != null) {
+      total = toLong(checkpoint.get(TOTAL), -1);
+      if (resume && !COMPLETE.equals(checkpoint.get(STATE))) {
+        source = toInt(checkpoint.get(SOURCE));
+        position = toLong(checkpoint.get(POSITION), 0);
+        lastKey = (String) checkpoint.get(LAST_KEY);
+        done.set(toLong(checkpoint.get(DONE), 0));
+      }
+    }
+    estimatedTotal = total >= 0 ? total : countIndexed();
+    runStartDone = done.get();
+    runStarted = System.currentTimeMillis();
+    state = RUNNING;
+    LOGGER.info("Reindexing from {} {}, about {} items", new Object[] { SOURCES[source],
+        position, estimatedTotal });
+
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Solr Reindex " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    Session session = repository.loginAdministrative();
+    try {
+      while (source < SOURCES.length && !stopping) {
+        Walk walk = open(source, session);
+        if (position > 0 && !skip(walk, position, lastKey)) {
+          LOGGER.warn("The {} have changed since the reindex checkpoint, starting them over",
+              SOURCES[source]);
+          walk = open(source, session);
+          position = 0;
+        }
+        List<String> batch = walk.next(batchSize);
+        while (!batch.isEmpty()) {
+          if (!refresh(executor, walk, batch)) {
+            // stopped part way through, the batch is done again on resume.
+            break;
+          }
+          position += batch.size();
+          lastKey = batch.get(batch.size() - 1);
+          checkpoint(session, RUNNING, source, position, lastKey, total);
+          progress();
+          if (stopping) {
+            break;
+          }
+          pace();
+          batch = walk.next(batchSize);
+        }
+        if (batch.isEmpty()) {
+          source++;
+          position = 0;
+          lastKey = null;
+        }
+      }
+      if (source < SOURCES.length) {
+        state = STOPPED;
+        checkpoint(session, STOPPED, source, position, lastKey, total);
+        LOGGER.info("Reindex stopped after {} items, it can be resumed", done.get());
+      } else {
+        state = COMPLETE;
+        estimatedTotal = done.get();
+        checkpoint(session, COMPLETE, 0, 0, null, done.get());
+        LOGGER.info("Reindex complete, {} items refreshed", done.get());
+      }
+    } finally {
+      executor.shutdownNow();
+      session.logout();
+    }
+  }
+
+  /**
+   * Refresh a batch, split into partitions that are refreshed in parallel.
+   *
+   * @return true if every unit in the batch was refreshed, false if the job was stopped
+   *         first.
+   */
+  private boolean refresh(ExecutorService executor, final Walk walk, List<String> batch) {
+    int partitions = Math.min(threads, batch.size());
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions);
+    for (int p = 0; p < partitions; p++) {
+      final List<String> partition = new ArrayList<String>();
+      for (int i = p; i < batch.size(); i += partitions) {
+        partition.add(batch.get(i));
+      }
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          Session session = repository.loginAdministrative();
+          try {
+            for (String key : partition) {
+              if (stopping) {
+                break;
+              }
+              done.addAndGet(walk.refresh(session, key));
+            }
+          } finally {
+            session.logout();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> f : futures) {
+      try {
+        f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        stopping = true;
+      } catch (ExecutionException e) {
+        LOGGER.warn("Unable to refresh part of a batch: {}", e.getCause().getMessage());
+      }
+    }
+    return !stopping;
+  }
+
+  /**
+   * Read through the walk to a checkpointed position.
+   *
+   * @return true if the item at the position is the one that was checkpointed.
+   */
+  private boolean skip(Walk walk, long position, String lastKey)
+      throws StorageClientException, AccessDeniedException {
+    long skipped = 0;
+    String last = null;
+    while (skipped < position) {
+      List<String> batch = walk.next((int) Math.min(batchSize, position - skipped));
+      if (batch.isEmpty()) {
+        return false;
+      }
+      skipped += batch.size();
+      last = batch.get(batch.size() - 1);
+    }
+    return last != null && last.equals(lastKey);
+  }
+
+  /**
+   * Wait while the indexing queue is too deep, then long enough to keep the job under
+   * the maximum rate.
+   */
+  private void pace() {
+    try {
+      IndexingCoalescer coalescer = indexingCoalescer;
+      while (coalescer != null && maxQueueDepth > 0 && !stopping
+          && coalescer.getQueueDepth() > maxQueueDepth) {
+        Thread.sleep(QUEUE_POLL_MS);
+        coalescer = indexingCoalescer;
+      }
+      if (maxRate <= 0) {
+        return;
+      }
+      long due = runStarted + (done.get() - runStartDone) * 1000L / maxRate;
+      long wait = due - System.currentTimeMillis();
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stopping = true;
+    }
+  }
+
+  private void progress() {
+    long now = System.currentTimeMillis();
+    if (now - lastLogged > 30000L) {
+      lastLogged = now;
+      LOGGER.info(getStatus());
+    }
+  }
+
+  /**
+   * @return the number of documents in the index, as a first guess at the number of items
+   *         when no job has completed.
+   */
+  private long countIndexed() {
+    try {
+      SolrQuery query = new SolrQuery("*:*");
+      query.setRows(0);
+      return solrServerService.getServer().query(query).getResults().getNumFound();
+    } catch (SolrServerException e) {
+      LOGGER.info("Unable to count the indexed documents: {}", e.getMessage());
+      return -1;
+    }
+  }
+
+  private Map<String, Object> readCheckpoint() throws StorageClientException,
+      AccessDeniedException {
+    Session session = repository.loginAdministrative();
+    try {
+      Content checkpoint = session.getContentManager().get(CHECKPOINT_PATH);
+      return checkpoint == null ? null : checkpoint.getProperties();
+    } finally {
+      session.logout();
+    }
+  }
+
+  private void checkpoint(Session session, String jobState, int source, long position,
+      String lastKey, long total) throws StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = ImmutableMap.<String, Object> builder()
+        .put(STATE, jobState).put(SOURCE, source).put(POSITION, position)
+        .put(LAST_KEY, lastKey == null ? "" : lastKey).put(DONE, done.get())
+        .put(TOTAL, total).build();
+    session.getContentManager().update(new Content(CHECKPOINT_PATH, properties));
+  }
+
+  private Walk open(int source, Session session) throws StorageClientException,
+      AccessDeniedException {
+    switch (source) {
+    case 0:
+      return new AuthorizableWalk(session.getAuthorizableManager().findAuthorizable(
+          Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.USER_VALUE, User.class));
+    case 1:
+      return new AuthorizableWalk(session.getAuthorizableManager().findAuthorizable(
+          Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.GROUP_VALUE, Group.class));
+    default:
+      return new ContentWalk(session.getContentManager());
+    }
+  }
+
+  /**
+   * The units of one source, read a batch at a time in a repeatable order.
+   */
+  interface Walk {
+    /**
+     * @param n
+     * @return up to n more units, empty once the walk is over.
+     */
+    List<String> next(int n) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * Refresh a unit, called from the partitions with their own sessions.
+     *
+     * @param session
+     * @param key
+     *          a unit from {@link #next(int)}.
+     * @return the number of items refreshed.
+     */
+    int refresh(Session session, String key) throws StorageClientException,
+        AccessDeniedException;
+  }
+
+  static class AuthorizableWalk implements Walk {
+    private final Iterator<Authorizable> authorizables;
+
+    AuthorizableWalk(Iterator<Authorizable> authorizables) {
+      this.authorizables = authorizables;
+    }
+
+    public List<String> next(int n) {
+      List<String> ids = new ArrayList<String>(n);
+      while (ids.size() < n && authorizables.hasNext()) {
+        ids.add(authorizables.next().getId());
+      }
+      return ids;
+    }
+
+    public int refresh(Session session, String key) {
+      try {
+        session.getAuthorizableManager().triggerRefresh(key);
+        return 1;
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Unable to refresh {}: {}", key, e.getMessage());
+        return 0;
+      } catch (StorageClientException e) {
+        LOGGER.warn("Unable to refresh {}: {}", key, e.getMessage());
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Walks the top two levels of the content tree, each top level item followed by its
+   * children. A child is refreshed with everything beneath it, depth first, parents
+   * before their children.
+   */
+  static class ContentWalk implements Walk {
+    private final ContentManager contentManager;
+    /**
+     * The top level items, which are refreshed on their own.
+     */
+    private final Set<String> top = new LinkedHashSet<String>();
+    private final Iterator<String> tops;
+    private Iterator<String> children;
+
+    ContentWalk(ContentManager contentManager) throws StorageClientException,
+        AccessDeniedException {
+      this.contentManager = contentManager;
+      for (Iterator<String> i = contentManager.listChildPaths("/"); i.hasNext();) {
+        top.add(i.next());
+      }
+      tops = top.iterator();
+    }
+
+    public List<String> next(int n) throws StorageClientException, AccessDeniedException {
+      List<String> paths = new ArrayList<String>(n);
+      while (paths.size() < n) {
+        if (children != null && children.hasNext()) {
+          paths.add(children.next());
+        } else if (tops.hasNext()) {
+          String path = tops.next();
+          paths.add(path);
+          children = contentManager.listChildPaths(path);
+        } else {
+          break;
+        }
+      }
+      return paths;
+    }
+
+    public int refresh(Session session, String key) throws StorageClientException {
+      ContentManager refreshing = session.getContentManager();
+      int refreshed = 0;
+      LinkedList<Iterator<String>> stack = new LinkedList<Iterator<String>>();
+      stack.push(Collections.singletonList(key).iterator());
+      while (!stack.isEmpty()) {
+        Iterator<String> paths = stack.peek();
+        if (!paths.hasNext()) {
+          stack.pop();
+          continue;
+        }
+        String path = paths.next();
+        try {
+          refreshing.triggerRefresh(path);
+          refreshed++;
+          if (!top.contains(path)) {
+            stack.push(refreshing.listChildPaths(path));
+          }
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("Unable to refresh {}: {}", path, e.getMessage());
+        } catch (StorageClientException e) {
+          LOGGER.warn("Unable to refresh {}: {}", path, e.getMessage());
+        }
+      }
+      return refreshed;
+    }
+  }
+
+  private static long toLong(Object value, long defaultValue) {
+    return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+  }
+
+  private static int toInt(Object value) {
+    int i = (int) toLong(value, 0);
+    return i >= 0 && i < SOURCES.length ? i : 0;
+  }
+}
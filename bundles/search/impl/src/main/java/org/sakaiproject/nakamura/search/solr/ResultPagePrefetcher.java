@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the Content and Authorizables behind a page of search results before the
+ * result processors write it. The page is split into a few slices that are loaded in
+ * parallel, each through its own session for the searching user so access control is
+ * unchanged, and the loaded objects are bound to the request as
+ * {@link PrefetchedResults}. The sessions stay open until the page has been written so
+ * that processors can traverse the prefetched Content.
+ */
+@Component(immediate = true, metatype = true)
+@Properties(value = {@Property(name = "service.vendor", value = "The Sakai Foundation")})
+@Service(value = ResultPagePrefetcher.class)
+public class ResultPagePrefetcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultPagePrefetcher.class);
+
+  private static final String AUTHORIZABLE_RT = "authorizable";
+
+  /**
+   * The number of slices a page is loaded in, 0 disables prefetching.
+   */
+  @Property(intValue = 4)
+  static final String THREADS = "threads";
+
+  /**
+   * How long to wait for a page to load, in ms, before handing the processors whatever
+   * has arrived.
+   */
+  @Property(longValue = 2000L)
+  static final String TIMEOUT = "timeout";
+
+  @Reference
+  protected Repository repository;
+
+  private ThreadPoolExecutor executor;
+  private int threads;
+  private long timeout;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    threads = PropertiesUtil.toInteger(props.get(THREADS), 4);
+    timeout = PropertiesUtil.toLong(props.get(TIMEOUT), 2000L);
+    if (threads > 0) {
+      final AtomicInteger count = new AtomicInteger();
+      // when the pool is saturated the request thread loads its own slice.
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 16), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Search Prefetch " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Read up to nitems results from the iterator and load what they refer to.
+   *
+   * @param request
+   *          the search request, the results are bound to it.
+   * @param iterator
+   *          the result set iterator, positioned at the start of the page.
+   * @param nitems
+   *          the page size.
+   * @return the prefetched page, which must be closed once the page has been written.
+   */
+  public Page prefetch(SlingHttpServletRequest request, Iterator<Result> iterator,
+      long nitems) {
+    List<Result> results = new ArrayList<Result>();
+    for (long i = 0; i < nitems && iterator.hasNext(); i++) {
+      results.add(iterator.next());
+    }
+    Page page = new Page(request, results);
+    ThreadPoolExecutor pool = executor;
+    if (pool == null || results.isEmpty()) {
+      return page;
+    }
+    String userId = null;
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    if (session != null) {
+      userId = session.getUserId();
+    }
+    if (userId == null) {
+      return page;
+    }
+
+    int slices = Math.min(threads, results.size());
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(slices);
+    for (int s = 0; s < slices; s++) {
+      List<Result> slice = new ArrayList<Result>();
+      for (int i = s; i < results.size(); i += slices) {
+        slice.add(results.get(i));
+      }
+      futures.add(pool.submit(new Loader(userId, slice, page)));
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    for (Future<Void> f : futures) {
+      try {
+        long wait = Math.max(0, deadline - System.currentTimeMillis());
+        f.get(wait, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOGGER.debug("Prefetch did not complete within {}ms", timeout);
+        f.cancel(true);
+      } catch (InterruptedException e) {
+        f.cancel(true);
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        LOGGER.debug("Prefetch failed, results will be loaded one at a time ", e.getCause());
+      }
+    }
+    LOGGER.debug("Prefetched {} of {} results", page.prefetched.size(), results.size());
+    return page;
+  }
+
+  /**
+   * Loads one slice of a page through a session of its own.
+   */
+  private class Loader implements Callable<Void> {
+    private final String userId;
+    private final List<Result> slice;
+    private final Page page;
+
+    Loader(String userId, List<Result> slice, Page page) {
+      this.userId = userId;
+      this.slice = slice;
+      this.page = page;
+    }
+
+    public Void call() throws Exception {
+      Session session = repository.loginAdministrative(userId);
+      if (!page.register(session)) {
+        // the page was written without us.
+        session.logout();
+        return null;
+      }
+      PrefetchedResults prefetched = page.prefetched;
+      for (Result result : slice) {
+        if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        String path = result.getPath();
+        try {
+          if (AUTHORIZABLE_RT.equals(result.getFirstValue("resourceType"))) {
+            prefetched.putAuthorizable(session.getAuthorizableManager().findAuthorizable(
+                path));
+          } else {
+            prefetched.putContent(session.getContentManager().get(path));
+          }
+        } catch (Exception e) {
+          // the processor will load it and deal with the failure itself.
+          LOGGER.debug("Unable to prefetch {}: {}", path, e.getMessage());
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A prefetched page of results, bound to the request until it is closed.
+   */
+  public static class Page {
+    private final SlingHttpServletRequest request;
+    private final List<Result> results;
+    private final PrefetchedResults prefetched = new PrefetchedResults();
+    private final List<Session> sessions = new ArrayList<Session>();
+    private boolean closed;
+
+    Page(SlingHttpServletRequest request, List<Result> results) {
+      this.request = request;
+      this.results = results;
+      request.setAttribute(PrefetchedResults.REQUEST_ATTRIBUTE, prefetched);
+    }
+
+    public List<Result> getResults() {
+      return results;
+    }
+
+    public PrefetchedResults getPrefetched() {
+      return prefetched;
+    }
+
+    private synchronized boolean register(Session session) {
+      if (closed) {
+        return false;
+      }
+      sessions.add(session);
+      return true;
+    }
+
+    /**
+     * Unbind the results from the request and log out of the sessions that loaded them.
+     */
+    public synchronized void close() {
+      closed = true;
+      request.removeAttribute(PrefetchedResults.REQUEST_ATTRIBUTE);
+      for (Session session : sessions) {
+        try {
+          session.logout();
+        } catch (Exception e) {
+          LOGGER.debug("Failed to log out of prefetch session {}", e.getMessage());
+        }
+      }
+      sessions.clear();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Keyset paging over the index. A cursor page is sorted on the unique key and starts
+ * just after the key of the last result of the previous page, so Solr never has to
+ * collect and skip the results before it however deep the page is. The key is handed to
+ * the client as an opaque token.
+ */
+final class SearchCursor {
+
+  /**
+   * The token for the first page.
+   */
+  static final String START = "*";
+
+  /**
+   * The unique key field in the index schema.
+   */
+  static final String KEY_FIELD = "id";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private SearchCursor() {
+  }
+
+  /**
+   * @param key
+   *          the key of the last result on a page.
+   * @return the token for the page after it.
+   */
+  static String encode(String key) {
+    try {
+      byte[] bytes = key.getBytes("UTF-8");
+      char[] token = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; i++) {
+        token[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+        token[2 * i + 1] = HEX[bytes[i] & 0xf];
+      }
+      return new String(token);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param token
+   * @return the key the page should start after, or null for the first page.
+   * @throws IllegalArgumentException
+   *           if the token was not made by {@link #encode(String)}.
+   */
+  static String decode(String token) {
+    if (token == null || START.equals(token) || token.length() == 0) {
+      return null;
+    }
+    if (token.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    }
+    byte[] bytes = new byte[token.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int hi = Character.digit(token.charAt(2 * i), 16);
+      int lo = Character.digit(token.charAt(2 * i + 1), 16);
+      if (hi < 0 || lo < 0) {
+        throw new IllegalArgumentException("Invalid cursor " + token);
+      }
+      bytes[i] = (byte) ((hi << 4) | lo);
+    }
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param key
+   * @return a filter query matching only the keys after the one supplied.
+   */
+  static String filterAfter(String key) {
+    StringBuilder sb = new StringBuilder(KEY_FIELD).append(":{\"");
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.append("\" TO *}").toString();
+  }
+}
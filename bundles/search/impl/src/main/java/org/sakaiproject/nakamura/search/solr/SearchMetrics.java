@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.search.solr.SearchMetricsService;
+import org.sakaiproject.nakamura.api.search.solr.SearchTemplateMetricsMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Keeps the metrics of each search template, and registers them in the platform MBean
+ * server as they are created.
+ */
+@Component(immediate = true)
+@Service(value = { SearchMetricsService.class, SearchMetrics.class })
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
+public class SearchMetrics implements SearchMetricsService {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchMetrics.class);
+
+  static final String JMX_DOMAIN = "org.sakaiproject.nakamura.search";
+
+  private final ConcurrentMap<String, SearchTemplateMetrics> metrics = new ConcurrentSkipListMap<String, SearchTemplateMetrics>();
+
+  private final ConcurrentMap<String, ObjectName> registeredMBeans = new ConcurrentHashMap<String, ObjectName>();
+
+  /**
+   * Get the metrics of a template, creating them on first use.
+   *
+   * @param path
+   *          the path of the search template.
+   * @return the metrics, or null if too many templates are already being tracked.
+   */
+  SearchTemplateMetrics getMetrics(String path) {
+    SearchTemplateMetrics templateMetrics = metrics.get(path);
+    if (templateMetrics == null) {
+      if (metrics.size() >= SearchTemplate.MAX_TEMPLATES) {
+        LOGGER.debug("Not tracking search metrics for {}, too many templates", path);
+        return null;
+      }
+      SearchTemplateMetrics created = new SearchTemplateMetrics(path);
+      templateMetrics = metrics.putIfAbsent(path, created);
+      if (templateMetrics == null) {
+        templateMetrics = created;
+        registerMBean(created);
+      }
+    }
+    return templateMetrics;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SearchMetricsService#getTemplateMetrics()
+   */
+  public List<SearchTemplateMetricsMBean> getTemplateMetrics() {
+    return new ArrayList<SearchTemplateMetricsMBean>(metrics.values());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SearchMetricsService#reset()
+   */
+  public void reset() {
+    for (SearchTemplateMetrics templateMetrics : metrics.values()) {
+      templateMetrics.reset();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName on : registeredMBeans.values()) {
+      try {
+        if (mBeanServer.isRegistered(on)) {
+          mBeanServer.unregisterMBean(on);
+        }
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}: {} ", on, e.getMessage());
+      }
+    }
+    registeredMBeans.clear();
+    metrics.clear();
+  }
+
+  /**
+   * Register the metrics of a template, replacing any left over from a previous instance
+   * of this service.
+   *
+   * @param templateMetrics
+   */
+  private void registerMBean(SearchTemplateMetrics templateMetrics) {
+    String path = templateMetrics.getPath();
+    try {
+      ObjectName on = new ObjectName(JMX_DOMAIN + ":type="
+          + SearchTemplateMetricsMBean.TYPE + ",name=" + ObjectName.quote(path));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(on)) {
+        mBeanServer.unregisterMBean(on);
+      }
+      // the interface is in another package, so it has to be named.
+      mBeanServer.registerMBean(new StandardMBean(templateMetrics,
+          SearchTemplateMetricsMBean.class), on);
+      registeredMBeans.put(path, on);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register search metrics for {}: {} ", path, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+import org.sakaiproject.nakamura.api.search.DeletedPathsService;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds rendered search responses for the templates that opt in with
+ * {@link org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants#SAKAI_CACHE_RESPONSE}.
+ * A response is keyed by the template, the request parameters and selectors, and a hash
+ * of the readers filter the search applies and the deleted paths filter. The search runs
+ * with the user's own filter, so responses are only shared between users whose filters
+ * hold no principal of their own, such as anonymous users; a signed in user's filter
+ * holds its id and its responses are its own. Templates that depend on the user are
+ * keyed by the user as well. Solr results only change when the index is committed, so
+ * the cache is cleared on every commit.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { SearchResponseCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/solr/COMMIT",
+        "org/sakaiproject/nakamura/solr/SOFT_COMMIT" }, propertyPrivate = true) })
+public class SearchResponseCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResponseCache.class);
+
+  static final String CACHE_NAME = SearchResponseCache.class.getName();
+
+  /**
+   * The most memory the cached responses may use, in bytes.
+   */
+  @Property(longValue = 16777216L)
+  static final String MAX_BYTES = "maxBytes";
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected ReadersFilterSource readersFilterSource;
+
+  @Reference
+  protected DeletedPathsService deletedPathsService;
+
+  private Cache<String> cache;
+
+  /**
+   * Counts commits. It is part of every key, so a response rendered from the index
+   * before a commit but stored after it can never be served.
+   */
+  private final AtomicLong commits = new AtomicLong();
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    long maxBytes = PropertiesUtil.toLong(props.get(MAX_BYTES), 16777216L);
+    cache = cacheManagerService.getCache(CACHE_NAME, CacheScope.INSTANCE,
+        new Weigher<String>() {
+          public long weigh(String key, String value) {
+            return 2L * (key.length() + value.length());
+          }
+        }, maxBytes);
+  }
+
+  /**
+   * Get the key a search request's response is cached under.
+   *
+   * @param request
+   * @param template
+   * @return the key, or null if the response should not be cached.
+   */
+  public String getKey(SlingHttpServletRequest request, SearchTemplate template) {
+    String readersFilter;
+    try {
+      readersFilter = readersFilterSource.getSearchReadersFilter(request);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to get the readers filter, not caching: {}", e.getMessage());
+      return null;
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to get the readers filter, not caching: {}", e.getMessage());
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(commits.get()).append(':').append(template.getPath());
+    sb.append('.').append(request.getRequestPathInfo().getSelectorString());
+    // the parameters sorted, so the same search asked in a different order is one entry.
+    Map<String, RequestParameter[]> params = new TreeMap<String, RequestParameter[]>(
+        request.getRequestParameterMap());
+    char sep = '?';
+    for (Entry<String, RequestParameter[]> param : params.entrySet()) {
+      for (RequestParameter value : param.getValue()) {
+        sb.append(sep).append(param.getKey()).append('=').append(value.getString());
+        sep = '&';
+      }
+    }
+    if (template.isUserDependent()) {
+      sb.append('~').append(request.getRemoteUser());
+    }
+    try {
+      String filters = String.valueOf(readersFilter) + '\n'
+          + String.valueOf(deletedPathsService.getDeletedPathsFilter());
+      sb.append('#').append(StringUtils.sha1Hash(filters));
+    } catch (Exception e) {
+      LOGGER.warn("Unable to hash the search filters, not caching: {}", e.getMessage());
+      return null;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param key
+   * @return the cached response, or null if there is none.
+   */
+  public String get(String key) {
+    return key == null ? null : cache.get(key);
+  }
+
+  public void put(String key, String response) {
+    if (key != null && response != null) {
+      cache.put(key, response);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Clears the cache when the index is committed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    commits.incrementAndGet();
+    Cache<String> c = cache;
+    if (c != null) {
+      c.clear();
+    }
+  }
+}
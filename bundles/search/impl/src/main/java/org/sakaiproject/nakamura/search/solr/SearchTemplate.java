@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_CACHE_RESPONSE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_MAX_CONCURRENT;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROJECTION;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_TIME_ALLOWED;
+
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * A search template node compiled into an immutable form. Everything the servlet needs
+ * from the node is read once, when the template is compiled, so that a request only has
+ * to bind its parameters into the template. A template with a concurrency cap also
+ * holds the permits of the searches running against it.
+ */
+public class SearchTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchTemplate.class);
+
+  /**
+   * The most template paths the compiled templates and the template metrics are kept
+   * for. Both are keyed by the path of the search node, so they only grow with the
+   * number of search nodes, which is small; the limit is there so a flood of paths can
+   * not exhaust memory.
+   */
+  static final int MAX_TEMPLATES = 1000;
+
+  /**
+   * The property the servlet binds the id of the user running a search to.
+   */
+  private static final String USER_ID = "_userId";
+
+  private final String path;
+  private final String queryType;
+  private final String queryTemplate;
+  private final boolean queryStatic;
+  private final Map<String, String> defaults;
+  private final Map<String, Object> options;
+  private final String[] propertyProviderNames;
+  private final String resultProcessorName;
+  private final String batchResultProcessorName;
+  private final String[] decoratorNames;
+  private final ProjectionResultWriter projection;
+  private final boolean cacheResponse;
+  private final boolean userDependent;
+  private final long timeAllowed;
+  /**
+   * Null when the template has no concurrency cap.
+   */
+  private final Semaphore running;
+
+  /**
+   * Compile a search template node.
+   *
+   * @param node
+   * @return the compiled template, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public static SearchTemplate compile(Node node) throws RepositoryException {
+    if (node == null || !node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      return null;
+    }
+    return new SearchTemplate(node);
+  }
+
+  private SearchTemplate(Node node) throws RepositoryException {
+    path = node.getPath();
+    // check the resource type and set the query type appropriately
+    // default to using solr for queries
+    if (node.hasProperty("sling:resourceType")
+        && "sakai/sparse-search".equals(node.getProperty("sling:resourceType").getString())) {
+      queryType = Query.SPARSE;
+    } else {
+      queryType = Query.SOLR;
+    }
+    queryTemplate = node.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    queryStatic = isStatic(queryTemplate);
+
+    Map<String, String> defaultValues = new LinkedHashMap<String, String>();
+    if (node.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
+      PropertyIterator props = node.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS).getProperties();
+      while (props.hasNext()) {
+        javax.jcr.Property prop = props.nextProperty();
+        if (!prop.getName().startsWith("jcr:") && !prop.isMultiple()) {
+          defaultValues.put(prop.getName(), prop.getString());
+        }
+      }
+    }
+    defaults = Collections.unmodifiableMap(defaultValues);
+
+    Map<String, Object> optionValues = new LinkedHashMap<String, Object>();
+    if (node.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      PropertyIterator props = node.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS).getProperties();
+      while (props.hasNext()) {
+        javax.jcr.Property prop = props.nextProperty();
+        String key = prop.getName();
+        if (!JcrUtils.isJCRProperty(key)) {
+          if (prop.isMultiple()) {
+            List<String> vals = new ArrayList<String>();
+            for (Value val : prop.getValues()) {
+              vals.add(val.getString());
+            }
+            optionValues.put(key, Collections.unmodifiableList(vals));
+          } else {
+            optionValues.put(key, prop.getString());
+          }
+        }
+      }
+    }
+    options = Collections.unmodifiableMap(optionValues);
+
+    propertyProviderNames = getStringArrayProp(node, SAKAI_PROPERTY_PROVIDER);
+    resultProcessorName = getStringProp(node, SAKAI_RESULTPROCESSOR);
+    batchResultProcessorName = getStringProp(node, SAKAI_BATCHRESULTPROCESSOR);
+    decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
+    String[] projectionFields = getStringArrayProp(node, SAKAI_PROJECTION);
+    projection = projectionFields == null ? null : new ProjectionResultWriter(
+        projectionFields, StoredFields.getSchemaFields());
+    if (projection != null && !projection.getUnstoredFields().isEmpty()) {
+      LOGGER.warn("The index does not store {}, projected by {}, so they will be loaded "
+          + "from storage for every hit", projection.getUnstoredFields(), path);
+    }
+    cacheResponse = node.hasProperty(SAKAI_CACHE_RESPONSE)
+        && node.getProperty(SAKAI_CACHE_RESPONSE).getBoolean();
+    userDependent = propertyProviderNames != null || queryTemplate.contains(USER_ID)
+        || defaults.toString().contains(USER_ID) || options.toString().contains(USER_ID);
+    timeAllowed = node.hasProperty(SAKAI_TIME_ALLOWED) ? node.getProperty(
+        SAKAI_TIME_ALLOWED).getLong() : 0;
+    long maxConcurrent = node.hasProperty(SAKAI_MAX_CONCURRENT) ? node.getProperty(
+        SAKAI_MAX_CONCURRENT).getLong() : 0;
+    running = maxConcurrent > 0 ? new Semaphore((int) Math.min(maxConcurrent,
+        Integer.MAX_VALUE)) : null;
+  }
+
+  /**
+   * @param template
+   * @return true if the template has nothing for the template engine to replace.
+   */
+  static boolean isStatic(String template) {
+    return template.indexOf('$') < 0 && template.indexOf('#') < 0;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getQueryType() {
+    return queryType;
+  }
+
+  public String getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return true if the query template contains no references, so it can be used as is.
+   */
+  public boolean isQueryStatic() {
+    return queryStatic;
+  }
+
+  /**
+   * @return the single valued properties of the query template defaults node.
+   */
+  public Map<String, String> getDefaults() {
+    return defaults;
+  }
+
+  /**
+   * @return the unprocessed query options, each a String or a List of Strings.
+   */
+  public Map<String, Object> getOptions() {
+    return options;
+  }
+
+  /**
+   * @return the names of the property providers, or null if there are none.
+   */
+  public String[] getPropertyProviderNames() {
+    return propertyProviderNames;
+  }
+
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  public String getBatchResultProcessorName() {
+    return batchResultProcessorName;
+  }
+
+  /**
+   * @return the names of the response decorators, or null if there are none.
+   */
+  public String[] getDecoratorNames() {
+    return decoratorNames;
+  }
+
+  /**
+   * @return the projection to write results with, or null if the template has none.
+   */
+  public ProjectionResultWriter getProjection() {
+    return projection;
+  }
+
+  /**
+   * @return true if the rendered responses of this template may be cached.
+   */
+  public boolean isCacheResponse() {
+    return cacheResponse;
+  }
+
+  /**
+   * @return true if the query may depend on the user running it, because it refers to
+   *         the user id or has property providers.
+   */
+  public boolean isUserDependent() {
+    return userDependent;
+  }
+
+  /**
+   * @return the time solr may spend on a search in ms, or 0 for no limit.
+   */
+  public long getTimeAllowed() {
+    return timeAllowed;
+  }
+
+  /**
+   * Take a place for a search of this template, without waiting.
+   *
+   * @return true if the search may run, in which case {@link #release()} must be called
+   *         when it finishes, or false if the template is running all the searches it
+   *         may.
+   */
+  public boolean tryAcquire() {
+    return running == null || running.tryAcquire();
+  }
+
+  /**
+   * Give back the place taken by {@link #tryAcquire()}.
+   */
+  public void release() {
+    if (running != null) {
+      running.release();
+    }
+  }
+
+  private static String getStringProp(Node node, String propName)
+      throws RepositoryException {
+    if (!node.hasProperty(propName)) {
+      return null;
+    }
+    return node.getProperty(propName).getString();
+  }
+
+  private static String[] getStringArrayProp(Node node, String propName)
+      throws RepositoryException {
+    if (!node.hasProperty(propName)) {
+      return null;
+    }
+    javax.jcr.Property prop = node.getProperty(propName);
+    if (prop.isMultiple()) {
+      Value[] vals = prop.getValues();
+      String[] values = new String[vals.length];
+      for (int i = 0; i < vals.length; i++) {
+        values[i] = vals[i].getString();
+      }
+      return values;
+    }
+    return new String[] { prop.getString() };
+  }
+}
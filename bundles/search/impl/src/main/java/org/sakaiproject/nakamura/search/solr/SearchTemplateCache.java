@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.Resource;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the compiled form of each search template, keyed by the path of its node. A
+ * compiled template is dropped when anything at or below its node changes, or when the
+ * node or one of its ancestors is removed.
+ */
+@Component(immediate = true)
+@Service(value = { SearchTemplateCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER, value = "(path=" + SEARCH_PATH_PREFIX
+        + "*)", propertyPrivate = true) })
+public class SearchTemplateCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchTemplateCache.class);
+
+  private final ConcurrentMap<String, SearchTemplate> templates = new ConcurrentHashMap<String, SearchTemplate>();
+
+  /**
+   * Bumped on every invalidation so that a template compiled while its node was being
+   * changed is not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Get the compiled template for a search resource, compiling it on first use.
+   *
+   * @param resource
+   *          the search template resource.
+   * @return the compiled template, or null if the resource is not a search template.
+   * @throws RepositoryException
+   */
+  public SearchTemplate getTemplate(Resource resource) throws RepositoryException {
+    String path = resource.getPath();
+    SearchTemplate template = templates.get(path);
+    if (template == null) {
+      long compiledAt = generation.get();
+      template = SearchTemplate.compile(resource.adaptTo(Node.class));
+      if (template != null) {
+        if (templates.size() >= SearchTemplate.MAX_TEMPLATES) {
+          LOGGER.warn("More than {} search templates compiled, starting again",
+              SearchTemplate.MAX_TEMPLATES);
+          templates.clear();
+        }
+        // a request that compiled the template at the same time may have cached it
+        // first, in which case share its instance, and so its concurrency cap.
+        SearchTemplate cached = templates.putIfAbsent(path, template);
+        if (cached != null) {
+          return cached;
+        }
+        if (generation.get() != compiledAt) {
+          templates.remove(path, template);
+        }
+      }
+    }
+    return template;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null) {
+      invalidate(path);
+    }
+  }
+
+  /**
+   * Drop the templates that a change at the path may affect.
+   *
+   * @param path
+   */
+  void invalidate(String path) {
+    generation.incrementAndGet();
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String key = i.next();
+      if (isSameOrBelow(path, key) || isSameOrBelow(key, path)) {
+        i.remove();
+      }
+    }
+  }
+
+  private static boolean isSameOrBelow(String path, String parent) {
+    return path.equals(parent) || path.startsWith(parent.endsWith("/") ? parent : parent + "/");
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.sakaiproject.nakamura.api.search.solr.SearchTemplateMetricsMBean;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of one search template.
+ */
+class SearchTemplateMetrics implements SearchTemplateMetricsMBean {
+
+  private final String path;
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong cachedResponses = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong results = new AtomicLong();
+  private final AtomicLong maxResults = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+  private final AtomicLong maxMillis = new AtomicLong();
+  private final LatencyHistogram query = new LatencyHistogram();
+  private final LatencyHistogram processing = new LatencyHistogram();
+  private final LatencyHistogram writing = new LatencyHistogram();
+
+  SearchTemplateMetrics(String path) {
+    this.path = path;
+  }
+
+  /**
+   * Record a search that completed.
+   *
+   * @param queryMillis
+   * @param processingMillis
+   * @param writingMillis
+   * @param resultCount
+   *          the number of results written.
+   */
+  void record(long queryMillis, long processingMillis, long writingMillis,
+      long resultCount) {
+    calls.incrementAndGet();
+    query.record(queryMillis);
+    processing.record(processingMillis);
+    writing.record(writingMillis);
+    long millis = queryMillis + processingMillis + writingMillis;
+    totalMillis.addAndGet(millis);
+    raise(maxMillis, millis);
+    results.addAndGet(resultCount);
+    raise(maxResults, resultCount);
+  }
+
+  void recordError() {
+    errors.incrementAndGet();
+  }
+
+  void recordCachedResponse() {
+    cachedResponses.incrementAndGet();
+  }
+
+  void recordRejected() {
+    rejected.incrementAndGet();
+  }
+
+  private static void raise(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getCachedResponses() {
+    return cachedResponses.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getResults() {
+    return results.get();
+  }
+
+  public long getMaxResults() {
+    return maxResults.get();
+  }
+
+  public double getAverageMillis() {
+    long n = calls.get();
+    return n == 0 ? 0 : (double) totalMillis.get() / n;
+  }
+
+  public long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  public long[] getHistogramBounds() {
+    return LatencyHistogram.BOUNDS.clone();
+  }
+
+  public long[] getQueryHistogram() {
+    return query.getCounts();
+  }
+
+  public long[] getProcessingHistogram() {
+    return processing.getCounts();
+  }
+
+  public long[] getWritingHistogram() {
+    return writing.getCounts();
+  }
+
+  public long getQueryMillis() {
+    return query.getTotalMillis();
+  }
+
+  public long getProcessingMillis() {
+    return processing.getTotalMillis();
+  }
+
+  public long getWritingMillis() {
+    return writing.getTotalMillis();
+  }
+
+  public void reset() {
+    calls.set(0);
+    errors.set(0);
+    cachedResponses.set(0);
+    rejected.set(0);
+    results.set(0);
+    maxResults.set(0);
+    totalMillis.set(0);
+    maxMillis.set(0);
+    query.reset();
+    processing.reset();
+    writing.reset();
+  }
+}
@@ -24,6 +24,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -35,18 +36,19 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
-import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
@@ -56,26 +58,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.List;
 
 /**
  *
  */
 @Component(metatype = true)
-@Service
-@Property(name = "type", value = Query.SOLR)
+@Service(value = { ResultSetFactory.class, ReadersFilterSource.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "type", value = Query.SOLR),
+    @Property(name = "event.topics", value = {
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.ADDED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC },
+        propertyPrivate = true) })
 
-public class SolrResultSetFactory implements ResultSetFactory {
+public class SolrResultSetFactory implements ResultSetFactory, ReadersFilterSource,
+    EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  /**
+   * Users in more groups than this get a compact readers filter, 0 disables it.
+   */
+  @Property(intValue = 0)
+  private static final String READERS_COMPACT_THRESHOLD = "readersCompactThreshold";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -89,6 +101,11 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  private ReadersFilterCache readersFilterCache;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
@@ -99,6 +116,49 @@ public class SolrResultSetFactory implements ResultSetFactory {
         defaultMaxResults);
     slowQueryThreshold = PropertiesUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = PropertiesUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
+    readersFilterCache = new ReadersFilterCache(cacheManagerService,
+        PropertiesUtil.toInteger(props.get(READERS_COMPACT_THRESHOLD), 0));
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drops the cached readers filters that a change to an authorizable may affect.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    ReadersFilterCache readers = readersFilterCache;
+    if (readers != null) {
+      readers.invalidate((String) event.getProperty(StoreListener.PATH_PROPERTY));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.search.solr.ReadersFilterSource#getReadersFilter(org.apache.sling.api.SlingHttpServletRequest)
+   */
+  public String getReadersFilter(SlingHttpServletRequest request)
+      throws StorageClientException, AccessDeniedException {
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+    if (User.ADMIN_USER.equals(session.getUserId())) {
+      return null;
+    }
+    return readersFilterCache.getFilter(session);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.search.solr.ReadersFilterSource#getSearchReadersFilter(org.apache.sling.api.SlingHttpServletRequest)
+   */
+  public String getSearchReadersFilter(SlingHttpServletRequest request)
+      throws StorageClientException, AccessDeniedException {
+    Object resolved = request.getAttribute(READERS_FILTER);
+    if (resolved != null) {
+      return resolved.toString().length() == 0 ? null : resolved.toString();
+    }
+    return getReadersFilter(request);
   }
 
   /**
@@ -143,32 +203,42 @@ public class SolrResultSetFactory implements ResultSetFactory {
         }
       }
 
+      // cursor paging sorts on the unique key and starts after the last key it was given.
+      Object cursor = queryOptions.remove(SolrSearchConstants.PARAMS_CURSOR);
+      if (cursor != null) {
+        queryOptions.remove(CommonParams.SORT);
+        String after = SearchCursor.decode(String.valueOf(cursor));
+        if (after != null) {
+          filterQueries.add(SearchCursor.filterAfter(after));
+        }
+        Object fl = queryOptions.get(CommonParams.FL);
+        if (fl != null) {
+          queryOptions.put(CommonParams.FL, fl + "," + SearchCursor.KEY_FIELD);
+        }
+      }
+
       // apply readers restrictions.
       if (asAnon) {
-        filterQueries.add("readers:" + User.ANON_USER);
+        filterQueries.add(ReadersFilterCache.ANON_FILTER);
       } else {
-        Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-        if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(SearchUtil.escapeString(session.getUserId(), Query.SOLR));
-          filterQueries.add("readers:(" + StringUtils.join(readers," OR ") + ")");
+        String readersFilter = getSearchReadersFilter(request);
+        if (readersFilter != null) {
+          filterQueries.add(readersFilter);
         }
       }
 
-      List<String> deletedPaths = deletedPathsService.getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
+      String deletedPathsFilter = deletedPathsService.getDeletedPathsFilter();
+      if (deletedPathsFilter != null) {
+        filterQueries.add(deletedPathsFilter);
       }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
 
       SolrQuery solrQuery = buildQuery(request, query.getQueryString(), queryOptions);
+      if (cursor != null) {
+        solrQuery.setStart(0);
+        solrQuery.setSortField(SearchCursor.KEY_FIELD, ORDER.asc);
+      }
 
       SolrServer solrServer = solrSearchService.getServer();
       if ( LOGGER.isDebugEnabled()) {
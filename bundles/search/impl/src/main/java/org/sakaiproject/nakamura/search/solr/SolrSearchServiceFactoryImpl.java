@@ -20,13 +20,19 @@ package org.sakaiproject.nakamura.search.solr;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -36,17 +42,71 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-@Component
+@Component(metatype = true)
 @Service
 public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchServiceFactoryImpl.class);
 
+  /**
+   * The number of threads running asynchronous searches, 0 runs them on the calling
+   * thread.
+   */
+  @Property(intValue = 4)
+  static final String ASYNC_THREADS = "asyncThreads";
+
+  /**
+   * The number of asynchronous searches that may wait for a thread, beyond which they run
+   * on the calling thread.
+   */
+  @Property(intValue = 64)
+  static final String ASYNC_QUEUE = "asyncQueue";
+
   @Reference(referenceInterface = ResultSetFactory.class, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC)
   private ConcurrentMap<String, ResultSetFactory> resultSetFactories = Maps.newConcurrentMap();
 
+  @Reference
+  protected ReadersFilterSource readersFilterSource;
+
+  private ThreadPoolExecutor executor;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(ASYNC_THREADS), 4);
+    int queue = Math.max(1, PropertiesUtil.toInteger(props.get(ASYNC_QUEUE), 64));
+    if (threads > 0) {
+      final AtomicInteger count = new AtomicInteger();
+      // when the pool is saturated the caller runs its own search.
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "Async Search " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
   protected void bindResultSetFactories(ResultSetFactory factory, Map<?, ?> props) {
     String type = PropertiesUtil.toString(props.get("type"), null);
     if (!StringUtils.isBlank(type)) {
@@ -77,4 +137,74 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
       Query query) throws SolrSearchException {
     return getSearchResultSet(request, query, false);
   }
+
+  /**
+   * {@inheritDoc}
+   * Only solr searches run on the pool. The request's session is not thread safe, so the
+   * readers filter is resolved here, on the calling thread, and the search is given a
+   * request that carries it. Other query types search the session itself, so they run on
+   * the calling thread.
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory#getSearchResultSetAsync(org.apache.sling.api.SlingHttpServletRequest, org.sakaiproject.nakamura.api.search.solr.Query, boolean)
+   */
+  public Future<SolrSearchResultSet> getSearchResultSetAsync(
+      final SlingHttpServletRequest request, final Query query, final boolean asAnon) {
+    ThreadPoolExecutor pool = executor;
+    if (pool == null || pool.isShutdown() || !Query.SOLR.equals(query.getType())) {
+      return run(new Callable<SolrSearchResultSet>() {
+        public SolrSearchResultSet call() throws SolrSearchException {
+          return getSearchResultSet(request, query, asAnon);
+        }
+      });
+    }
+    final SlingHttpServletRequest resolved;
+    try {
+      resolved = asAnon ? request : resolveReaders(request);
+    } catch (final StorageClientException e) {
+      return failed(e);
+    } catch (final AccessDeniedException e) {
+      return failed(e);
+    }
+    return pool.submit(new Callable<SolrSearchResultSet>() {
+      public SolrSearchResultSet call() throws SolrSearchException {
+        return getSearchResultSet(resolved, query, asAnon);
+      }
+    });
+  }
+
+  /**
+   * @param request
+   * @return a request that carries the readers filter of the request in
+   *         {@link ReadersFilterSource#READERS_FILTER}.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private SlingHttpServletRequest resolveReaders(SlingHttpServletRequest request)
+      throws StorageClientException, AccessDeniedException {
+    String filter = readersFilterSource.getSearchReadersFilter(request);
+    final String readersFilter = filter == null ? "" : filter;
+    return new SlingHttpServletRequestWrapper(request) {
+      @Override
+      public Object getAttribute(String name) {
+        if (ReadersFilterSource.READERS_FILTER.equals(name)) {
+          return readersFilter;
+        }
+        return super.getAttribute(name);
+      }
+    };
+  }
+
+  private static Future<SolrSearchResultSet> run(Callable<SolrSearchResultSet> search) {
+    FutureTask<SolrSearchResultSet> task = new FutureTask<SolrSearchResultSet>(search);
+    task.run();
+    return task;
+  }
+
+  private static Future<SolrSearchResultSet> failed(final Exception e) {
+    return run(new Callable<SolrSearchResultSet>() {
+      public SolrSearchResultSet call() throws SolrSearchException {
+        throw new SolrSearchException(500, e.getMessage());
+      }
+    });
+  }
 }
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.lang.StringUtils;
@@ -33,7 +34,9 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CommonParams;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
@@ -43,8 +46,10 @@ import org.sakaiproject.nakamura.api.search.SearchResponseDecorator;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
@@ -53,18 +58,16 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.Node;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -75,16 +78,12 @@ import java.util.Set;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.FACET_FIELDS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_NEXT_CURSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_PARTIAL;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_RESULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TIDY;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL;
@@ -105,7 +104,16 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTA
         + "        -sakai:propertyprovider - the name of a Property Provider used to populate the properties \n"
         + "                                  to be used in the query \n"
         + "        -sakai:batchresultprocessor - the name of a SearchResultProcessor to be used processing \n"
-        + "                                      the result set.\n" + "</pre>",
+        + "                                      the result set.\n"
+        + "        -sakai:projection - optional, the properties to write for each result straight from \n"
+        + "                            the index, as property or property=solrfield. Storage is only \n"
+        + "                            read for a result missing one of them.\n"
+        + "        -sakai:cache-response - optional, true to cache the rendered response until the next \n"
+        + "                                index commit, shared by users who can read the same things.\n"
+        + "        -sakai:max-concurrent - optional, the most searches of the template to run at once. \n"
+        + "                                Any more are turned away with a 503.\n"
+        + "        -sakai:time-allowed - optional, the time in ms solr may spend collecting hits. A search \n"
+        + "                              that runs out of time returns what it found, with partial set.\n" + "</pre>",
     "For example:",
     "<pre>" + "/var/search/pool/files\n" + "{  \n"
         + "   \"sakai:query-template\": \"resourceType:sakai/pooled-content AND (manager:${group} OR viewer:${group})\", \n"
@@ -122,13 +130,17 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTA
       parameters = {
         @ServiceParameter(name = "items", description = { "The number of items per page in the result set." }),
         @ServiceParameter(name = "page", description = { "The page number to start listing the results on." }),
+        @ServiceParameter(name = "cursor", description = { "Page by cursor rather than page number, for solr searches. "
+            + "Pass * for the first page, then the nextcursor of the previous page until it is null. "
+            + "Results come in index key order and are streamed as they are written." }),
         @ServiceParameter(name = "*", description = { "Any other parameters may be used by the template." })
       },
       response = {
         @ServiceResponse(code = 200, description = "A search response similar to the above will be emitted "),
         @ServiceResponse(code = 403, description = "The search template is not located under /var "),
         @ServiceResponse(code = 400, description = "There are too many results that need to be paged. "),
-        @ServiceResponse(code = 500, description = "Any error with the html containing the error")
+        @ServiceResponse(code = 500, description = "Any error with the html containing the error"),
+        @ServiceResponse(code = 503, description = "The template is already running as many searches as its sakai:max-concurrent allows.")
       })
   })
 
@@ -154,6 +166,18 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private SearchResponseDecoratorTracker searchResponseDecoratorTracker;
 
+  @Reference
+  private ResultPagePrefetcher resultPagePrefetcher;
+
+  @Reference
+  private SearchTemplateCache searchTemplateCache;
+
+  @Reference
+  private SearchResponseCache searchResponseCache;
+
+  @Reference
+  private SearchMetrics searchMetrics;
+
   protected long maximumResults = 100;
 
   // Default processors
@@ -181,6 +205,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
+    SearchTemplateMetrics metrics = null;
     try {
       Resource resource = request.getResource();
       if (!resource.getPath().startsWith(SEARCH_PATH_PREFIX)) {
@@ -190,195 +215,346 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         return;
       }
 
-      Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
-        // KERN-1147 Respond better when all parameters haven't been provided for a query
-        Query query;
-        try {
-          query = processQuery(request, node);
-        } catch (MissingParameterException e) {
-          response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
-          return;
-        }
-
-        long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
-            DEFAULT_PAGED_ITEMS);
-        long page = SolrSearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
-
-        // allow number of items to be specified in sakai:query-template-options
-        if (query.getOptions().containsKey(PARAMS_ITEMS_PER_PAGE)) {
-          nitems = Long.valueOf(String.valueOf(query.getOptions().get(PARAMS_ITEMS_PER_PAGE)));
-        } else {
-          // add this to the options so that all queries are constrained to a limited
-          // number of returns per page.
-          query.getOptions().put(PARAMS_ITEMS_PER_PAGE, Long.toString(nitems));
-        }
-
-        if (!query.getOptions().containsKey(PARAMS_PAGE)) {
-          // add this to the options so that all queries are constrained to a limited
-          // number of returns per page.
-          query.getOptions().put(PARAMS_PAGE, Long.toString(page));
-        }
-
-        boolean useBatch = false;
-        // Get the
-        SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
-          useBatch = true;
-          if (searchBatchProcessor == null) {
-            searchBatchProcessor = defaultSearchBatchProcessor;
-          }
-        }
-
-        SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = searchResultProcessorTracker.getByName(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
-          if (searchProcessor == null) {
-            searchProcessor = defaultSearchProcessor;
+      SearchTemplate template = searchTemplateCache.getTemplate(resource);
+      if (template != null) {
+        long started = System.currentTimeMillis();
+        metrics = searchMetrics.getMetrics(template.getPath());
+        String cacheKey = null;
+        if (template.isCacheResponse()) {
+          cacheKey = searchResponseCache.getKey(request, template);
+          String cached = searchResponseCache.get(cacheKey);
+          if (cached != null) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write(cached);
+            if (metrics != null) {
+              metrics.recordCachedResponse();
+            }
+            return;
           }
         }
 
-        SolrSearchResultSet rs;
-        try {
-          // Prepare the result set.
-          // This allows a processor to do other queries and manipulate the results.
-          if (useBatch) {
-            rs = searchBatchProcessor.getSearchResultSet(request, query);
-          } else {
-            rs = searchProcessor.getSearchResultSet(request, query);
+        // a template with a concurrency cap turns searches away as soon as it is full,
+        // rather than queueing them behind the searches it is already running.
+        if (!template.tryAcquire()) {
+          if (metrics != null) {
+            metrics.recordRejected();
           }
-        } catch (SolrSearchException e) {
-          response.sendError(e.getCode(), e.getMessage());
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Too many concurrent searches of " + template.getPath());
           return;
         }
-
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
-        write.setTidy(isTidy(request));
-
-        write.object();
-        write.key(PARAMS_ITEMS_PER_PAGE);
-        write.value(nitems);
-        write.key(JSON_RESULTS);
-
-        write.array();
-
-        Iterator<Result> iterator = rs.getResultSetIterator();
-        if (useBatch) {
-          LOGGER.info("Using batch processor for results");
-          searchBatchProcessor.writeResults(request, write, iterator);
-        } else {
-          LOGGER.info("Using regular processor for results");
-          // We don't skip any rows ourselves here.
-          // We expect a rowIterator coming from a resultset to be at the right place.
-          for (long i = 0; i < nitems && iterator.hasNext(); i++) {
-            // Get the next row.
-            Result result = iterator.next();
-
-            // Write the result for this row.
-            searchProcessor.writeResult(request, write, result);
-          }
-        }
-        write.endArray();
-
-        // write the solr facets out if they exist
-        writeFacetFields(rs, write);
-
-        // write the total out after processing the list to give the underlying iterator
-        // a chance to walk the results then report how many there were.
-        write.key(TOTAL);
-        write.value(rs.getSize());
-
-        if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
-          String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
-          for ( String name : decoratorNames ) {
-            SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
-            if ( decorator != null ) {
-              decorator.decorateSearchResponse(request, write);
-            }
-          }
+        try {
+          search(request, response, template, metrics, cacheKey, started);
+        } finally {
+          template.release();
         }
-
-        write.endObject();
       }
     } catch (RepositoryException e) {
+      recordError(metrics);
       LOGGER.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     } catch (JSONException e) {
+      recordError(metrics);
       LOGGER.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (IOException e) {
+      recordError(metrics);
+      throw e;
+    } catch (RuntimeException e) {
+      recordError(metrics);
+      throw e;
     }
   }
 
   /**
-   * Processes a velocity template so that variable references are replaced by the same
-   * properties in the property provider and request.
+   * Run a search and write its response.
    *
    * @param request
-   *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
-   * @return A processed query template
-   * @throws MissingParameterException
+   * @param response
+   * @param template
+   *          the compiled search template.
+   * @param metrics
+   *          the metrics of the template, or null if it is not being tracked.
+   * @param cacheKey
+   *          the key to cache the response under, or null if it is not to be cached.
+   * @param started
+   *          when the search started, in ms.
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
-      throws RepositoryException, MissingParameterException, JSONException {
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    String queryType;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      queryType = Query.SPARSE;
+  private void search(SlingHttpServletRequest request, SlingHttpServletResponse response,
+      SearchTemplate template, SearchTemplateMetrics metrics, String cacheKey,
+      long started) throws RepositoryException, JSONException, IOException {
+    // KERN-1147 Respond better when all parameters haven't been provided for a query
+    Query query;
+    try {
+      query = processQuery(request, template);
+    } catch (MissingParameterException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        DEFAULT_PAGED_ITEMS);
+    long page = SolrSearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
+
+    // cursor paging starts each page after the last one rather than at an offset.
+    String cursor = null;
+    RequestParameter cursorParam = request.getRequestParameter(PARAMS_CURSOR);
+    if (cursorParam != null) {
+      if (!Query.SOLR.equals(query.getType())) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Cursor paging is only available for solr searches");
+        return;
+      }
+      cursor = cursorParam.getString();
+      try {
+        SearchCursor.decode(cursor);
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      query.getOptions().put(PARAMS_CURSOR, cursor);
+      query.getOptions().put(PARAMS_PAGE, "0");
+    }
+
+    // allow number of items to be specified in sakai:query-template-options
+    if (query.getOptions().containsKey(PARAMS_ITEMS_PER_PAGE)) {
+      nitems = Long.valueOf(String.valueOf(query.getOptions().get(PARAMS_ITEMS_PER_PAGE)));
     } else {
-      queryType = Query.SOLR;
+      // add this to the options so that all queries are constrained to a limited
+      // number of returns per page.
+      query.getOptions().put(PARAMS_ITEMS_PER_PAGE, Long.toString(nitems));
     }
 
-    String[] propertyProviderNames = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
+    if (!query.getOptions().containsKey(PARAMS_PAGE)) {
+      // add this to the options so that all queries are constrained to a limited
+      // number of returns per page.
+      query.getOptions().put(PARAMS_PAGE, Long.toString(page));
     }
-    PropertyIterator defaultValues = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
-      Node defaults = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS);
-      defaultValues = defaults.getProperties();
+
+    boolean useBatch = false;
+    // Get the
+    SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
+    if (template.getBatchResultProcessorName() != null) {
+      searchBatchProcessor = searchBatchResultProcessorTracker.getByName(template
+          .getBatchResultProcessorName());
+      useBatch = true;
+      if (searchBatchProcessor == null) {
+        searchBatchProcessor = defaultSearchBatchProcessor;
+      }
     }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderNames,
-        defaultValues, queryType);
 
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
+    if (template.getResultProcessorName() != null) {
+      searchProcessor = searchResultProcessorTracker.getByName(template
+          .getResultProcessorName());
+      if (searchProcessor == null) {
+        searchProcessor = defaultSearchProcessor;
+      }
+    }
 
-    // process the query string before checking for missing terms to a) give processors a
-    // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    ProjectionResultWriter projection = template.getProjection();
+    if (projection != null) {
+      query.getOptions().put(CommonParams.FL,
+          projection.getFieldList(query.getOptions().get(CommonParams.FL)));
+    }
 
-    // expand home directory references to full path; eg. ~user => a:user
-    queryString = SearchUtil.expandHomeDirectory(queryString);
+    // solr stops collecting hits once the budget is spent and returns what it has.
+    long timeAllowed = template.getTimeAllowed();
+    if (timeAllowed > 0 && Query.SOLR.equals(query.getType())
+        && !query.getOptions().containsKey(CommonParams.TIME_ALLOWED)) {
+      query.getOptions().put(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
+    }
 
-    // check for any missing terms & process the query template
-    Collection<String> missingTerms = templateService.missingTerms(queryString);
-    if (!missingTerms.isEmpty()) {
-      throw new MissingParameterException(
-          "Your request is missing parameters for the template: "
-              + StringUtils.join(missingTerms, ", "));
+    SolrSearchResultSet rs;
+    try {
+      // Prepare the result set.
+      // This allows a processor to do other queries and manipulate the results.
+      if (useBatch) {
+        rs = searchBatchProcessor.getSearchResultSet(request, query);
+      } else {
+        rs = searchProcessor.getSearchResultSet(request, query);
+      }
+    } catch (SolrSearchException e) {
+      recordError(metrics);
+      response.sendError(e.getCode(), e.getMessage());
+      return;
+    }
+    long queried = System.currentTimeMillis();
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    // a response that will be cached is rendered to a buffer first.
+    StringWriter buffer = cacheKey == null ? null : new StringWriter();
+    ExtendedJSONWriter write = new ExtendedJSONWriter(buffer == null ? response
+        .getWriter() : buffer);
+    write.setTidy(isTidy(request));
+    // when cursor paging, each result is sent as soon as it is written.
+    Writer stream = cursor == null || buffer != null ? null : response.getWriter();
+
+    Iterator<Result> iterator = rs.getResultSetIterator();
+    // load what the page refers to in one go, so a processor that looks its results up
+    // in the request need not go back to storage for each one. A projection writes
+    // straight from the index and has nothing to load.
+    ResultPagePrefetcher.Page prefetched = null;
+    Object processor = useBatch ? searchBatchProcessor : searchProcessor;
+    if (projection == null && processor instanceof PrefetchedResults.Reader) {
+      prefetched = resultPagePrefetcher.prefetch(request, iterator, nitems);
+    }
+    long loaded = System.currentTimeMillis();
+
+    StreamingResultIterator written;
+    try {
+      write.object();
+      write.key(PARAMS_ITEMS_PER_PAGE);
+      write.value(nitems);
+      write.key(JSON_RESULTS);
+
+      write.array();
+
+      if (projection != null) {
+        written = new StreamingResultIterator(iterator, stream);
+        for (long i = 0; i < nitems && written.hasNext(); i++) {
+          projection.writeResult(request, write, written.next());
+        }
+      } else if (useBatch) {
+        LOGGER.info("Using batch processor for results");
+        written = new StreamingResultIterator(prefetched == null ? iterator : Iterators
+            .concat(prefetched.getResults().iterator(), iterator), stream);
+        searchBatchProcessor.writeResults(request, write, written);
+      } else {
+        LOGGER.info("Using regular processor for results");
+        // We don't skip any rows ourselves here.
+        // We expect a rowIterator coming from a resultset to be at the right place.
+        written = new StreamingResultIterator(prefetched == null ? iterator : prefetched
+            .getResults().iterator(), stream);
+        for (long i = 0; i < nitems && written.hasNext(); i++) {
+          // Write the result for this row.
+          searchProcessor.writeResult(request, write, written.next());
+        }
+      }
+      write.endArray();
+    } finally {
+      if (prefetched != null) {
+        prefetched.close();
+      }
+    }
+
+    // write the solr facets out if they exist
+    writeFacetFields(rs, write);
+
+    // write the total out after processing the list to give the underlying iterator
+    // a chance to walk the results then report how many there were.
+    write.key(TOTAL);
+    write.value(rs.getSize());
+
+    boolean partial = isPartial(rs);
+    if (timeAllowed > 0) {
+      write.key(JSON_PARTIAL);
+      write.value(partial);
     }
 
-    // collect query options
-    PropertyIterator queryOptions = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      Node queryOptionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      queryOptions = queryOptionsNode.getProperties();
+    if (cursor != null) {
+      // a short page is the last one.
+      String nextCursor = null;
+      Result last = written.getLast();
+      if (written.getCount() >= nitems && last != null
+          && last.getFirstValue(SearchCursor.KEY_FIELD) != null) {
+        nextCursor = SearchCursor.encode(String.valueOf(last
+            .getFirstValue(SearchCursor.KEY_FIELD)));
+      }
+      write.key(JSON_NEXT_CURSOR);
+      write.value(nextCursor);
+    }
+
+    String[] decoratorNames = template.getDecoratorNames();
+    if (decoratorNames != null) {
+      for ( String name : decoratorNames ) {
+        SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
+        if ( decorator != null ) {
+          decorator.decorateSearchResponse(request, write);
+        }
+      }
+    }
+
+    write.endObject();
+
+    if (buffer != null) {
+      String rendered = buffer.toString();
+      response.getWriter().write(rendered);
+      if (!partial) {
+        searchResponseCache.put(cacheKey, rendered);
+      }
+    }
+    if (metrics != null) {
+      metrics.record(queried - started, loaded - queried,
+          System.currentTimeMillis() - loaded, written.getCount());
+    }
+  }
+
+  /**
+   * @param rs
+   * @return true if solr ran out of time and returned only the hits it had found.
+   */
+  private static boolean isPartial(SolrSearchResultSet rs) {
+    if (rs instanceof SolrQueryResponseWrapper) {
+      QueryResponse queryResponse = ((SolrQueryResponseWrapper) rs).getQueryResponse();
+      if (queryResponse != null && queryResponse.getHeader() != null) {
+        return Boolean.TRUE.equals(queryResponse.getHeader().get("partialResults"));
+      }
+    }
+    return false;
+  }
+
+  private static void recordError(SearchTemplateMetrics metrics) {
+    if (metrics != null) {
+      metrics.recordError();
+    }
+  }
+
+  /**
+   * Binds the request to a compiled search template, so that variable references are
+   * replaced by the same properties in the property provider and request.
+   *
+   * @param request
+   *          the request.
+   * @param template
+   *          the compiled search template.
+   * @return A processed query
+   * @throws MissingParameterException
+   */
+  protected Query processQuery(SlingHttpServletRequest request, SearchTemplate template)
+      throws RepositoryException, MissingParameterException, JSONException {
+    String queryType = template.getQueryType();
+    Map<String, String> propertiesMap = loadProperties(request,
+        template.getPropertyProviderNames(), template.getDefaults(), queryType);
+
+    String queryString = template.getQueryTemplate();
+    if (!template.isQueryStatic()) {
+      // process the query string before checking for missing terms to a) give processors
+      // a chance to set things and b) catch any missing terms added by the processors.
+      queryString = templateService.evaluateTemplate(propertiesMap, queryString);
+
+      // expand home directory references to full path; eg. ~user => a:user
+      queryString = SearchUtil.expandHomeDirectory(queryString);
+
+      // check for any missing terms & process the query template
+      Collection<String> missingTerms = templateService.missingTerms(queryString);
+      if (!missingTerms.isEmpty()) {
+        throw new MissingParameterException(
+            "Your request is missing parameters for the template: "
+                + StringUtils.join(missingTerms, ", "));
+      }
+    } else {
+      queryString = SearchUtil.expandHomeDirectory(queryString);
     }
 
     // process the options as templates and check for missing params
-    Map<String, Object> options = processOptions(propertiesMap, queryOptions, queryType);
+    Map<String, Object> options = processOptions(propertiesMap, template.getOptions(),
+        queryType);
 
-    return new Query(queryNode.getPath(), queryType, queryString, options);
+    return new Query(template.getPath(), queryType, queryString, options);
   }
 
   /**
@@ -389,34 +565,25 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @throws MissingParameterException
    */
   private Map<String, Object> processOptions(Map<String, String> propertiesMap,
-      PropertyIterator queryOptions, String queryType) throws RepositoryException,
-      MissingParameterException {
+      Map<String, Object> queryOptions, String queryType) throws MissingParameterException {
     Set<String> missingTerms = Sets.newHashSet();
     Map<String, Object> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      while (queryOptions.hasNext()) {
-        javax.jcr.Property prop = queryOptions.nextProperty();
-        String key = prop.getName();
-
-        if (!JcrUtils.isJCRProperty(key)) {
-          if (prop.isMultiple()) {
-            Set<String> processedVals = Sets.newHashSet();
-            Value[] vals = prop.getValues();
-            for (Value val : vals) {
-              String processedVal = processValue(key, val.getString(), propertiesMap,
-                  queryType, missingTerms);
-              processedVals.add(processedVal);
-            }
-            if (!processedVals.isEmpty()) {
-              options.put(key, processedVals);
-            }
-          } else {
-            String val = prop.getString();
-            String processedVal = processValue(key, val, propertiesMap, queryType,
-                missingTerms);
-            options.put(key, processedVal);
-          }
+    for (Entry<String, Object> option : queryOptions.entrySet()) {
+      String key = option.getKey();
+      if (option.getValue() instanceof List<?>) {
+        Set<String> processedVals = Sets.newHashSet();
+        for (Object val : (List<?>) option.getValue()) {
+          String processedVal = processValue(key, String.valueOf(val), propertiesMap,
+              queryType, missingTerms);
+          processedVals.add(processedVal);
+        }
+        if (!processedVals.isEmpty()) {
+          options.put(key, processedVals);
         }
+      } else {
+        String processedVal = processValue(key, String.valueOf(option.getValue()),
+            propertiesMap, queryType, missingTerms);
+        options.put(key, processedVal);
       }
     }
 
@@ -441,8 +608,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    */
   private String processValue(String key, String val, Map<String, String> propertiesMap,
       String queryType, Set<String> missingTerms) {
-    missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
-    String processedVal = templateService.evaluateTemplate(propertiesMap, val);
+    String processedVal = val;
+    if (!SearchTemplate.isStatic(val)) {
+      missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
+      processedVal = templateService.evaluateTemplate(propertiesMap, val);
+    }
     if ("sort".equals(key)) {
       processedVal = SearchUtil.escapeString(processedVal, queryType);
     }
@@ -463,7 +633,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String[] propertyProviderNames, PropertyIterator defaultProps, String queryType) throws RepositoryException {
+      String[] propertyProviderNames, Map<String, String> defaultProps, String queryType) throws RepositoryException {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -474,14 +644,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
     // 1. load in properties from the query template node so defaults can be set
-    if (defaultProps != null) {
-      while (defaultProps.hasNext()) {
-        javax.jcr.Property prop = defaultProps.nextProperty();
-        String key = prop.getName();
-        if (!key.startsWith("jcr:") && !propertiesMap.containsKey(key) && !prop.isMultiple()) {
-          String val = prop.getString();
-          propertiesMap.put(key, val);
-        }
+    for (Entry<String, String> prop : defaultProps.entrySet()) {
+      if (!propertiesMap.containsKey(prop.getKey())) {
+        propertiesMap.put(prop.getKey(), prop.getValue());
       }
     }
 
@@ -540,23 +705,6 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     return false;
   }
 
-  private String[] getStringArrayProp(Node queryNode, String propName) throws RepositoryException {
-    String[] propertyProviderNames;
-    javax.jcr.Property propProv = queryNode.getProperty(propName);
-    if (propProv.isMultiple()) {
-      Value[] propProvVals = propProv.getValues();
-      propertyProviderNames = new String[propProvVals.length];
-
-      for (int i = 0; i < propProvVals.length; i++) {
-        propertyProviderNames[i] = propProvVals[i].getString();
-      }
-    } else {
-      propertyProviderNames = new String[1];
-      propertyProviderNames[0] = propProv.getString();
-    }
-    return propertyProviderNames;
-  }
-
   private void writeFacetFields(SolrSearchResultSet rs, ExtendedJSONWriter writer) throws JSONException {
     if (rs.getFacetFields() != null) {
       List<FacetField> fields = rs.getFacetFields();
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * The fields the index stores, read from the solr schema this bundle installs. A search
+ * template projection can only be written from the index for fields that are stored.
+ */
+public class StoredFields {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StoredFields.class);
+
+  static final String SCHEMA = "/SLING-INF/home/solr/schema.xml";
+
+  private static StoredFields schemaFields;
+
+  /**
+   * Whether each named field is stored, a named field takes precedence over the dynamic
+   * fields it matches.
+   */
+  private final Map<String, Boolean> named = new HashMap<String, Boolean>();
+  private final List<String> prefixes = new ArrayList<String>();
+  private final List<String> suffixes = new ArrayList<String>();
+
+  /**
+   * @return the stored fields of the bundled schema, or null if it can't be read.
+   */
+  public static synchronized StoredFields getSchemaFields() {
+    if (schemaFields == null) {
+      InputStream in = StoredFields.class.getResourceAsStream(SCHEMA);
+      if (in == null) {
+        LOGGER.warn("Unable to find the solr schema {}", SCHEMA);
+        return null;
+      }
+      try {
+        schemaFields = new StoredFields(in);
+      } catch (IOException e) {
+        LOGGER.warn("Unable to read the solr schema {}: {}", SCHEMA, e.getMessage());
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug("Failed to close the solr schema {}", e.getMessage());
+        }
+      }
+    }
+    return schemaFields;
+  }
+
+  /**
+   * @param schema
+   *          a solr schema.
+   * @throws IOException
+   *           if the schema can't be parsed.
+   */
+  StoredFields(InputStream schema) throws IOException {
+    Document document;
+    try {
+      document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(schema);
+    } catch (ParserConfigurationException e) {
+      throw new IOException(e.getMessage());
+    } catch (SAXException e) {
+      throw new IOException(e.getMessage());
+    }
+    // a field is stored unless it or its type says otherwise.
+    Map<String, Boolean> types = new HashMap<String, Boolean>();
+    NodeList typeNodes = document.getElementsByTagName("fieldType");
+    for (int i = 0; i < typeNodes.getLength(); i++) {
+      Element type = (Element) typeNodes.item(i);
+      types.put(type.getAttribute("name"), !"false".equals(type.getAttribute("stored")));
+    }
+    addFields(document.getElementsByTagName("field"), types, false);
+    addFields(document.getElementsByTagName("dynamicField"), types, true);
+  }
+
+  private void addFields(NodeList fields, Map<String, Boolean> types, boolean dynamic) {
+    for (int i = 0; i < fields.getLength(); i++) {
+      Element field = (Element) fields.item(i);
+      String name = field.getAttribute("name");
+      String attribute = field.getAttribute("stored");
+      boolean stored = attribute.length() == 0 ? !Boolean.FALSE.equals(types.get(field
+          .getAttribute("type"))) : "true".equals(attribute);
+      if (!dynamic) {
+        named.put(name, stored);
+      } else if (!stored) {
+        continue;
+      } else if (name.startsWith("*")) {
+        suffixes.add(name.substring(1));
+      } else if (name.endsWith("*")) {
+        prefixes.add(name.substring(0, name.length() - 1));
+      }
+    }
+  }
+
+  /**
+   * @param field
+   * @return true if the index stores the field, so a hit carries its values.
+   */
+  public boolean isStored(String field) {
+    Boolean stored = named.get(field);
+    if (stored != null) {
+      return stored;
+    }
+    for (String prefix : prefixes) {
+      if (field.startsWith(prefix)) {
+        return true;
+      }
+    }
+    for (String suffix : suffixes) {
+      if (field.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Wraps the results handed to the processors. It remembers the last result taken, so the
+ * servlet can tell where a page ended. When streaming, it flushes the output each time
+ * the next result is asked for, as everything before it has then been written, so a
+ * client reading a long page receives each result as soon as it has been rendered.
+ */
+class StreamingResultIterator implements Iterator<Result> {
+
+  private final Iterator<Result> delegate;
+  private final Writer writer;
+  private Result last;
+  private int count;
+  private int flushed;
+
+  /**
+   * @param delegate
+   * @param writer
+   *          the writer to flush between results, or null to leave flushing to the
+   *          container.
+   */
+  StreamingResultIterator(Iterator<Result> delegate, Writer writer) {
+    this.delegate = delegate;
+    this.writer = writer;
+  }
+
+  public boolean hasNext() {
+    flush();
+    return delegate.hasNext();
+  }
+
+  public Result next() {
+    flush();
+    last = delegate.next();
+    count++;
+    return last;
+  }
+
+  public void remove() {
+    delegate.remove();
+  }
+
+  /**
+   * @return the last result taken, or null if none have been.
+   */
+  Result getLast() {
+    return last;
+  }
+
+  /**
+   * @return the number of results taken.
+   */
+  int getCount() {
+    return count;
+  }
+
+  private void flush() {
+    if (writer != null && count > flushed) {
+      flushed = count;
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        // the client has gone, the next write will fail and end the request.
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class MergingIteratorTest {
+
+  private static final Comparator<String> NATURAL = new Comparator<String>() {
+    public int compare(String a, String b) {
+      return a.compareTo(b);
+    }
+  };
+
+  @Test
+  public void testMerging() {
+    List<Iterator<String>> inputs = Lists.newArrayList(
+        Lists.newArrayList("a", "d", "g").iterator(),
+        Collections.<String> emptyList().iterator(),
+        Lists.newArrayList("b", "e").iterator(),
+        Lists.newArrayList("c", "f", "h", "i").iterator());
+    MergingIterator<String> merged = new MergingIterator<String>(NATURAL, inputs);
+    assertEquals(Lists.newArrayList("a", "b", "c", "d", "e", "f", "g", "h", "i"),
+        Lists.newArrayList(merged));
+    assertFalse(merged.hasNext());
+    try {
+      merged.next();
+      fail("Expected the merge to be exhausted");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDistinct() {
+    List<Iterator<String>> inputs = Lists.newArrayList(
+        Lists.newArrayList("/a", "/b", "/b", "/d").iterator(),
+        Lists.newArrayList("/b", "/c", "/d").iterator());
+    MergingIterator<String> merged = new MergingIterator<String>(NATURAL, inputs, true);
+    assertEquals(Lists.newArrayList("/a", "/b", "/c", "/d"), Lists.newArrayList(merged));
+  }
+
+  @Test
+  public void testTiesAndLaziness() {
+    final int[] pulled = new int[1];
+    Iterator<String> counting = new Iterator<String>() {
+      private final Iterator<String> delegate = Lists.newArrayList("a", "x", "y", "z")
+          .iterator();
+
+      public boolean hasNext() {
+        return delegate.hasNext();
+      }
+
+      public String next() {
+        pulled[0]++;
+        return delegate.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    Comparator<String> byLength = new Comparator<String>() {
+      public int compare(String a, String b) {
+        return a.length() - b.length();
+      }
+    };
+    List<Iterator<String>> inputs = Lists.newArrayList(counting,
+        Lists.newArrayList("b", "cc").iterator());
+    MergingIterator<String> merged = new MergingIterator<String>(byLength, inputs);
+    // equal heads come from the earlier input first
+    assertEquals("a", merged.next());
+    assertEquals("x", merged.next());
+    assertEquals(2, pulled[0]);
+  }
+}
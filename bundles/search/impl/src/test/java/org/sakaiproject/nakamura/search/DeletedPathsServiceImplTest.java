@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -134,4 +135,22 @@ public class DeletedPathsServiceImplTest {
 
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testSiblingsAreNotCollapsed() throws Exception {
+    List<String> paths = Lists.newArrayList("/first/secondary", "/first/second/child",
+        "/first/second");
+    for (String path : paths) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", path)));
+    }
+    assertEquals(Lists.newArrayList("/first/secondary", "/first/second"),
+        service.getDeletedPaths());
+    assertEquals("-path:(/first/secondary OR /first/second)",
+        service.getDeletedPathsFilter());
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertNull(service.getDeletedPathsFilter());
+  }
 }
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+
+import java.util.Hashtable;
+
+public class IndexingCoalescerImplTest {
+
+  private IndexingCoalescerImpl coalescer;
+
+  private Repository repository;
+
+  private ContentManager contentManager;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = mock(Repository.class);
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    coalescer = new IndexingCoalescerImpl();
+    coalescer.repository = repository;
+    coalescer.activate(ImmutableMap.of(IndexingCoalescerImpl.WINDOW, 60000L));
+  }
+
+  @After
+  public void tearDown() {
+    coalescer.deactivate();
+  }
+
+  @Test
+  public void testLastEventWins() {
+    Event update = event(StoreListener.UPDATED_TOPIC, "a/b");
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    assertEquals(3, coalescer.getQueueDepth());
+
+    assertTrue(coalescer.isSuperseded(update));
+    assertTrue(coalescer.isSuperseded(update));
+    assertFalse("The last event should be indexed", coalescer.isSuperseded(update));
+    assertFalse("An event that was not counted should be indexed",
+        coalescer.isSuperseded(update));
+
+    assertEquals(0, coalescer.getQueueDepth());
+    assertEquals(2, coalescer.getEventsCoalesced());
+    assertEquals(2, coalescer.getEventsIndexed());
+    assertEquals(0.5, coalescer.getCoalesceRatio(), 0.001);
+  }
+
+  @Test
+  public void testPathsAndDeletesAreSeparate() {
+    coalescer.handleEvent(event(StoreListener.UPDATED_TOPIC, "a/b"));
+    coalescer.handleEvent(event(StoreListener.UPDATED_TOPIC, "a/c"));
+    assertFalse(coalescer.isSuperseded(event(StoreListener.UPDATED_TOPIC, "a/b")));
+
+    coalescer.handleEvent(event(StoreListener.UPDATED_TOPIC, "a/b"));
+    assertFalse("Deletes are never coalesced",
+        coalescer.isSuperseded(event(StoreListener.DELETE_TOPIC, "a/b")));
+    assertFalse(coalescer.isSuperseded(event(StoreListener.UPDATED_TOPIC, "a/b")));
+  }
+
+  @Test
+  public void testIndexedBeforeCounted() {
+    Event update = event(StoreListener.ADDED_TOPIC, "a/b");
+    assertFalse(coalescer.isSuperseded(update));
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    assertFalse("The late count should only balance the early index",
+        coalescer.isSuperseded(update));
+  }
+
+  @Test
+  public void testSkippedEventRefreshed() throws Exception {
+    Event update = event(StoreListener.UPDATED_TOPIC, "a/b");
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    assertTrue(coalescer.isSuperseded(update));
+    // the later event went to a handler that does not coalesce.
+    coalescer.refreshSkipped(System.currentTimeMillis());
+    verify(repository, never()).loginAdministrative();
+
+    coalescer.refreshSkipped(System.currentTimeMillis() + 120000L);
+    verify(contentManager).triggerRefresh("a/b");
+    assertEquals(1, coalescer.getPathsRefreshed());
+    assertEquals(0, coalescer.getQueueDepth());
+
+    coalescer.handleEvent(update);
+    assertFalse("The refresh should be indexed", coalescer.isSuperseded(update));
+  }
+
+  @Test
+  public void testSkippedEventIndexedLater() throws Exception {
+    Event update = event(StoreListener.UPDATED_TOPIC, "a/b");
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    assertTrue(coalescer.isSuperseded(update));
+    assertTrue(coalescer.isSuperseded(update));
+    assertFalse(coalescer.isSuperseded(update));
+    coalescer.refreshSkipped(System.currentTimeMillis() + 120000L);
+    verify(repository, never()).loginAdministrative();
+  }
+
+  @Test
+  public void testDisabled() {
+    coalescer.activate(ImmutableMap.of(IndexingCoalescerImpl.WINDOW, 0L));
+    Event update = event(StoreListener.UPDATED_TOPIC, "a/b");
+    coalescer.handleEvent(update);
+    coalescer.handleEvent(update);
+    assertFalse(coalescer.isSuperseded(update));
+  }
+
+  private Event event(String operation, String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(IndexingHandler.FIELD_PATH, path);
+    return new Event(StoreListener.TOPIC_BASE + "content/" + operation, props);
+  }
+}
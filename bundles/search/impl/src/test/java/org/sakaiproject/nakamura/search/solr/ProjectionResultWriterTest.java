@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.io.StringWriter;
+import java.util.Collection;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProjectionResultWriterTest {
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private Result result;
+
+  @Test
+  public void testFieldList() {
+    ProjectionResultWriter writer = new ProjectionResultWriter(new String[] { "title",
+        "sakai:pooled-content-file-name=filename", " " }, null);
+    assertEquals("path,title,filename", writer.getFieldList(null));
+    assertEquals("id,score,path,title,filename", writer.getFieldList("id, score"));
+  }
+
+  @Test
+  public void testWritesStoredFieldsWithoutStorage() throws Exception {
+    ProjectionResultWriter projection = new ProjectionResultWriter(new String[] {
+        "title", "sakai:pooled-content-file-name=filename", "tag" },
+        StoredFields.getSchemaFields());
+    when(result.getPath()).thenReturn("/p/abc");
+    when(result.getProperties()).thenReturn(ImmutableMap.<String, Collection<Object>> of(
+        "title", Lists.<Object> newArrayList("A title"),
+        "filename", Lists.<Object> newArrayList("a.txt"),
+        "tag", Lists.<Object> newArrayList("x", "y")));
+    StringWriter out = new StringWriter();
+    JSONWriter write = new JSONWriter(out);
+    projection.writeResult(request, write, result);
+    assertEquals("{\"path\":\"/p/abc\",\"title\":\"A title\","
+        + "\"sakai:pooled-content-file-name\":\"a.txt\",\"tag\":[\"x\",\"y\"]}",
+        out.toString());
+    verifyZeroInteractions(request);
+  }
+
+  @Test
+  public void testMissingStoredFieldIsAbsent() throws Exception {
+    ProjectionResultWriter projection = new ProjectionResultWriter(new String[] {
+        "title", "description" }, StoredFields.getSchemaFields());
+    assertTrue(projection.getUnstoredFields().isEmpty());
+    when(result.getPath()).thenReturn("/p/abc");
+    when(result.getProperties()).thenReturn(ImmutableMap.<String, Collection<Object>> of(
+        "title", Lists.<Object> newArrayList("A title")));
+    StringWriter out = new StringWriter();
+    projection.writeResult(request, new JSONWriter(out), result);
+    assertEquals("{\"path\":\"/p/abc\",\"title\":\"A title\"}", out.toString());
+    verifyZeroInteractions(request);
+  }
+
+  @Test
+  public void testUnstoredFields() {
+    ProjectionResultWriter projection = new ProjectionResultWriter(new String[] {
+        "title", "body=content", "sakai:tag-uuid", "timestamp", "nosuchfield" },
+        StoredFields.getSchemaFields());
+    assertEquals(ImmutableSet.of("body", "timestamp", "nosuchfield"),
+        projection.getUnstoredFields());
+  }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+public class ReadersFilterCacheTest {
+
+  @Test
+  public void testFilterIsCanonical() {
+    assertEquals("readers:(g\\-b OR g\\-c OR u)", ReadersFilterCache.buildFilter(
+        ImmutableSortedSet.of("u", "g-c", "g-b"), 0));
+    assertEquals(ReadersFilterCache.buildFilter(ImmutableSortedSet.of("b", "a"), 0),
+        ReadersFilterCache.buildFilter(ImmutableSortedSet.of("a", "b"), 0));
+  }
+
+  @Test
+  public void testCompactFilter() {
+    assertEquals("readers:(a OR b)",
+        ReadersFilterCache.buildFilter(ImmutableSortedSet.of("a", "b"), 2));
+    assertEquals("{!lucene q.op=OR df=readers}a b c",
+        ReadersFilterCache.buildFilter(ImmutableSortedSet.of("c", "b", "a"), 2));
+  }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReindexServiceImplTest {
+
+  private static final Map<String, List<String>> TREE = ImmutableMap.<String, List<String>> of(
+      "/", ImmutableList.of("a", "b"), "a", ImmutableList.of("a/1"), "a/1",
+      ImmutableList.of("a/1/x"));
+
+  @Mock
+  private Repository repository;
+
+  @Mock
+  private Session session;
+
+  @Mock
+  private ContentManager contentManager;
+
+  @Mock
+  private AuthorizableManager authorizableManager;
+
+  @Mock
+  private User ieb;
+
+  @Mock
+  private User suzy;
+
+  @Mock
+  private Group group;
+
+  private ReindexServiceImpl reindex;
+
+  @Before
+  public void setUp() throws Exception {
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(contentManager.listChildPaths(anyString())).thenAnswer(
+        new Answer<Iterator<String>>() {
+          public Iterator<String> answer(InvocationOnMock invocation) {
+            List<String> children = TREE.get(invocation.getArguments()[0]);
+            return children == null ? Collections.<String> emptyList().iterator()
+                : children.iterator();
+          }
+        });
+    when(ieb.getId()).thenReturn("ieb");
+    when(suzy.getId()).thenReturn("suzy");
+    when(group.getId()).thenReturn("g-course101");
+    when(authorizableManager.findAuthorizable(Authorizable.AUTHORIZABLE_TYPE_FIELD,
+        Authorizable.USER_VALUE, User.class)).thenAnswer(new Answer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer(InvocationOnMock invocation) {
+        return ImmutableList.<Authorizable> of(ieb, suzy).iterator();
+      }
+    });
+    when(authorizableManager.findAuthorizable(Authorizable.AUTHORIZABLE_TYPE_FIELD,
+        Authorizable.GROUP_VALUE, Group.class)).thenAnswer(new Answer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer(InvocationOnMock invocation) {
+        return ImmutableList.<Authorizable> of(group).iterator();
+      }
+    });
+
+    reindex = new ReindexServiceImpl();
+    reindex.repository = repository;
+    reindex.activate(ImmutableMap.of(ReindexServiceImpl.THREADS, 2,
+        ReindexServiceImpl.BATCH_SIZE, 2, ReindexServiceImpl.MAX_RATE, 0,
+        ReindexServiceImpl.RESUME_ON_START, false));
+  }
+
+  @After
+  public void tearDown() {
+    reindex.deactivate();
+  }
+
+  @Test
+  public void testEverythingRefreshed() throws Exception {
+    checkpoint(ReindexServiceImpl.COMPLETE, 0, 0, "", 7, 7);
+
+    reindex.runJob(false);
+
+    verify(authorizableManager).triggerRefresh("ieb");
+    verify(authorizableManager).triggerRefresh("suzy");
+    verify(authorizableManager).triggerRefresh("g-course101");
+    verify(contentManager).triggerRefresh("a");
+    verify(contentManager).triggerRefresh("a/1");
+    verify(contentManager).triggerRefresh("a/1/x");
+    verify(contentManager).triggerRefresh("b");
+    assertEquals(7, reindex.getDone());
+    assertFalse(reindex.isRunning());
+
+    Content last = lastCheckpoint();
+    assertEquals(ReindexServiceImpl.COMPLETE, last.getProperty(ReindexServiceImpl.STATE));
+    assertEquals(7L, last.getProperty(ReindexServiceImpl.TOTAL));
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    checkpoint(ReindexServiceImpl.RUNNING, 2, 2, "a/1", 6, 7);
+
+    reindex.runJob(true);
+
+    verify(authorizableManager, never()).triggerRefresh(anyString());
+    verify(contentManager, never()).triggerRefresh("a");
+    verify(contentManager, never()).triggerRefresh("a/1");
+    verify(contentManager, never()).triggerRefresh("a/1/x");
+    verify(contentManager).triggerRefresh("b");
+    assertEquals(7, reindex.getDone());
+  }
+
+  @Test
+  public void testResumeAfterChange() throws Exception {
+    checkpoint(ReindexServiceImpl.RUNNING, 2, 2, "a/2", 6, 7);
+
+    reindex.runJob(true);
+
+    verify(contentManager).triggerRefresh("a");
+    verify(contentManager).triggerRefresh("a/1");
+    verify(contentManager).triggerRefresh("a/1/x");
+    verify(contentManager).triggerRefresh("b");
+  }
+
+  @Test
+  public void testWaitsForIndexingQueue() throws Exception {
+    checkpoint(ReindexServiceImpl.COMPLETE, 0, 0, "", 7, 7);
+    IndexingCoalescer coalescer = mock(IndexingCoalescer.class);
+    when(coalescer.getQueueDepth()).thenReturn(5000L, 5000L, 0L);
+    reindex.indexingCoalescer = coalescer;
+
+    reindex.runJob(false);
+
+    // the first batch waits for the queue to drain, the rest find it empty.
+    verify(coalescer, atLeast(3)).getQueueDepth();
+    verify(contentManager).triggerRefresh("b");
+    assertEquals(7, reindex.getDone());
+  }
+
+  private void checkpoint(String state, int source, long position, String lastKey,
+      long done, long total) throws Exception {
+    Map<String, Object> properties = ImmutableMap.<String, Object> builder()
+        .put(ReindexServiceImpl.STATE, state).put(ReindexServiceImpl.SOURCE, source)
+        .put(ReindexServiceImpl.POSITION, position)
+        .put(ReindexServiceImpl.LAST_KEY, lastKey).put(ReindexServiceImpl.DONE, done)
+        .put(ReindexServiceImpl.TOTAL, total).build();
+    when(contentManager.get(ReindexServiceImpl.CHECKPOINT_PATH)).thenReturn(
+        new Content(ReindexServiceImpl.CHECKPOINT_PATH, properties));
+  }
+
+  private Content lastCheckpoint() throws Exception {
+    ArgumentCaptor<Content> saved = ArgumentCaptor.forClass(Content.class);
+    verify(contentManager, atLeastOnce()).update(saved.capture());
+    List<Content> all = saved.getAllValues();
+    Content last = all.get(all.size() - 1);
+    assertEquals(ReindexServiceImpl.CHECKPOINT_PATH, last.getPath());
+    return last;
+  }
+}
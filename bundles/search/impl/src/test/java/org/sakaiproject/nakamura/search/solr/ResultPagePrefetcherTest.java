@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.search.solr.PrefetchedResults;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.Iterator;
+import java.util.List;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResultPagePrefetcherTest {
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private Result a;
+
+  @Mock
+  private Result b;
+
+  @Mock
+  private Result c;
+
+  @Test
+  public void testPageIsReadAheadAndUnbound() {
+    ResultPagePrefetcher prefetcher = new ResultPagePrefetcher();
+    prefetcher.activate(ImmutableMap.of(ResultPagePrefetcher.THREADS, 0));
+    List<Result> all = Lists.newArrayList(a, b, c);
+    Iterator<Result> iterator = all.iterator();
+
+    ResultPagePrefetcher.Page page = prefetcher.prefetch(request, iterator, 2);
+    assertEquals(Lists.newArrayList(a, b), page.getResults());
+    assertTrue("Expected the rest of the results to be left for the caller",
+        iterator.hasNext());
+    assertEquals(c, iterator.next());
+    verify(request).setAttribute(Matchers.eq(PrefetchedResults.REQUEST_ATTRIBUTE),
+        Matchers.any(PrefetchedResults.class));
+
+    page.close();
+    verify(request).removeAttribute(PrefetchedResults.REQUEST_ATTRIBUTE);
+    prefetcher.deactivate();
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class SearchCursorTest {
+
+  @Test
+  public void testRoundTrip() {
+    String key = "/p/abc\u00e9/x y";
+    assertEquals(key, SearchCursor.decode(SearchCursor.encode(key)));
+  }
+
+  @Test
+  public void testFirstPage() {
+    assertNull(SearchCursor.decode(SearchCursor.START));
+    assertNull(SearchCursor.decode(""));
+  }
+
+  @Test
+  public void testInvalidCursor() {
+    for (String token : new String[] { "abc", "zz" }) {
+      try {
+        SearchCursor.decode(token);
+        fail("Expected " + token + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testFilterIsEscaped() {
+    assertEquals("id:{\"a\\\"b\\\\c\" TO *}", SearchCursor.filterAfter("a\"b\\c"));
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.SearchTemplateMetricsMBean;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class SearchMetricsTest {
+
+  private static final String PATH = "/var/search/pool/files";
+
+  private SearchMetrics searchMetrics = new SearchMetrics();
+
+  @After
+  public void tearDown() {
+    searchMetrics.deactivate();
+  }
+
+  @Test
+  public void testRecord() {
+    SearchTemplateMetrics metrics = searchMetrics.getMetrics(PATH);
+    assertSame(metrics, searchMetrics.getMetrics(PATH));
+
+    metrics.record(3, 0, 1, 10);
+    metrics.record(40, 200, 20000, 25);
+    metrics.recordError();
+    metrics.recordCachedResponse();
+
+    assertEquals(2, metrics.getCalls());
+    assertEquals(1, metrics.getErrors());
+    assertEquals(1, metrics.getCachedResponses());
+    assertEquals(35, metrics.getResults());
+    assertEquals(25, metrics.getMaxResults());
+    assertEquals(20240, metrics.getMaxMillis());
+    assertEquals(43, metrics.getQueryMillis());
+
+    long[] writing = metrics.getWritingHistogram();
+    assertEquals(metrics.getHistogramBounds().length + 1, writing.length);
+    assertEquals(1, writing[0]);
+    assertEquals("Expected the slowest write in the overflow bucket", 1,
+        writing[writing.length - 1]);
+
+    searchMetrics.reset();
+    assertEquals(0, metrics.getCalls());
+    assertArrayEquals(new long[writing.length], metrics.getWritingHistogram());
+    assertEquals(1, searchMetrics.getTemplateMetrics().size());
+  }
+
+  @Test
+  public void testRegisteredInJmx() throws Exception {
+    searchMetrics.getMetrics(PATH).record(1, 1, 1, 1);
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName on = new ObjectName(SearchMetrics.JMX_DOMAIN + ":type="
+        + SearchTemplateMetricsMBean.TYPE + ",name=" + ObjectName.quote(PATH));
+    assertTrue(mBeanServer.isRegistered(on));
+    assertEquals(1L, mBeanServer.getAttribute(on, "Calls"));
+
+    searchMetrics.deactivate();
+    assertFalse(mBeanServer.isRegistered(on));
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameterMap;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.Weigher;
+import org.sakaiproject.nakamura.api.search.DeletedPathsService;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SearchResponseCacheTest {
+
+  @Mock
+  private CacheManagerService cacheManagerService;
+
+  @Mock
+  private Cache<String> cache;
+
+  @Mock
+  private ReadersFilterSource readersFilterSource;
+
+  @Mock
+  private DeletedPathsService deletedPathsService;
+
+  @Mock
+  private SearchTemplate template;
+
+  private ReadersFilterCache readersFilterCache;
+
+  private SearchResponseCache searchResponseCache;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void setUp() throws Exception {
+    when(cacheManagerService.getCache(eq(SearchResponseCache.CACHE_NAME),
+        eq(CacheScope.INSTANCE), any(Weigher.class), anyLong())).thenReturn(cache);
+    when(cacheManagerService.<String> getCache(ReadersFilterCache.CACHE_NAME,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(cache);
+    when(cache.getOrLoad(anyString(), any(CacheLoader.class))).thenAnswer(
+        new Answer<String>() {
+          public String answer(InvocationOnMock invocation) throws Throwable {
+            return ((CacheLoader<String>) invocation.getArguments()[1])
+                .load((String) invocation.getArguments()[0]);
+          }
+        });
+    when(deletedPathsService.getDeletedPathsFilter()).thenReturn("-path:\\/deleted");
+    when(template.getPath()).thenReturn("/var/search/pool/all");
+
+    readersFilterCache = new ReadersFilterCache(cacheManagerService, 0);
+    searchResponseCache = new SearchResponseCache();
+    searchResponseCache.cacheManagerService = cacheManagerService;
+    searchResponseCache.readersFilterSource = readersFilterSource;
+    searchResponseCache.deletedPathsService = deletedPathsService;
+    searchResponseCache.activate(ImmutableMap.of());
+  }
+
+  @Test
+  public void testAnonymousShareKey() throws Exception {
+    assertEquals(getKey("anonymous"), getKey("anonymous"));
+  }
+
+  @Test
+  public void testUsersKeyedOnOwnFilter() throws Exception {
+    // the same groups, but each filter holds the user's own id.
+    assertFalse(getKey("alice", "g-1", "g-2").equals(getKey("bob", "g-2", "g-1")));
+    assertEquals(getKey("alice", "g-1", "g-2"), getKey("alice", "g-2", "g-1"));
+  }
+
+  @Test
+  public void testDifferentGrantsDifferentKeys() throws Exception {
+    assertFalse(getKey("alice", "g-1").equals(getKey("alice", "g-2")));
+    assertFalse(getKey("alice", "g-1").equals(getKey("alice", "g-1", "g-2")));
+  }
+
+  @Test
+  public void testUserDependentTemplateKeyedByUser() throws Exception {
+    when(template.isUserDependent()).thenReturn(true);
+    // neither filter names the user, as for users who may read everything.
+    SlingHttpServletRequest alice = newRequest("alice");
+    SlingHttpServletRequest bob = newRequest("bob");
+    assertEquals(searchResponseCache.getKey(alice, template).replace("~alice", ""),
+        searchResponseCache.getKey(bob, template).replace("~bob", ""));
+    assertFalse(searchResponseCache.getKey(alice, template).equals(
+        searchResponseCache.getKey(bob, template)));
+  }
+
+  private String getKey(String userId, String... groupIds) throws Exception {
+    Group[] groups = new Group[groupIds.length];
+    for (int i = 0; i < groupIds.length; i++) {
+      groups[i] = mock(Group.class);
+      when(groups[i].getId()).thenReturn(groupIds[i]);
+    }
+    Iterator<Group> memberOf = Arrays.asList(groups).iterator();
+    AuthorizableManager am = mock(AuthorizableManager.class);
+    Authorizable user = mock(Authorizable.class);
+    when(am.findAuthorizable(userId)).thenReturn(user);
+    when(user.memberOf(am)).thenReturn(memberOf);
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn(userId);
+    when(session.getAuthorizableManager()).thenReturn(am);
+
+    SlingHttpServletRequest request = newRequest(userId);
+    when(readersFilterSource.getSearchReadersFilter(request)).thenReturn(
+        readersFilterCache.getFilter(session));
+    return searchResponseCache.getKey(request, template);
+  }
+
+  private SlingHttpServletRequest newRequest(String userId) {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    when(pathInfo.getSelectorString()).thenReturn("json");
+    when(request.getRequestParameterMap()).thenReturn(
+        mock(RequestParameterMap.class));
+    when(request.getRemoteUser()).thenReturn(userId);
+    return request;
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_MAX_CONCURRENT;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_TIME_ALLOWED;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SearchTemplateCacheTest {
+
+  private static final String PATH = "/var/search/pool/files";
+
+  @Mock
+  private Resource resource;
+
+  @Mock
+  private Node node;
+
+  @Mock
+  private Property template;
+
+  @Mock
+  private Property limit;
+
+  @Before
+  public void setUp() throws Exception {
+    when(resource.getPath()).thenReturn(PATH);
+    when(resource.adaptTo(Node.class)).thenReturn(node);
+    when(node.getPath()).thenReturn(PATH);
+    when(node.hasProperty(SAKAI_QUERY_TEMPLATE)).thenReturn(true);
+    when(node.getProperty(SAKAI_QUERY_TEMPLATE)).thenReturn(template);
+    when(template.getString()).thenReturn("resourceType:sakai/pooled-content AND manager:${group}");
+  }
+
+  @Test
+  public void testCompiledOnce() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    SearchTemplate compiled = cache.getTemplate(resource);
+    assertEquals(PATH, compiled.getPath());
+    assertEquals(Query.SOLR, compiled.getQueryType());
+    assertFalse(compiled.isQueryStatic());
+    assertNull(compiled.getResultProcessorName());
+    assertSame(compiled, cache.getTemplate(resource));
+    verify(resource, times(1)).adaptTo(Node.class);
+  }
+
+  @Test
+  public void testConcurrentCompileShared() throws Exception {
+    final SearchTemplateCache cache = new SearchTemplateCache();
+    final SearchTemplate[] first = new SearchTemplate[1];
+    final boolean[] racing = new boolean[1];
+    // another request compiles and caches the template while this one is compiling it.
+    when(resource.adaptTo(Node.class)).thenAnswer(new Answer<Node>() {
+      public Node answer(InvocationOnMock invocation) throws Throwable {
+        if (!racing[0]) {
+          racing[0] = true;
+          first[0] = cache.getTemplate(resource);
+        }
+        return node;
+      }
+    });
+    assertSame(first[0], cache.getTemplate(resource));
+    assertSame(first[0], cache.getTemplate(resource));
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    SearchTemplate compiled = cache.getTemplate(resource);
+
+    cache.invalidate("/var/search/pool/files2");
+    assertSame("A sibling change should not invalidate", compiled,
+        cache.getTemplate(resource));
+
+    cache.invalidate(PATH + "/sakai:query-template-options");
+    SearchTemplate recompiled = cache.getTemplate(resource);
+    assertTrue("A change below the node should invalidate", compiled != recompiled);
+
+    cache.invalidate("/var/search");
+    assertTrue("Removing an ancestor should invalidate",
+        recompiled != cache.getTemplate(resource));
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    SearchTemplate unlimited = SearchTemplate.compile(node);
+    assertEquals(0, unlimited.getTimeAllowed());
+    assertTrue(unlimited.tryAcquire());
+    assertTrue(unlimited.tryAcquire());
+
+    when(node.hasProperty(SAKAI_MAX_CONCURRENT)).thenReturn(true);
+    when(node.hasProperty(SAKAI_TIME_ALLOWED)).thenReturn(true);
+    when(node.getProperty(SAKAI_MAX_CONCURRENT)).thenReturn(limit);
+    when(node.getProperty(SAKAI_TIME_ALLOWED)).thenReturn(limit);
+    when(limit.getLong()).thenReturn(1L);
+    SearchTemplate limited = SearchTemplate.compile(node);
+    assertEquals(1, limited.getTimeAllowed());
+    assertTrue(limited.tryAcquire());
+    assertFalse("Expected the second search to be turned away", limited.tryAcquire());
+    limited.release();
+    assertTrue(limited.tryAcquire());
+  }
+
+  @Test
+  public void testStaticTemplates() {
+    assertTrue(SearchTemplate.isStatic("resourceType:sakai/pooled-content"));
+    assertFalse(SearchTemplate.isStatic("manager:${group}"));
+    assertFalse(SearchTemplate.isStatic("#if($a)x#end"));
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
+import org.sakaiproject.nakamura.api.search.solr.SearchDeadline;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+
+import java.util.concurrent.Future;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SolrSearchServiceFactoryImplTest {
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private ResultSetFactory resultSetFactory;
+
+  @Mock
+  private SolrSearchResultSet resultSet;
+
+  @Mock
+  private ReadersFilterSource readersFilterSource;
+
+  private SolrSearchServiceFactoryImpl factory;
+
+  @Before
+  public void setUp() {
+    factory = new SolrSearchServiceFactoryImpl();
+    factory.readersFilterSource = readersFilterSource;
+    factory.bindResultSetFactories(resultSetFactory, ImmutableMap.of("type", Query.SOLR));
+    factory.activate(ImmutableMap.of(SolrSearchServiceFactoryImpl.ASYNC_THREADS, 2));
+  }
+
+  @After
+  public void tearDown() {
+    factory.deactivate();
+  }
+
+  @Test
+  public void testParallelSearches() throws Exception {
+    final Query first = new Query("first");
+    final Query second = new Query("second");
+    when(resultSetFactory.processQuery(any(SlingHttpServletRequest.class), eq(first),
+        eq(false))).thenAnswer(new Sleep(resultSet, 200));
+    when(resultSetFactory.processQuery(any(SlingHttpServletRequest.class), eq(second),
+        eq(false))).thenAnswer(new Sleep(resultSet, 200));
+
+    long start = System.currentTimeMillis();
+    Future<SolrSearchResultSet> a = factory.getSearchResultSetAsync(request, first, false);
+    Future<SolrSearchResultSet> b = factory.getSearchResultSetAsync(request, second, false);
+    SearchDeadline deadline = new SearchDeadline(5000);
+    assertSame(resultSet, deadline.get(a));
+    assertSame(resultSet, deadline.get(b));
+    assertTrue("Expected the searches to run together",
+        System.currentTimeMillis() - start < 390);
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    Query slow = new Query("slow");
+    when(resultSetFactory.processQuery(any(SlingHttpServletRequest.class), eq(slow),
+        eq(false))).thenAnswer(new Sleep(resultSet, 5000));
+    Future<SolrSearchResultSet> search = factory.getSearchResultSetAsync(request, slow,
+        false);
+    SearchDeadline deadline = new SearchDeadline(50);
+    try {
+      deadline.get(search);
+      fail("Expected the deadline to pass");
+    } catch (SolrSearchException e) {
+      assertEquals(504, e.getCode());
+    }
+    assertTrue(search.isCancelled());
+    assertTrue(deadline.isExpired());
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    Query bad = new Query("bad");
+    when(resultSetFactory.processQuery(any(SlingHttpServletRequest.class), eq(bad),
+        eq(false))).thenThrow(new SolrSearchException(400, "bad query"));
+    try {
+      new SearchDeadline(1000).get(factory.getSearchResultSetAsync(request, bad, false));
+      fail("Expected the search to fail");
+    } catch (SolrSearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testReadersResolvedOnCallingThread() throws Exception {
+    final Thread caller = Thread.currentThread();
+    when(readersFilterSource.getSearchReadersFilter(request)).thenAnswer(new Answer<String>() {
+          public String answer(InvocationOnMock invocation) {
+            assertSame(caller, Thread.currentThread());
+            return "readers:(a OR b)";
+          }
+        });
+    Query query = new Query("readers");
+    when(resultSetFactory.processQuery(any(SlingHttpServletRequest.class), eq(query),
+        eq(false))).thenAnswer(new Answer<SolrSearchResultSet>() {
+      public SolrSearchResultSet answer(InvocationOnMock invocation) {
+        SlingHttpServletRequest searched = (SlingHttpServletRequest) invocation
+            .getArguments()[0];
+        assertEquals("readers:(a OR b)",
+            searched.getAttribute(ReadersFilterSource.READERS_FILTER));
+        return resultSet;
+      }
+    });
+    assertSame(resultSet, new SearchDeadline(1000).get(factory.getSearchResultSetAsync(
+        request, query, false)));
+    verify(readersFilterSource, times(1)).getSearchReadersFilter(request);
+  }
+
+  @Test
+  public void testWithoutThreads() throws Exception {
+    factory.deactivate();
+    factory.activate(ImmutableMap.of(SolrSearchServiceFactoryImpl.ASYNC_THREADS, 0));
+    Query sparse = new Query(Query.SPARSE, "x", null);
+    Future<SolrSearchResultSet> search = factory.getSearchResultSetAsync(request, sparse,
+        false);
+    assertTrue(search.isDone());
+    assertNull(search.get());
+  }
+
+  private static class Sleep implements Answer<SolrSearchResultSet> {
+    private final SolrSearchResultSet result;
+    private final long millis;
+
+    Sleep(SolrSearchResultSet result, long millis) {
+      this.result = result;
+      this.millis = millis;
+    }
+
+    public SolrSearchResultSet answer(InvocationOnMock invocation) throws Throwable {
+      Thread.sleep(millis);
+      return result;
+    }
+  }
+}
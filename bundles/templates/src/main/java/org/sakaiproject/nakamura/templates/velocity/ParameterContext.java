@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import org.apache.velocity.context.AbstractContext;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Velocity context over the caller's parameters. Values are converted to template
+ * values as the template asks for them, rather than the whole map being copied up
+ * front, and anything the template sets is kept to one side.
+ */
+class ParameterContext extends AbstractContext {
+
+  private final Map<String, ? extends Object> parameters;
+  private final Map<String, Object> local = new HashMap<String, Object>();
+
+  ParameterContext(Map<String, ? extends Object> parameters) {
+    this.parameters = parameters;
+  }
+
+  @Override
+  public Object internalGet(String key) {
+    if (local.containsKey(key)) {
+      return local.get(key);
+    }
+    if (parameters.containsKey(key)) {
+      String value = VelocityTemplateService.toTemplateValue(parameters.get(key));
+      local.put(key, value);
+      return value;
+    }
+    return null;
+  }
+
+  @Override
+  public Object internalPut(String key, Object value) {
+    Object previous = internalGet(key);
+    local.put(key, value);
+    return previous;
+  }
+
+  @Override
+  public boolean internalContainsKey(Object key) {
+    if (local.containsKey(key)) {
+      // removed keys are kept as nulls so the parameter stays hidden.
+      return local.get(key) != null;
+    }
+    return parameters.containsKey(key);
+  }
+
+  @Override
+  public Object[] internalGetKeys() {
+    Set<Object> keys = new HashSet<Object>(parameters.keySet());
+    keys.addAll(local.keySet());
+    return keys.toArray();
+  }
+
+  @Override
+  public Object internalRemove(Object key) {
+    Object previous = internalGet(String.valueOf(key));
+    local.put(String.valueOf(key), null);
+    return previous;
+  }
+}
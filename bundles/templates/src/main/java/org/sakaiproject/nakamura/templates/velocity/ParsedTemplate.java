@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import java.util.Map;
+
+/**
+ * A template parsed once and kept so that it can be rendered many times. Implementations
+ * must be safe to render from many threads at once.
+ */
+interface ParsedTemplate {
+
+  /**
+   * @param parameters
+   *          the values for the references in the template.
+   * @return the rendered template.
+   */
+  String render(Map<String, ? extends Object> parameters);
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A template that is nothing but text and <code>${name}</code> references, which
+ * covers most search and message templates. It is rendered by plain substitution,
+ * giving the same output Velocity would: a reference to a parameter is replaced by its
+ * value and a reference to anything else is left as it is.
+ */
+class SubstitutionTemplate implements ParsedTemplate {
+
+  private final String[] text;
+  private final String[] names;
+
+  private SubstitutionTemplate(List<String> text, List<String> names) {
+    this.text = text.toArray(new String[text.size()]);
+    this.names = names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * @param template
+   * @return the template split into text and references, or null if the template uses
+   *         anything more than simple references and so needs Velocity.
+   */
+  static SubstitutionTemplate parse(String template) {
+    if (template.indexOf('#') >= 0 || template.indexOf('\\') >= 0) {
+      return null;
+    }
+    List<String> text = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    int start = 0;
+    int ref = template.indexOf('$');
+    while (ref >= 0) {
+      if (ref + 1 >= template.length() || template.charAt(ref + 1) != '{') {
+        return null;
+      }
+      int end = template.indexOf('}', ref);
+      if (end < 0 || !isIdentifier(template, ref + 2, end)) {
+        return null;
+      }
+      text.add(template.substring(start, ref));
+      names.add(template.substring(ref + 2, end));
+      start = end + 1;
+      ref = template.indexOf('$', start);
+    }
+    text.add(template.substring(start));
+    return new SubstitutionTemplate(text, names);
+  }
+
+  /**
+   * Velocity identifiers start with a letter or underscore and go on with letters,
+   * digits, hyphens and underscores.
+   */
+  private static boolean isIdentifier(String s, int from, int to) {
+    if (from >= to) {
+      return false;
+    }
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      boolean alpha = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+      if (!alpha && (i == from || !((c >= '0' && c <= '9') || c == '-'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String render(Map<String, ? extends Object> parameters) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < names.length; i++) {
+      sb.append(text[i]);
+      if (parameters.containsKey(names[i])) {
+        sb.append(VelocityTemplateService.toTemplateValue(parameters.get(names[i])));
+      } else {
+        sb.append("${").append(names[i]).append('}');
+      }
+    }
+    sb.append(text[names.length]);
+    return sb.toString();
+  }
+}
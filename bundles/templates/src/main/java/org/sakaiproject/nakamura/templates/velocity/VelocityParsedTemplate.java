@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * A template parsed by Velocity. The syntax tree is built and initialised once, the
+ * same way Velocity keeps the templates it loads itself, and each render only walks it
+ * against a fresh context.
+ */
+class VelocityParsedTemplate implements ParsedTemplate {
+
+  private final Template template;
+
+  VelocityParsedTemplate(RuntimeInstance runtime, Reader reader, String name) {
+    SimpleNode nodeTree;
+    try {
+      nodeTree = runtime.parse(reader, name);
+    } catch (ParseException e) {
+      throw new ParseErrorException(e);
+    }
+    template = new Template();
+    template.setName(name);
+    template.setRuntimeServices(runtime);
+    template.setData(nodeTree);
+    template.initDocument();
+  }
+
+  public String render(Map<String, ? extends Object> parameters) {
+    StringWriter writer = new StringWriter();
+    template.merge(new ParameterContext(parameters), writer);
+    return writer.toString();
+  }
+}
@@ -22,22 +22,18 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -48,46 +44,85 @@ import org.apache.commons.lang.StringUtils;
 @Component(immediate = true)
 public class VelocityTemplateService implements TemplateService, TemplateNodeSource {
 
-  private static final Logger LOGGER = LoggerFactory
-      .getLogger(VelocityTemplateService.class);
+  /**
+   * The most parsed templates to keep.
+   */
+  private static final int MAX_PARSED_TEMPLATES = 500;
 
-  private VelocityEngine velocityEngine;
+  /**
+   * Templates longer than this are parsed each time rather than kept, they are rare and
+   * would crowd out the rest.
+   */
+  private static final int MAX_CACHED_TEMPLATE_LENGTH = 8192;
+
+  private static final String LOG_TAG = "templateprocessing";
+
+  private RuntimeInstance velocityRuntime;
+
+  /**
+   * Parsed templates keyed by their text, least recently used first.
+   */
+  private final Map<String, ParsedTemplate> parsedTemplates = Collections
+      .synchronizedMap(new LinkedHashMap<String, ParsedTemplate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedTemplate> eldest) {
+          return size() > MAX_PARSED_TEMPLATES;
+        }
+      });
 
   @Reference
   protected Repository repository;
 
   public String evaluateTemplate(Map<String, ? extends Object> parameters, String template) {
-    return evaluateTemplate(parameters, new StringReader(template));
+    return getParsedTemplate(template).render(parameters);
   }
 
   public String evaluateTemplate(Map<String, ? extends Object> parameters, Reader templateReader) {
-    Map<String, String> sanitizedParameters = sanitize(parameters);
-    VelocityContext context = new VelocityContext(sanitizedParameters);
     // combine template with parameter map
-    StringWriter templateWriter = new StringWriter();
-    try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
-    } catch (IOException e) {
-      LOGGER.error(e.getMessage(), e);
-    }
-    return templateWriter.toString();
+    return new VelocityParsedTemplate(velocityRuntime, templateReader, LOG_TAG)
+        .render(parameters);
   }
 
-  private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
-    Map<String,String> rv = new HashMap<String,String>();
-    for (Object key : parameters.keySet()) {
-      Object value = parameters.get(key);
-      if (value instanceof RequestParameter) {
-        rv.put(key.toString(), String.valueOf((RequestParameter) value));
-      } else if (value instanceof String[]) {
-        String[] values = (String[])value;
-        rv.put(key.toString(), values[0]);
-      } else {
-        rv.put(key.toString(), String.valueOf(value));
+  /**
+   * Get the parsed form of a template, parsing it if it has not been seen recently. A
+   * template made only of text and ${name} references is substituted directly, anything
+   * else is parsed by Velocity.
+   *
+   * @param template
+   * @return the parsed template.
+   */
+  ParsedTemplate getParsedTemplate(String template) {
+    ParsedTemplate parsed = parsedTemplates.get(template);
+    if (parsed == null) {
+      parsed = SubstitutionTemplate.parse(template);
+      if (parsed == null) {
+        parsed = new VelocityParsedTemplate(velocityRuntime, new StringReader(template),
+            LOG_TAG);
+      }
+      if (template.length() <= MAX_CACHED_TEMPLATE_LENGTH) {
+        parsedTemplates.put(template, parsed);
       }
     }
-    return rv;
+    return parsed;
+  }
+
+  /**
+   * Convert a parameter to the value a template sees.
+   *
+   * @param value
+   * @return the value as a String.
+   */
+  static String toTemplateValue(Object value) {
+    if (value instanceof RequestParameter) {
+      return String.valueOf((RequestParameter) value);
+    } else if (value instanceof String[]) {
+      String[] values = (String[]) value;
+      return values[0];
+    } else {
+      return String.valueOf(value);
+    }
   }
 
   public Collection<String> missingTerms(String template) {
@@ -137,17 +172,18 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   }
 
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    velocityRuntime = new RuntimeInstance();
+    velocityRuntime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    velocityRuntime.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    velocityRuntime.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    velocityRuntime.setConfiguration(configuration);
+    velocityRuntime.init();
+    parsedTemplates.clear();
   }
 
   public Node getNode() {
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SubstitutionTemplateTest {
+
+  @Test
+  public void testSubstitution() {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("q", "fish");
+    parameters.put("user-id", new String[] { "alice", "bob" });
+    parameters.put("empty", null);
+    SubstitutionTemplate template = SubstitutionTemplate
+        .parse("content:${q} AND manager:${user-id} ${empty} ${missing} {a}");
+    assertNotNull(template);
+    assertEquals("content:fish AND manager:alice null ${missing} {a}",
+        template.render(parameters));
+  }
+
+  @Test
+  public void testPlainText() {
+    assertEquals("resourceType:sakai/pooled-content", SubstitutionTemplate.parse(
+        "resourceType:sakai/pooled-content").render(new HashMap<String, Object>()));
+  }
+
+  @Test
+  public void testVelocityTemplatesAreNotSubstituted() {
+    assertNull(SubstitutionTemplate.parse("#if($q)${q}#end"));
+    assertNull(SubstitutionTemplate.parse("$q"));
+    assertNull(SubstitutionTemplate.parse("$!{q}"));
+    assertNull(SubstitutionTemplate.parse("${q.length()}"));
+    assertNull(SubstitutionTemplate.parse("\\${q}"));
+    assertNull(SubstitutionTemplate.parse("${1q}"));
+    assertNull(SubstitutionTemplate.parse("cost $"));
+  }
+}
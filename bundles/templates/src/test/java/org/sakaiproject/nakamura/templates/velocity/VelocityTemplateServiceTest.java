@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+public class VelocityTemplateServiceTest {
+
+  private static final String[] TEMPLATES = new String[] {
+      "resourceType:sakai/pooled-content",
+      "content:${q} AND manager:${user} ${empty} ${missing}",
+      "#if($q)content:$q#end #if($missing)never#end",
+      "$!{missing}|$missing|${missing}|\\${q}",
+      "${q.length()} ${q.toUpperCase()}",
+      "#set($x = \"${q}-${user}\")$x #foreach($i in [1..3])$i#end",
+      "cost $ {q}" };
+
+  private VelocityTemplateService service;
+  private VelocityEngine engine;
+  private Map<String, Object> parameters;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new VelocityTemplateService();
+    service.activate(null);
+
+    engine = new VelocityEngine();
+    engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+        getClass()));
+    engine.init();
+
+    parameters = new HashMap<String, Object>();
+    parameters.put("q", "fish");
+    parameters.put("user", new String[] { "alice", "bob" });
+    parameters.put("empty", null);
+  }
+
+  @Test
+  public void testSameOutputAsEvaluate() throws Exception {
+    for (String template : TEMPLATES) {
+      String expected = evaluate(parameters, template);
+      assertEquals(template, expected, service.evaluateTemplate(parameters, template));
+      // and again, from the parsed template.
+      assertEquals(template, expected, service.evaluateTemplate(parameters, template));
+      assertEquals(template, expected, service.evaluateTemplate(parameters,
+          new StringReader(template)));
+    }
+  }
+
+  @Test
+  public void testParsedOnce() throws Exception {
+    for (String template : TEMPLATES) {
+      ParsedTemplate parsed = service.getParsedTemplate(template);
+      assertSame(template, parsed, service.getParsedTemplate(new String(template)));
+    }
+    assertTrue(service.getParsedTemplate(TEMPLATES[0]) instanceof SubstitutionTemplate);
+    assertTrue(service.getParsedTemplate(TEMPLATES[2]) instanceof VelocityParsedTemplate);
+  }
+
+  @Test
+  public void testLargeTemplatesNotKept() throws Exception {
+    String template = "#if($q)" + StringUtils.repeat("x", 8192) + "#end";
+    assertNotSame(service.getParsedTemplate(template), service.getParsedTemplate(template));
+    assertEquals(evaluate(parameters, template), service.evaluateTemplate(parameters,
+        template));
+  }
+
+  /**
+   * How templates were evaluated before they were kept parsed.
+   */
+  private String evaluate(Map<String, ? extends Object> parameters, String template)
+      throws Exception {
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (Entry<String, ? extends Object> e : parameters.entrySet()) {
+      values.put(e.getKey(), VelocityTemplateService.toTemplateValue(e.getValue()));
+    }
+    StringWriter writer = new StringWriter();
+    engine.evaluate(new VelocityContext(values), writer, "templateprocessing",
+        new StringReader(template));
+    return writer.toString();
+  }
+}
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.auth.trusted;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.util.ArrayList;
@@ -51,6 +52,25 @@ public class LocalCache<T>  implements Cache<Object> {
     return m.get(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public Object getOrLoad(String key, CacheLoader<Object> loader) {
+    Object value = m.get(key);
+    if (value == null) {
+      try {
+        value = loader.load(key);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#list()
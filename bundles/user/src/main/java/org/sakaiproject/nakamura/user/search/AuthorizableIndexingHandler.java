@@ -28,6 +28,8 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
@@ -43,6 +45,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.search.solr.IndexingCoalescer;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.TopicIndexer;
@@ -110,6 +113,9 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
   @Reference
   protected TopicIndexer topicIndexer;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile IndexingCoalescer indexingCoalescer;
+
   // ---------- SCR integration ------------------------------------------------
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -146,6 +152,12 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
     String topic = PathUtils.lastElement(event.getTopic());
 
     if (StoreListener.UPDATED_TOPIC.equals(topic) || StoreListener.ADDED_TOPIC.equals(topic)) {
+      // a later event for the authorizable is still queued and will index the latest state.
+      IndexingCoalescer coalescer = indexingCoalescer;
+      if (coalescer != null && coalescer.isSuperseded(event)) {
+        return documents;
+      }
+
       // get the name of the authorizable (user,group)
       String authName = String.valueOf(event.getProperty(FIELD_PATH));
       Authorizable authorizable = getAuthorizable(authName, repositorySession);
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.webconsole.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.webconsole.SimpleWebConsolePlugin;
+import org.apache.felix.webconsole.WebConsoleConstants;
+import org.apache.felix.webconsole.WebConsoleUtil;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.osgi.framework.BundleContext;
+import org.sakaiproject.nakamura.api.search.solr.SearchMetricsService;
+import org.sakaiproject.nakamura.api.search.solr.SearchTemplateMetricsMBean;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the metrics of each search template, as a table or, at searchmetrics.json, as
+ * JSON.
+ */
+@Component
+@Service
+@Properties({
+  @Property(name = WebConsoleConstants.PLUGIN_LABEL, value = SearchMetricsWebConsolePlugin.LABEL)
+})
+public class SearchMetricsWebConsolePlugin extends SimpleWebConsolePlugin {
+  private static final long serialVersionUID = 1L;
+
+  static final String LABEL = "searchmetrics";
+
+  @Reference
+  private SearchMetricsService searchMetrics;
+
+  private final String TEMPLATE;
+
+  public SearchMetricsWebConsolePlugin() {
+    super(LABEL, "%metrics_plugin_title", new String[] { "/dev/css/sakai/main.css" });
+
+    TEMPLATE = readTemplateFile("/templates/searchmetrics.html");
+  }
+
+  @Override
+  @Activate @Modified
+  public void activate(BundleContext bundleContext) {
+    super.activate(bundleContext);
+  }
+
+  @Override
+  @Deactivate
+  public void deactivate() {
+    super.deactivate();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    String pathInfo = req.getPathInfo();
+    if (pathInfo != null && pathInfo.endsWith(".json")) {
+      resp.setContentType("application/json");
+      resp.setCharacterEncoding("UTF-8");
+      try {
+        writeJson(resp.getWriter());
+      } catch (JSONException e) {
+        throw new ServletException(e.getMessage(), e);
+      }
+    } else {
+      super.doGet(req, resp);
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    if ("reset".equals(req.getParameter("action"))) {
+      searchMetrics.reset();
+    }
+    resp.sendRedirect(LABEL);
+  }
+
+  @Override
+  protected void renderContent(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    PrintWriter writer = res.getWriter();
+    writer.write(TEMPLATE);
+    writer.write("<table class='nicetable'><thead><tr>");
+    for (String heading : new String[] { "Template", "Calls", "Errors", "Cached",
+        "Rejected", "Avg ms", "Max ms", "Avg query ms", "Avg processing ms",
+        "Avg writing ms", "Avg results", "Max results", "Query ms histogram" }) {
+      writer.write("<th>" + heading + "</th>");
+    }
+    writer.write("</tr></thead><tbody>");
+    for (SearchTemplateMetricsMBean metrics : searchMetrics.getTemplateMetrics()) {
+      long calls = metrics.getCalls();
+      writer.write("<tr>");
+      writeCell(writer, WebConsoleUtil.escapeHtml(metrics.getPath()));
+      writeCell(writer, calls);
+      writeCell(writer, metrics.getErrors());
+      writeCell(writer, metrics.getCachedResponses());
+      writeCell(writer, metrics.getRejected());
+      writeCell(writer, Math.round(metrics.getAverageMillis()));
+      writeCell(writer, metrics.getMaxMillis());
+      writeCell(writer, average(metrics.getQueryMillis(), calls));
+      writeCell(writer, average(metrics.getProcessingMillis(), calls));
+      writeCell(writer, average(metrics.getWritingMillis(), calls));
+      writeCell(writer, average(metrics.getResults(), calls));
+      writeCell(writer, metrics.getMaxResults());
+      writeCell(writer, histogram(metrics.getHistogramBounds(),
+          metrics.getQueryHistogram()));
+      writer.write("</tr>");
+    }
+    writer.write("</tbody></table>");
+  }
+
+  private void writeJson(PrintWriter out) throws JSONException {
+    JSONWriter writer = new JSONWriter(out);
+    writer.object();
+    writer.key("templates");
+    writer.array();
+    for (SearchTemplateMetricsMBean metrics : searchMetrics.getTemplateMetrics()) {
+      writer.object();
+      writer.key("path").value(metrics.getPath());
+      writer.key("calls").value(metrics.getCalls());
+      writer.key("errors").value(metrics.getErrors());
+      writer.key("cachedResponses").value(metrics.getCachedResponses());
+      writer.key("rejected").value(metrics.getRejected());
+      writer.key("results").value(metrics.getResults());
+      writer.key("maxResults").value(metrics.getMaxResults());
+      writer.key("averageMillis").value(metrics.getAverageMillis());
+      writer.key("maxMillis").value(metrics.getMaxMillis());
+      writer.key("queryMillis").value(metrics.getQueryMillis());
+      writer.key("processingMillis").value(metrics.getProcessingMillis());
+      writer.key("writingMillis").value(metrics.getWritingMillis());
+      writeArray(writer, "histogramBounds", metrics.getHistogramBounds());
+      writeArray(writer, "queryHistogram", metrics.getQueryHistogram());
+      writeArray(writer, "processingHistogram", metrics.getProcessingHistogram());
+      writeArray(writer, "writingHistogram", metrics.getWritingHistogram());
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+  }
+
+  private static void writeArray(JSONWriter writer, String key, long[] values)
+      throws JSONException {
+    writer.key(key);
+    writer.array();
+    for (long value : values) {
+      writer.value(value);
+    }
+    writer.endArray();
+  }
+
+  private static void writeCell(PrintWriter writer, Object value) {
+    writer.write("<td>" + value + "</td>");
+  }
+
+  private static long average(long total, long count) {
+    return count == 0 ? 0 : Math.round((double) total / count);
+  }
+
+  /**
+   * @return the non empty buckets, as bound:count with the overflow bucket as &gt;bound.
+   */
+  private static String histogram(long[] bounds, long[] counts) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        if (i < bounds.length) {
+          sb.append(bounds[i]);
+        } else {
+          sb.append("&gt;").append(bounds[bounds.length - 1]);
+        }
+        sb.append(':').append(counts[i]);
+      }
+    }
+    return sb.toString();
+  }
+}